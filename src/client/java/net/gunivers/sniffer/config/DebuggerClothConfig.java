@@ -45,8 +45,12 @@ public class DebuggerClothConfig {
         
         // Create a supplier to dynamically generate the server address text
         Supplier<Text> addressSupplier = () -> {
-            String wsAddress = String.format("ws://localhost:%d/%s", currentPort[0], currentPath[0]);
-            return Text.translatable("sniffer.config.server_address", wsAddress);
+            String address = switch (config.getTransport()) {
+                case WEBSOCKET -> String.format("ws://localhost:%d/%s", currentPort[0], currentPath[0]);
+                case TCP -> String.format("tcp://localhost:%d", currentPort[0]);
+                case UNIX -> "unix://" + config.getSocketPath();
+            };
+            return Text.translatable("sniffer.config.server_address", address);
         };
         
         // Add server address description (will update dynamically)
@@ -54,6 +58,16 @@ public class DebuggerClothConfig {
                 .setTooltip(Text.translatable("sniffer.config.server_address.tooltip"))
                 .build());
 
+        // Add transport entry, applied on the next server start
+        mainCategory.addEntry(entryBuilder.startEnumSelector(
+                        Text.translatable("sniffer.config.transport"),
+                        DebuggerConfig.Transport.class,
+                        config.getTransport())
+                .setDefaultValue(DebuggerConfig.Transport.WEBSOCKET)
+                .setTooltip(Text.translatable("sniffer.config.transport.tooltip"))
+                .setSaveConsumer(config::setTransport)
+                .build());
+
         // Add port entry with dynamic update of the address
         mainCategory.addEntry(entryBuilder.startIntField(
                         Text.translatable("sniffer.config.port"), 
@@ -80,6 +94,44 @@ public class DebuggerClothConfig {
                 })
                 .build());
         
+        // Add idle timeout entry of the WebSocket server
+        mainCategory.addEntry(entryBuilder.startIntField(
+                        Text.translatable("sniffer.config.idle_timeout"),
+                        config.getIdleTimeout())
+                .setDefaultValue(300)
+                .setTooltip(Text.translatable("sniffer.config.idle_timeout.tooltip"))
+                .setMin(0)
+                .setSaveConsumer(config::setIdleTimeout)
+                .build());
+
+        // Add socket path entry, only used by the Unix domain socket transport
+        mainCategory.addEntry(entryBuilder.startStrField(
+                        Text.translatable("sniffer.config.socket_path"),
+                        config.getSocketPath())
+                .setDefaultValue("sniffer-dap.sock")
+                .setTooltip(Text.translatable("sniffer.config.socket_path.tooltip"))
+                .setSaveConsumer(config::setSocketPath)
+                .build());
+
+        // Add tick timeline toggle, the timeline costs some time on each command when enabled
+        mainCategory.addEntry(entryBuilder.startBooleanToggle(
+                        Text.translatable("sniffer.config.tick_timeline"),
+                        config.isTickTimeline())
+                .setDefaultValue(false)
+                .setTooltip(Text.translatable("sniffer.config.tick_timeline.tooltip"))
+                .setSaveConsumer(config::setTickTimeline)
+                .build());
+
+        // Add preview length entry of the NBT variables
+        mainCategory.addEntry(entryBuilder.startIntField(
+                        Text.translatable("sniffer.config.preview_length"),
+                        config.getPreviewLength())
+                .setDefaultValue(120)
+                .setTooltip(Text.translatable("sniffer.config.preview_length.tooltip"))
+                .setMin(16)
+                .setSaveConsumer(config::setPreviewLength)
+                .build());
+
         // Return the config screen
         return builder.build();
     }
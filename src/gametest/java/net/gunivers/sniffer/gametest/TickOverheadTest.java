@@ -0,0 +1,251 @@
+package net.gunivers.sniffer.gametest;
+
+import net.fabricmc.api.ModInitializer;
+import net.fabricmc.fabric.api.event.lifecycle.v1.ServerTickEvents;
+import net.fabricmc.fabric.api.gametest.v1.GameTest;
+import net.gunivers.sniffer.dap.DebuggerState;
+import net.gunivers.sniffer.dap.RealPath;
+import net.gunivers.sniffer.dap.ScopeManager;
+import net.gunivers.sniffer.profiler.FunctionProfiler;
+import net.gunivers.sniffer.profiler.TickTimeline;
+import net.gunivers.sniffer.profiler.TraceRecorder;
+import net.gunivers.sniffer.util.LogHistogram;
+import net.minecraft.server.MinecraftServer;
+import net.minecraft.test.TestContext;
+import net.minecraft.util.Identifier;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Tick time regression suite, run with {@code ./gradlew checkTickOverhead}.
+ * <p>
+ * The server runs the synthetic datapack generated by {@code DatapackGenerator} on each tick,
+ * once for each mode of the debugger, and records the mean and the 99th percentile of the tick duration (MSPT).
+ * The datapack runs through the actual command loop, the mixins being applied by the Fabric launcher, so the time
+ * and the bytes allocated per command are recorded as well: these are the figures that show a regression
+ * of the per-command hooks, e.g. an allocation in the breakpoint check. They are relative to the detached mode:
+ * the mixins cannot be removed from the run, so the cost of the mod over the vanilla loop is not measured.
+ * Each mode has its own test environment so that the tests run in different batches,
+ * the modes being global to the server. The results are written in {@code sniffer/gametest/<mode>.json}
+ * in the run directory, to be compared to the committed baseline by the Gradle task. The committed baseline is
+ * the budget of 10% extra tick time, until it is recorded from an actual run with
+ * {@code ./gradlew recordTickOverheadBaseline}.
+ *
+ * @author theogiraudet
+ */
+public class TickOverheadTest implements ModInitializer {
+
+    /** Namespace of the generated datapack */
+    private static final String NAMESPACE = "sniffer_bench";
+    /** Ticks run before the measure, for the JIT to compile the command loop */
+    private static final int WARMUP_TICKS = 100;
+    private static final int MEASURED_TICKS = 600;
+    /**
+     * The comment on the first line of every generated function, so that the breakpoints are compiled in the same
+     * bitmap word as the lines of the function and tested by each of its commands, but never hit
+     */
+    private static final int COMMENT_LINE = 0;
+    private static final String RESULT_DIRECTORY = "sniffer/gametest";
+
+    /** Allocation counters of the threads, to measure the bytes allocated by the server thread */
+    private static final com.sun.management.ThreadMXBean THREADS = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+    /** Durations of the ticks of the running measure, or null if no measure is running */
+    private static @Nullable LogHistogram recording;
+    private static long tickStart;
+
+    /**
+     * A mode of the debugger during a measure.
+     */
+    private enum Mode {
+        /** No client attached, the detached loop of the mixin, the vanilla loop being never run with the mod */
+        DETACHED,
+        /** A client attached, breakpoints being tested before each command */
+        ATTACHED,
+        /** A client attached, with a breakpoint set on the comment line of each function */
+        BREAKPOINTS,
+        /** The function profiler running, timing the functions only */
+        PROFILING,
+        /** The function profiler running, timing each line as well */
+        PROFILING_LINES,
+        /** The tick timeline enabled */
+        TIMELINE,
+        /** The trace recorder recording each command */
+        TRACING;
+
+        private String id() {
+            return name().toLowerCase(Locale.ROOT);
+        }
+    }
+
+    @Override
+    public void onInitialize() {
+        ServerTickEvents.START_SERVER_TICK.register(server -> tickStart = System.nanoTime());
+        ServerTickEvents.END_SERVER_TICK.register(server -> {
+            if (recording != null) {
+                recording.record(System.nanoTime() - tickStart);
+            }
+        });
+    }
+
+    @GameTest(environment = "sniffer-gametest:detached", maxTicks = WARMUP_TICKS + MEASURED_TICKS + 20)
+    public void detached(TestContext context) {
+        measure(context, Mode.DETACHED);
+    }
+
+    @GameTest(environment = "sniffer-gametest:attached", maxTicks = WARMUP_TICKS + MEASURED_TICKS + 20)
+    public void attached(TestContext context) {
+        measure(context, Mode.ATTACHED);
+    }
+
+    @GameTest(environment = "sniffer-gametest:breakpoints", maxTicks = WARMUP_TICKS + MEASURED_TICKS + 20)
+    public void breakpoints(TestContext context) {
+        measure(context, Mode.BREAKPOINTS);
+    }
+
+    @GameTest(environment = "sniffer-gametest:profiling", maxTicks = WARMUP_TICKS + MEASURED_TICKS + 20)
+    public void profiling(TestContext context) {
+        measure(context, Mode.PROFILING);
+    }
+
+    @GameTest(environment = "sniffer-gametest:profiling_lines", maxTicks = WARMUP_TICKS + MEASURED_TICKS + 20)
+    public void profilingLines(TestContext context) {
+        measure(context, Mode.PROFILING_LINES);
+    }
+
+    @GameTest(environment = "sniffer-gametest:timeline", maxTicks = WARMUP_TICKS + MEASURED_TICKS + 20)
+    public void timeline(TestContext context) {
+        measure(context, Mode.TIMELINE);
+    }
+
+    @GameTest(environment = "sniffer-gametest:tracing", maxTicks = WARMUP_TICKS + MEASURED_TICKS + 20)
+    public void tracing(TestContext context) {
+        measure(context, Mode.TRACING);
+    }
+
+    /**
+     * Runs the datapack on each tick in the given mode, then writes the statistics of the measured ticks.
+     */
+    private static void measure(TestContext context, Mode mode) {
+        var server = context.getWorld().getServer();
+        var histogram = new LogHistogram();
+        var perRun = new long[2];
+        var commands = new long[1];
+        context.runAtTick(1, () -> commands[0] = countCommands(server));
+        var files = new ArrayList<String>();
+        context.runAtTick(2, () -> files.addAll(setUp(server, mode)));
+        for (int tick = 3; tick <= WARMUP_TICKS + MEASURED_TICKS + 2; tick++) {
+            int current = tick;
+            context.runAtTick(tick, () -> {
+                boolean measured = current > WARMUP_TICKS + 2;
+                if (current == WARMUP_TICKS + 3) {
+                    recording = histogram;
+                }
+                long bytes = THREADS.getCurrentThreadAllocatedBytes();
+                long start = System.nanoTime();
+                runMain(server);
+                if (measured) {
+                    perRun[0] += System.nanoTime() - start;
+                    perRun[1] += THREADS.getCurrentThreadAllocatedBytes() - bytes;
+                }
+            });
+        }
+        context.runAtTick(WARMUP_TICKS + MEASURED_TICKS + 3, () -> {
+            recording = null;
+            tearDown(mode, files);
+            long executed = Math.max(1, commands[0] * MEASURED_TICKS);
+            writeResult(server, mode, histogram, (double) perRun[0] / executed, (double) perRun[1] / executed);
+            context.complete();
+        });
+    }
+
+    private static void runMain(MinecraftServer server) {
+        server.getCommandManager().executeWithPrefix(server.getCommandSource().withSilent(), "function " + NAMESPACE + ":main");
+    }
+
+    /**
+     * Counts the commands executed by one run of the datapack, with the tick timeline.
+     */
+    private static long countCommands(MinecraftServer server) {
+        TickTimeline.setEnabled(true);
+        runMain(server);
+        // The sample is closed at once, so it only holds this run
+        TickTimeline.get().endTick(-1);
+        long commands = TickTimeline.get().samples(1).getFirst().commands();
+        TickTimeline.setEnabled(false);
+        return commands;
+    }
+
+    /**
+     * Enables the given mode.
+     *
+     * @return The files the breakpoints are set in
+     */
+    private static List<String> setUp(MinecraftServer server, Mode mode) {
+        var files = new ArrayList<String>();
+        switch (mode) {
+            case DETACHED -> {}
+            case ATTACHED -> DebuggerState.attach();
+            case BREAKPOINTS -> {
+                DebuggerState.attach();
+                // The functions of the mod resources are not mapped to their files by the pack mixins,
+                // so they are mapped to the files the breakpoints are set in
+                for (var function : server.getCommandFunctionManager().getAllFunctions()) {
+                    if (!function.getNamespace().equals(NAMESPACE)) {
+                        continue;
+                    }
+                    var file = Path.of(NAMESPACE, "data", NAMESPACE, "function", function.getPath() + ".mcfunction").toAbsolutePath();
+                    ScopeManager.get().savePath(file, function.withPath(path -> "function/" + path + ".mcfunction"), RealPath.Kind.DIRECTORY);
+                    DebuggerState.get().setBreakpoints(file.toString(), new int[]{COMMENT_LINE});
+                    files.add(file.toString());
+                }
+                DebuggerState.get().invalidateBreakpoints();
+            }
+            case PROFILING -> FunctionProfiler.get().start(false);
+            case PROFILING_LINES -> FunctionProfiler.get().start(true);
+            case TIMELINE -> TickTimeline.setEnabled(true);
+            case TRACING -> TraceRecorder.get().start(TraceRecorder.DEFAULT_CAPACITY);
+        }
+        return files;
+    }
+
+    private static void tearDown(Mode mode, List<String> files) {
+        files.forEach(DebuggerState.get()::clearBreakpoints);
+        switch (mode) {
+            case PROFILING, PROFILING_LINES -> FunctionProfiler.get().stop();
+            case TIMELINE -> TickTimeline.setEnabled(false);
+            case TRACING -> TraceRecorder.get().stop();
+            default -> {}
+        }
+        DebuggerState.detachIfIdle();
+    }
+
+    private static void writeResult(MinecraftServer server, Mode mode, LogHistogram histogram, double nsPerCommand, double bytesPerCommand) {
+        var json = String.format(Locale.ROOT, """
+                {
+                  "mode": "%s",
+                  "ticks": %d,
+                  "meanMspt": %.4f,
+                  "p99Mspt": %.4f,
+                  "nsPerCommand": %.2f,
+                  "bytesPerCommand": %.3f
+                }
+                """, mode.id(), histogram.getCount(), histogram.getMean() / 1_000_000.0, histogram.percentile(99) / 1_000_000.0,
+                nsPerCommand, bytesPerCommand);
+        try {
+            var directory = server.getRunDirectory().resolve(RESULT_DIRECTORY);
+            Files.createDirectories(directory);
+            Files.writeString(directory.resolve(mode.id() + ".json"), json);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+}
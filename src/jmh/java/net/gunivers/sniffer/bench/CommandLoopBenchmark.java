@@ -0,0 +1,137 @@
+package net.gunivers.sniffer.bench;
+
+import net.gunivers.sniffer.dap.DebuggerState;
+import net.gunivers.sniffer.debugcmd.JvmtimerAttachments;
+import net.gunivers.sniffer.debugcmd.JvmtimerCommand;
+import net.gunivers.sniffer.profiler.FunctionProfiler;
+import net.gunivers.sniffer.profiler.TickTimeline;
+import net.gunivers.sniffer.profiler.TraceRecorder;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.concurrent.TimeUnit;
+
+import static net.gunivers.sniffer.bench.SyntheticProgram.*;
+
+/**
+ * Cost of the function entry and exit hooks of the debugger tools, in nanoseconds per command.
+ * Run with {@code ./gradlew jmh}, the GC profiler reporting the bytes allocated per command.
+ * <p>
+ * The mixins are only applied when the game is launched by Fabric, so the loop of
+ * {@code CommandExecutionContextMixin} and its per-command hooks, which read the command queue entries
+ * through the mixin accessors, cannot run in a JMH fork. They are measured in the actual command loop
+ * by the GameTest suite, see {@code ./gradlew checkTickOverhead}, which reports the time and the bytes
+ * allocated per command of each mode. This benchmark only replays each synthetic program through the hooks
+ * called on each function entry and exit, and through the accounting of the function profiler before each command,
+ * {@link FunctionProfiler#countCommand(int)} or {@link FunctionProfiler#beforeStep(int, int)} when the lines are timed,
+ * {@link Mode#DETACHED} replaying it without any tool as the baseline.
+ * <p>
+ * This is not a figure of the hot path: no dispatcher, command source nor {@code CommandExecutionContext.run} is involved,
+ * and there is no vanilla loop to compare with. No benchmark runs the actual loop with and without the mod,
+ * and no such figure exists yet.
+ *
+ * @author theogiraudet
+ */
+@BenchmarkMode(org.openjdk.jmh.annotations.Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class CommandLoopBenchmark {
+
+    /**
+     * The features enabled while the program is replayed.
+     */
+    public enum Mode {
+        /** The checks always run by the mod, with no tool enabled */
+        DETACHED,
+        /** The tick timeline enabled */
+        TIMELINE,
+        /** The function profiler running, timing the functions only */
+        PROFILING,
+        /** The function profiler running, timing each line as well */
+        PROFILING_LINES,
+        /** The trace recorder recording the function entries and exits */
+        TRACING,
+        /** A jvmtimer attached to every function */
+        ATTACHED_TIMER
+    }
+
+    @Param
+    public Shape shape;
+
+    @Param
+    public Mode mode;
+
+    /** The commands of a function are spread over 16 source lines */
+    private static final int LINE_MASK = 15;
+
+    private SyntheticProgram program;
+    private final TickTimeline timeline = TickTimeline.get();
+    private final JvmtimerCommand.JvmTimer timer = new JvmtimerCommand.JvmTimer("bench");
+    private long tick = 0;
+
+    @Setup
+    public void setup() {
+        this.program = SyntheticProgram.of(this.shape);
+        switch (this.mode) {
+            case TIMELINE -> TickTimeline.setEnabled(true);
+            case PROFILING -> FunctionProfiler.get().start(false);
+            case PROFILING_LINES -> FunctionProfiler.get().start(true);
+            case TRACING -> TraceRecorder.get().start(TraceRecorder.DEFAULT_CAPACITY);
+            default -> {}
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        TickTimeline.setEnabled(false);
+        FunctionProfiler.get().stop();
+        TraceRecorder.get().stop();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(COMMANDS)
+    public void run(Blackhole blackhole) {
+        var program = this.program;
+        boolean timed = this.mode == Mode.ATTACHED_TIMER;
+        boolean lines = this.mode == Mode.PROFILING_LINES;
+        if (TickTimeline.isEnabled()) this.timeline.onRunStart();
+        for (int i = 0; i < program.size; i++) {
+            int depth = program.depths[i];
+            switch (program.kinds[i]) {
+                case COMMAND -> {
+                    // The flags read before each command by the loop of the mixin
+                    blackhole.consume(DebuggerState.isDetached());
+                    if (TickTimeline.isEnabled()) this.timeline.onCommand(depth);
+                    // The line lookup of the profiler goes through the mixins, only its accounting is replayed
+                    if (FunctionProfiler.isRunning()) {
+                        if (lines) FunctionProfiler.get().beforeStep(depth, i & LINE_MASK);
+                        else FunctionProfiler.get().countCommand(depth);
+                    }
+                    blackhole.consume(TraceRecorder.isRecording());
+                }
+                case ENTER -> {
+                    var function = program.functions[i];
+                    if (TickTimeline.isEnabled()) this.timeline.enterFunction(function, depth);
+                    if (FunctionProfiler.isRunning()) FunctionProfiler.get().enterFunction(function, depth);
+                    if (TraceRecorder.isRecording()) TraceRecorder.get().enterFunction(function, depth, null);
+                    if (timed || JvmtimerAttachments.isActive()) this.timer.start();
+                }
+                case EXIT -> {
+                    if (TickTimeline.isEnabled()) this.timeline.exitFunction(depth);
+                    if (FunctionProfiler.isRunning()) FunctionProfiler.get().exitFunction(depth);
+                    if (TraceRecorder.isRecording()) TraceRecorder.get().exitFunction(depth);
+                    if (timed || JvmtimerAttachments.isActive()) this.timer.end();
+                }
+            }
+            blackhole.consume(program.kinds[i]);
+        }
+        if (FunctionProfiler.isRunning()) FunctionProfiler.get().onRunEnd(true);
+        if (TickTimeline.isEnabled()) {
+            this.timeline.onRunEnd(true);
+            this.timeline.endTick(this.tick++);
+        }
+    }
+}
@@ -0,0 +1,47 @@
+package net.gunivers.sniffer.bench;
+
+import net.gunivers.sniffer.util.LogHistogram;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of recording a duration into the histograms backing the jvmtimers, and of reading a percentile.
+ *
+ * @author theogiraudet
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class LogHistogramBenchmark {
+
+    private static final int VALUES = 1024;
+
+    private final LogHistogram histogram = new LogHistogram();
+    private final long[] values = new long[VALUES];
+    private int index = 0;
+
+    @Setup
+    public void setup() {
+        // Durations from 100 ns to 10 ms, log-uniformly distributed
+        var random = new SplittableRandom(42);
+        for (int i = 0; i < VALUES; i++) {
+            this.values[i] = (long) Math.pow(10, 2 + random.nextDouble() * 5);
+            this.histogram.record(this.values[i]);
+        }
+    }
+
+    @Benchmark
+    public void record() {
+        this.histogram.record(this.values[this.index++ & (VALUES - 1)]);
+    }
+
+    @Benchmark
+    public long percentile() {
+        return this.histogram.percentile(99);
+    }
+}
@@ -0,0 +1,135 @@
+package net.gunivers.sniffer.bench;
+
+import net.minecraft.util.Identifier;
+
+import java.util.Arrays;
+
+/**
+ * A synthetic function graph, flattened into the sequence of events the command loop goes through:
+ * commands, function entries and function exits, each one with its frame depth.
+ * All the shapes execute {@link #COMMANDS} commands, so that the benchmarks report a time per command.
+ *
+ * @author theogiraudet
+ */
+public final class SyntheticProgram {
+
+    /** Number of commands executed by each program */
+    public static final int COMMANDS = 4096;
+
+    public static final byte COMMAND = 0;
+    public static final byte ENTER = 1;
+    public static final byte EXIT = 2;
+
+    /**
+     * The shapes of function graphs.
+     */
+    public enum Shape {
+        /** A single function of {@link #COMMANDS} commands */
+        STRAIGHT_LINE,
+        /** A function calling itself 256 times, running 16 commands per call */
+        DEEP_RECURSION,
+        /** A function run by {@code execute as} for 1024 entities, running 4 commands per entity */
+        WIDE_FAN_OUT,
+        /** A function calling 2048 distinct macro expansions of 2 commands */
+        MACRO_HEAVY
+    }
+
+    final byte[] kinds;
+    final int[] depths;
+    final Identifier[] functions;
+    final int size;
+
+    private SyntheticProgram(byte[] kinds, int[] depths, Identifier[] functions, int size) {
+        this.kinds = kinds;
+        this.depths = depths;
+        this.functions = functions;
+        this.size = size;
+    }
+
+    /**
+     * Builds the program of a shape.
+     *
+     * @param shape The shape of the function graph
+     * @return The program
+     */
+    public static SyntheticProgram of(Shape shape) {
+        var builder = new Builder();
+        var root = Identifier.of("bench", "root");
+        builder.enter(root, 1);
+        switch (shape) {
+            case STRAIGHT_LINE -> builder.commands(COMMANDS, 1);
+            case DEEP_RECURSION -> {
+                var recursive = Identifier.of("bench", "recursive");
+                int calls = 256;
+                int perCall = COMMANDS / calls;
+                // Each call runs half of its commands before the recursive call and half after
+                for (int depth = 2; depth < calls + 2; depth++) {
+                    builder.enter(recursive, depth);
+                    builder.commands(perCall / 2, depth);
+                }
+                for (int depth = calls + 1; depth >= 2; depth--) {
+                    builder.commands(perCall - perCall / 2, depth);
+                    builder.exit(depth);
+                }
+            }
+            case WIDE_FAN_OUT -> {
+                var perEntity = Identifier.of("bench", "per_entity");
+                int entities = 1024;
+                for (int i = 0; i < entities; i++) {
+                    builder.enter(perEntity, 2);
+                    builder.commands(COMMANDS / entities, 2);
+                    builder.exit(2);
+                }
+            }
+            case MACRO_HEAVY -> {
+                var macro = Identifier.of("bench", "macro");
+                int expansions = COMMANDS / 2;
+                for (int i = 0; i < expansions; i++) {
+                    // Each expansion of a macro is a distinct function instance with the identifier of the macro
+                    builder.enter(macro, 2);
+                    builder.commands(2, 2);
+                    builder.exit(2);
+                }
+            }
+        }
+        builder.exit(1);
+        return builder.build();
+    }
+
+    private static final class Builder {
+        private byte[] kinds = new byte[COMMANDS * 2];
+        private int[] depths = new int[COMMANDS * 2];
+        private Identifier[] functions = new Identifier[COMMANDS * 2];
+        private int size = 0;
+
+        void enter(Identifier function, int depth) {
+            add(ENTER, depth, function);
+        }
+
+        void exit(int depth) {
+            add(EXIT, depth, null);
+        }
+
+        void commands(int count, int depth) {
+            for (int i = 0; i < count; i++) {
+                add(COMMAND, depth, null);
+            }
+        }
+
+        private void add(byte kind, int depth, Identifier function) {
+            if (this.size == this.kinds.length) {
+                this.kinds = Arrays.copyOf(this.kinds, this.size * 2);
+                this.depths = Arrays.copyOf(this.depths, this.size * 2);
+                this.functions = Arrays.copyOf(this.functions, this.size * 2);
+            }
+            this.kinds[this.size] = kind;
+            this.depths[this.size] = depth;
+            this.functions[this.size] = function;
+            this.size++;
+        }
+
+        SyntheticProgram build() {
+            return new SyntheticProgram(this.kinds, this.depths, this.functions, this.size);
+        }
+    }
+}
@@ -3,21 +3,25 @@ package net.gunivers.sniffer;
 import net.fabricmc.api.ModInitializer;
 import net.fabricmc.fabric.api.command.v2.ArgumentTypeRegistry;
 import net.fabricmc.fabric.api.event.lifecycle.v1.ServerLifecycleEvents;
+import net.fabricmc.fabric.api.event.lifecycle.v1.ServerTickEvents;
 import net.fabricmc.fabric.api.resource.ResourceManagerHelper;
 import net.fabricmc.fabric.api.resource.SimpleSynchronousResourceReloadListener;
 import net.gunivers.sniffer.command.BreakPointCommand;
 import net.gunivers.sniffer.command.FunctionPathGetter;
 import net.gunivers.sniffer.config.DebuggerConfig;
 import net.gunivers.sniffer.dap.DebuggerState;
+import net.gunivers.sniffer.dap.LazyDapListener;
 import net.gunivers.sniffer.dap.ScopeManager;
-import net.gunivers.sniffer.dap.WebSocketServer;
+import net.gunivers.sniffer.dap.ServerMailbox;
+import net.gunivers.sniffer.dap.SocketDapServer;
 import net.gunivers.sniffer.debugcmd.*;
+import net.gunivers.sniffer.profiler.TickTimeline;
+import net.gunivers.sniffer.profiler.TraceRecorder;
 import net.gunivers.sniffer.watcher.WatcherManager;
 import net.minecraft.command.argument.serialize.ConstantArgumentSerializer;
 import net.minecraft.resource.ResourceManager;
 import net.minecraft.resource.ResourceType;
 import net.minecraft.util.Identifier;
-import org.glassfish.tyrus.server.Server;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -36,12 +40,6 @@ public class DatapackDebugger implements ModInitializer {
 	/** Main logger for the mod's logging system */
 	private static final Logger logger = LoggerFactory.getLogger("sniffer");
 	
-	/** 
-	 * WebSocket server instance for Debug Adapter Protocol communication.
-	 * This server allows IDE integration by implementing DAP over WebSockets.
-	 */
-	private static Server webSocketServer;
-
 	/**
 	 * Mod initialization method called on startup.
 	 * Configures server events and initializes debugging commands.
@@ -79,9 +77,30 @@ public class DatapackDebugger implements ModInitializer {
 		});
 
 		ServerLifecycleEvents.START_DATA_PACK_RELOAD.register((server, a) -> ScopeManager.get().clearFunctionPaths());
+		// Function paths may have changed, the breakpoint bitmaps must be recompiled
+		ServerLifecycleEvents.END_DATA_PACK_RELOAD.register((server, a, success) -> DebuggerState.get().invalidateBreakpoints());
+		// The functions matched by the attached timers may have changed too
+		ServerLifecycleEvents.END_DATA_PACK_RELOAD.register((server, a, success) -> JvmtimerAttachments.invalidate());
+		// The attached patterns are resolved again against the functions of the new server
+		ServerLifecycleEvents.SERVER_STARTED.register(server -> JvmtimerAttachments.invalidate());
+		
+		// Records of the trace are stamped with the tick they are executed in
+		ServerTickEvents.START_SERVER_TICK.register(server -> TraceRecorder.get().setTick(server.getTicks()));
+		// Run the execution control requests of the debugger left by the previous tick
+		ServerTickEvents.END_SERVER_TICK.register(server -> ServerMailbox.get().drain());
+		// Store the function cost of each tick in the timeline, if enabled
+		ServerLifecycleEvents.SERVER_STARTED.register(server -> TickTimeline.setEnabled(DebuggerConfig.getInstance().isTickTimeline()));
+		ServerTickEvents.END_SERVER_TICK.register(server -> {
+			if (TickTimeline.isEnabled()) TickTimeline.get().endTick(server.getTicks());
+		});
 		
-		// Start WebSocket server for DAP communication using configured settings
-		ServerLifecycleEvents.SERVER_STARTED.register(server -> WebSocketServer.launch().ifPresent(wss -> webSocketServer = wss));
+		// Start the DAP server with the configured transport, the WebSocket server only being started on the first connection
+		ServerLifecycleEvents.SERVER_STARTED.register(server -> {
+			switch (DebuggerConfig.getInstance().getTransport()) {
+				case WEBSOCKET -> LazyDapListener.launch();
+				case TCP, UNIX -> SocketDapServer.launch();
+			}
+		});
 		
 		// Handle server shutdown to clean up resources
 		ServerLifecycleEvents.SERVER_STOPPED.register(server -> {
@@ -102,10 +121,14 @@ public class DatapackDebugger implements ModInitializer {
 			
 			// Use the new clean WebSocket server shutdown method
 			try {
-				WebSocketServer.stopServer();
+				LazyDapListener.stop();
+				SocketDapServer.stopServer();
 			} catch (Exception e) {
-				logger.error("Error stopping WebSocket server", e);
+				logger.error("Error stopping DAP server", e);
 			}
+
+			// Fail the requests the stopped server did not run, including the ones posted by the closed clients
+			ServerMailbox.get().discard();
 		});
 		
 		ResourceManagerHelper.get(ResourceType.SERVER_DATA).registerReloadListener(new FunctionPathGetter());
@@ -130,6 +153,7 @@ public class DatapackDebugger implements ModInitializer {
 		AssertCommand.onInitialize();
 		JvmtimerCommand.onInitialize();
 		WatchCommand.onInitialize();
+		SnifferCommand.onInitialize();
 
 		//Directory watcher
 		ServerLifecycleEvents.SERVER_STOPPED.register(server -> {
@@ -0,0 +1,245 @@
+package net.gunivers.sniffer.bench;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.SplittableRandom;
+
+/**
+ * Generator of synthetic datapacks, to benchmark and load test the debugger on large and reproducible inputs.
+ * It only depends on the JDK, so it is run both by the {@code /sniffer bench generate} command
+ * and by the {@code generateBenchDatapack} Gradle task:
+ * <pre>
+ * ./gradlew generateBenchDatapack -PbenchArgs="--functions=5000 --depth=16 --macro-ratio=0.5"
+ * </pre>
+ * The functions are laid out in columns of {@code depth} functions, each function calling the next one of its column,
+ * so running {@code <namespace>:main} calls every function once through call chains of the given depth,
+ * then calls the function tag {@code #<namespace>:fanout}.
+ * <p>
+ * The pack does not contain any {@code breakpoint} command, which would freeze the server. Instead,
+ * the lines drawn as breakpoints are listed by function file in {@code breakpoints.json}, at the root of the pack,
+ * to be set through the debug adapter. The first line of each function is a comment, on which a breakpoint
+ * can be set to be tested by every command of the function without ever being hit.
+ *
+ * @author theogiraudet
+ */
+public final class DatapackGenerator {
+
+    /** Data pack format of Minecraft 1.21.10 */
+    private static final int PACK_FORMAT = 88;
+
+    /**
+     * The parameters of a generated datapack.
+     *
+     * @param namespace The namespace of the functions
+     * @param functions The number of functions, main and load excluded
+     * @param depth The length of the call chains
+     * @param linesPerFunction The number of lines of each function
+     * @param macroRatio The share of macro functions, between 0 and 1
+     * @param breakpointDensity The share of lines drawn as breakpoints, between 0 and 1
+     * @param tagFanOut The number of functions of the {@code fanout} function tag
+     * @param seed The seed of the random draws, the same parameters always generating the same pack
+     */
+    public record Parameters(String namespace, int functions, int depth, int linesPerFunction,
+                             double macroRatio, double breakpointDensity, int tagFanOut, long seed) {
+
+        public static final Parameters DEFAULT = new Parameters("bench", 1000, 8, 20, 0.2, 0.01, 16, 0);
+
+        public Parameters {
+            if (!namespace.matches("[a-z0-9_.-]+")) {
+                throw new IllegalArgumentException("Invalid namespace: " + namespace);
+            }
+            if (functions < 1 || depth < 1 || depth > functions || linesPerFunction < 1 || tagFanOut < 0) {
+                throw new IllegalArgumentException("Expected functions >= 1, 1 <= depth <= functions, lines >= 1 and fan-out >= 0");
+            }
+            if (macroRatio < 0 || macroRatio > 1 || breakpointDensity < 0 || breakpointDensity > 1) {
+                throw new IllegalArgumentException("Expected ratios between 0 and 1");
+            }
+        }
+    }
+
+    /**
+     * The summary of a generated datapack.
+     *
+     * @param directory The directory of the datapack
+     * @param functions The number of generated functions
+     * @param lines The number of generated lines
+     * @param breakpoints The number of lines drawn as breakpoints
+     */
+    public record Result(Path directory, int functions, int lines, int breakpoints) {}
+
+    private DatapackGenerator() {}
+
+    public static void main(String[] args) throws IOException {
+        var output = Path.of("bench-datapack");
+        var defaults = Parameters.DEFAULT;
+        String namespace = defaults.namespace();
+        int functions = defaults.functions();
+        int depth = defaults.depth();
+        int lines = defaults.linesPerFunction();
+        double macroRatio = defaults.macroRatio();
+        double breakpointDensity = defaults.breakpointDensity();
+        int tagFanOut = defaults.tagFanOut();
+        long seed = defaults.seed();
+        // The last occurrence of an argument wins
+        for (var arg : args) {
+            int separator = arg.indexOf('=');
+            if (!arg.startsWith("--") || separator < 0) {
+                System.err.println("Expected --name=value, got " + arg);
+                System.exit(1);
+            }
+            var value = arg.substring(separator + 1);
+            switch (arg.substring(2, separator)) {
+                case "output" -> output = Path.of(value);
+                case "namespace" -> namespace = value;
+                case "functions" -> functions = Integer.parseInt(value);
+                case "depth" -> depth = Integer.parseInt(value);
+                case "lines" -> lines = Integer.parseInt(value);
+                case "macro-ratio" -> macroRatio = Double.parseDouble(value);
+                case "breakpoint-density" -> breakpointDensity = Double.parseDouble(value);
+                case "tag-fan-out" -> tagFanOut = Integer.parseInt(value);
+                case "seed" -> seed = Long.parseLong(value);
+                default -> {
+                    System.err.println("Unknown argument " + arg);
+                    System.exit(1);
+                }
+            }
+        }
+        var result = generate(output, new Parameters(namespace, functions, depth, lines, macroRatio, breakpointDensity, tagFanOut, seed));
+        System.out.printf(Locale.ROOT, "Generated %d functions (%d lines, %d breakpoints) in %s%n",
+                result.functions(), result.lines(), result.breakpoints(), result.directory().toAbsolutePath());
+    }
+
+    /**
+     * Generates a datapack. Existing files are overwritten.
+     *
+     * @param directory The directory of the datapack, created if needed
+     * @param parameters The parameters of the datapack
+     * @return The summary of the generated datapack
+     * @throws IOException If a file cannot be written
+     */
+    public static Result generate(Path directory, Parameters parameters) throws IOException {
+        var random = new SplittableRandom(parameters.seed());
+        var namespace = parameters.namespace();
+        var functionDirectory = directory.resolve("data").resolve(namespace).resolve("function");
+        Files.createDirectories(functionDirectory);
+
+        Files.writeString(directory.resolve("pack.mcmeta"), """
+                {
+                  "pack": {
+                    "description": "Sniffer synthetic benchmark datapack",
+                    "pack_format": %d,
+                    "min_format": %d,
+                    "max_format": %d
+                  }
+                }
+                """.formatted(PACK_FORMAT, PACK_FORMAT, PACK_FORMAT));
+
+        int count = parameters.functions();
+        int columns = (count + parameters.depth() - 1) / parameters.depth();
+        var macros = new boolean[count];
+        for (int i = 0; i < count; i++) {
+            macros[i] = random.nextDouble() < parameters.macroRatio();
+        }
+
+        var breakpoints = new LinkedHashMap<String, List<Integer>>();
+        int lines = 0;
+        for (int i = 0; i < count; i++) {
+            int child = i + columns;
+            var body = functionBody(parameters, i, macros[i], child < count ? call(namespace, child, macros[child]) : null);
+            var file = "f" + i + ".mcfunction";
+            Files.write(functionDirectory.resolve(file), body);
+            lines += body.size() - 1;
+
+            var functionBreakpoints = new ArrayList<Integer>();
+            // The comment of the first line is never drawn
+            for (int line = 1; line < body.size(); line++) {
+                if (random.nextDouble() < parameters.breakpointDensity()) {
+                    functionBreakpoints.add(line + 1);
+                }
+            }
+            if (!functionBreakpoints.isEmpty()) {
+                breakpoints.put("data/" + namespace + "/function/" + file, functionBreakpoints);
+            }
+        }
+
+        // The heads of the columns start the call chains
+        var main = new ArrayList<String>();
+        for (int i = 0; i < Math.min(columns, count); i++) {
+            main.add(call(namespace, i, macros[i]));
+        }
+        main.add("function #" + namespace + ":fanout");
+        Files.write(functionDirectory.resolve("main.mcfunction"), main);
+        Files.writeString(functionDirectory.resolve("load.mcfunction"), "scoreboard objectives add " + namespace + " dummy\n");
+
+        var tagDirectory = directory.resolve("data").resolve(namespace).resolve("tags").resolve("function");
+        Files.createDirectories(tagDirectory);
+        var fanOut = new ArrayList<String>();
+        for (int i = 0; i < parameters.tagFanOut(); i++) {
+            // Only functions without arguments can be called through a tag
+            int function = random.nextInt(count);
+            if (!macros[function]) {
+                fanOut.add('"' + namespace + ":f" + function + '"');
+            }
+        }
+        Files.writeString(tagDirectory.resolve("fanout.json"), tag(fanOut));
+
+        var loadDirectory = directory.resolve("data").resolve("minecraft").resolve("tags").resolve("function");
+        Files.createDirectories(loadDirectory);
+        Files.writeString(loadDirectory.resolve("load.json"), tag(List.of('"' + namespace + ":load\"")));
+
+        Files.writeString(directory.resolve("breakpoints.json"), breakpointsJson(breakpoints));
+        int breakpointCount = breakpoints.values().stream().mapToInt(List::size).sum();
+        return new Result(directory, count, lines, breakpointCount);
+    }
+
+    /**
+     * Generates the lines of a function, mixing scoreboard and storage operations, after a comment line.
+     * The call to the next function of the column is placed in the middle of the function.
+     */
+    private static List<String> functionBody(Parameters parameters, int index, boolean macro, String childCall) {
+        var namespace = parameters.namespace();
+        var body = new ArrayList<String>(parameters.linesPerFunction() + 1);
+        body.add("# " + namespace + ":f" + index + ", generated by Sniffer");
+        for (int line = 0; line < parameters.linesPerFunction(); line++) {
+            if (childCall != null && line == parameters.linesPerFunction() / 2) {
+                body.add(childCall);
+                continue;
+            }
+            if (macro && line % 2 == 0) {
+                body.add("$scoreboard players set #m$(id) " + namespace + " $(id)");
+                continue;
+            }
+            body.add(switch (line % 4) {
+                case 0 -> "scoreboard players add #f" + index + " " + namespace + " 1";
+                case 1 -> "data modify storage " + namespace + ":data f" + index + " set value " + line;
+                case 2 -> "execute if score #f" + index + " " + namespace + " matches 1.. run scoreboard players add #total " + namespace + " 1";
+                default -> "scoreboard players operation #total " + namespace + " += #f" + index + " " + namespace;
+            });
+        }
+        return body;
+    }
+
+    private static String call(String namespace, int function, boolean macro) {
+        return "function " + namespace + ":f" + function + (macro ? " {id:" + function + "}" : "");
+    }
+
+    private static String tag(List<String> values) {
+        return "{\n  \"values\": [" + (values.isEmpty() ? "" : "\n    " + String.join(",\n    ", values) + "\n  ") + "]\n}\n";
+    }
+
+    private static String breakpointsJson(Map<String, List<Integer>> breakpoints) {
+        var json = new StringBuilder("{");
+        var separator = "\n";
+        for (var entry : breakpoints.entrySet()) {
+            json.append(separator).append("  \"").append(entry.getKey()).append("\": ").append(entry.getValue());
+            separator = ",\n";
+        }
+        return json.append(breakpoints.isEmpty() ? "}\n" : "\n}\n").toString();
+    }
+}
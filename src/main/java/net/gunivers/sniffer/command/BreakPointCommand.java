@@ -215,6 +215,7 @@ public class BreakPointCommand {
         stepType = StepType.STEP_IN;
         stepDepth = -1;
         storedCommandExecutionContext.clear();
+        DebuggerState.detachIfIdle();
     }
 
     /**
@@ -279,6 +280,8 @@ public class BreakPointCommand {
                 LOGGER.error(e.toString());
             }
         }
+        // Without any client, there is no reason to keep tracking scopes once the execution is resumed
+        DebuggerState.detachIfIdle();
     }
 
     /**
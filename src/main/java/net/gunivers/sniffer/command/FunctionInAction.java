@@ -1,26 +1,25 @@
 package net.gunivers.sniffer.command;
 
-import com.mojang.logging.LogUtils;
-import net.gunivers.sniffer.dap.ScopeManager;
-import net.gunivers.sniffer.util.ReflectUtil;
+import net.gunivers.sniffer.debugcmd.JvmtimerAttachments;
+import net.gunivers.sniffer.duck.ExpandedMacroDuck;
+import net.gunivers.sniffer.duck.FrameDuck;
+import net.gunivers.sniffer.profiler.FunctionProfiler;
+import net.gunivers.sniffer.profiler.TickTimeline;
+import net.gunivers.sniffer.profiler.TraceRecorder;
 import net.minecraft.command.CommandExecutionContext;
 import net.minecraft.command.Frame;
 import net.minecraft.command.SourcedCommandAction;
-import net.minecraft.nbt.NbtCompound;
 import net.minecraft.server.command.AbstractServerCommandSource;
 import net.minecraft.server.function.CommandFunction;
 import net.minecraft.server.function.ExpandedMacro;
-import net.minecraft.server.function.Macro;
-import net.minecraft.server.function.Procedure;
-import org.slf4j.Logger;
 
 import static net.gunivers.sniffer.command.StepType.isStepOut;
 import static net.gunivers.sniffer.util.Utils.getId;
 
 /**
  * Action handler for when a function is entered during debugging.
- * This class manages the function call stack by pushing the current function
- * and its source to the stack when a function is called.
+ * This class records the source executing the function on its frame,
+ * so that the call stack can be rebuilt from the command queue when the execution is paused.
  *
  * @param <T> The type of command source being used
  *
@@ -29,12 +28,9 @@ import static net.gunivers.sniffer.util.Utils.getId;
  */
 public class FunctionInAction<T extends AbstractServerCommandSource<T>> implements SourcedCommandAction<T> {
 
-    private final static Logger LOGGER = LogUtils.getLogger();
-
     /** 
      * The function being entered.
-     * This reference stores the Minecraft function that is about to be executed
-     * and is used to create a new debugging scope with the proper function ID.
+     * This reference stores the Minecraft function that is about to be executed.
      */
     CommandFunction<T> function;
 
@@ -48,7 +44,7 @@ public class FunctionInAction<T extends AbstractServerCommandSource<T>> implemen
 
     /**
      * Executes the function entry action.
-     * Pushes the current function and its source to the stack for debugging purposes.
+     * Saves the source executing the function in the current frame for debugging purposes.
      *
      * @param source The command source executing the function
      * @param context The command execution context
@@ -56,25 +52,20 @@ public class FunctionInAction<T extends AbstractServerCommandSource<T>> implemen
      */
     @Override
     public void execute(T source, CommandExecutionContext<T> context, Frame frame){
+        // The executor is kept on the frame, the scope is only built from it when the execution is paused
+        ((FrameDuck) (Object) frame).setExecutor(source);
+        var id = function instanceof ExpandedMacro<T> macro ? getId(macro) : function.id();
+        if(TickTimeline.isEnabled()) TickTimeline.get().enterFunction(id, frame.depth());
+        if(FunctionProfiler.isRunning()) FunctionProfiler.get().enterFunction(id, frame.depth());
+        if(TraceRecorder.isRecording()) TraceRecorder.get().enterFunction(id, frame.depth(), source);
+        if(JvmtimerAttachments.isActive() && function instanceof ExpandedMacroDuck duck) {
+            var timer = duck.getAttachedTimer();
+            if(timer != null) timer.start();
+        }
         // Each time we are going into a deeper scope, we want to decrement of one to not skip the mustStop evaluation at the first command
         // We must do it here since the decrementation in FixCommandActionMixin is not called when a mcfunction is called
         if(BreakPointCommand.isDebugging && BreakPointCommand.moveSteps > 0 && !isStepOut()){
             BreakPointCommand.moveSteps --;
         }
-        var id = function.id();
-        if(function instanceof ExpandedMacro<T> macro) {
-            id = getId(macro);
-        }
-        if(ReflectUtil.getT(function, "originalMacro", Macro.class).onFailure(LOGGER::error).getDataOrElse(null) != null){
-            //if originalMacro is not null, we are in a macro call, so we need to get the macro arguments and the original macro.
-            var function = ReflectUtil.getT(frame, "function", Procedure.class).onFailure(LOGGER::error).getDataOrElse(null);
-            if(function == null) return;
-            var macroVariables = ReflectUtil.getT(function, "arguments", NbtCompound.class).onFailure(LOGGER::error).getDataOrElse(null);
-            ScopeManager.get().newScope(id.toString(), source, macroVariables);
-        }else{
-            //otherwise it is a regular function call, so we just create a new scope with the function id without getting the macro arguments.
-            ScopeManager.get().newScope(id.toString(), source);
-        }
-
     }
 }
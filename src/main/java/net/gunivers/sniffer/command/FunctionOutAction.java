@@ -1,18 +1,21 @@
 package net.gunivers.sniffer.command;
 
+import net.gunivers.sniffer.debugcmd.JvmtimerAttachments;
+import net.gunivers.sniffer.duck.ExpandedMacroDuck;
+import net.gunivers.sniffer.profiler.FunctionProfiler;
+import net.gunivers.sniffer.profiler.TickTimeline;
+import net.gunivers.sniffer.profiler.TraceRecorder;
 import net.minecraft.command.CommandExecutionContext;
 import net.minecraft.command.Frame;
 import net.minecraft.command.SourcedCommandAction;
 import net.minecraft.server.command.AbstractServerCommandSource;
 import net.minecraft.server.function.CommandFunction;
-import net.gunivers.sniffer.dap.ScopeManager;
 
 import static net.gunivers.sniffer.command.StepType.isStepOut;
 
 /**
  * Action handler for when a function is exited during debugging.
- * This class manages the function call stack by popping the current function
- * and its source from the stack when a function returns.
+ * This class updates the stepping state when a function returns.
  *
  * @param <T> The type of command source being used
  *
@@ -24,7 +27,7 @@ public class FunctionOutAction<T extends AbstractServerCommandSource<T>> impleme
     /** 
      * The function being exited.
      * This reference is kept to identify which Minecraft function is being terminated
-     * and is used for debug information and scope management.
+     * and is used for debug information.
      */
     CommandFunction<T> function;
 
@@ -38,7 +41,7 @@ public class FunctionOutAction<T extends AbstractServerCommandSource<T>> impleme
 
     /**
      * Executes the function exit action.
-     * Pops the current function and its source from the stack for debugging purposes.
+     * Counts the step when stepping out of the function and closes the function in the profilers.
      *
      * @param source The command source executing the function
      * @param context The command execution context
@@ -46,7 +49,13 @@ public class FunctionOutAction<T extends AbstractServerCommandSource<T>> impleme
      */
     @Override
     public void execute(T source, CommandExecutionContext<T> context, Frame frame) {
-        ScopeManager.get().unscope();
+        if(TickTimeline.isEnabled()) TickTimeline.get().exitFunction(frame.depth());
+        if(FunctionProfiler.isRunning()) FunctionProfiler.get().exitFunction(frame.depth());
+        if(TraceRecorder.isRecording()) TraceRecorder.get().exitFunction(frame.depth());
+        if(JvmtimerAttachments.isActive() && function instanceof ExpandedMacroDuck duck) {
+            var timer = duck.getAttachedTimer();
+            if(timer != null) timer.end();
+        }
         // BreakPointCommand.stepDepth - 1 because we only want to decrement if we go higher than the stepDepth
         if(BreakPointCommand.isDebugging && BreakPointCommand.moveSteps > 0 && isStepOut() && frame.depth() - 1 <= BreakPointCommand.stepDepth - 1) BreakPointCommand.moveSteps --;
     }
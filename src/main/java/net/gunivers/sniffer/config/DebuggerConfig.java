@@ -25,9 +25,26 @@ public class DebuggerConfig {
     
     private static DebuggerConfig instance;
     
+    /**
+     * The transport of the Debug Adapter Protocol messages.
+     */
+    public enum Transport {
+        /** WebSocket server, for the VS Code extension */
+        WEBSOCKET,
+        /** Raw TCP socket on the local interface, with the native framing of the protocol */
+        TCP,
+        /** Unix domain socket, with the native framing of the protocol */
+        UNIX
+    }
+
     // Default config values
     private int port = 25599;
     private String path = "dap";
+    private Transport transport = Transport.WEBSOCKET;
+    private String socketPath = "sniffer-dap.sock";
+    private int idleTimeout = 300;
+    private int previewLength = 120;
+    private boolean tickTimeline = false;
     
     /**
      * Gets the singleton instance of the configuration
@@ -109,7 +126,102 @@ public class DebuggerConfig {
     }
     
     /**
-     * Gets the port for the WebSocket server
+     * Gets the transport of the DAP server
+     *
+     * @return The transport
+     */
+    public Transport getTransport() {
+        return transport;
+    }
+
+    /**
+     * Sets the transport of the DAP server
+     *
+     * @param transport The transport
+     */
+    public void setTransport(Transport transport) {
+        this.transport = transport;
+        save();
+    }
+
+    /**
+     * Gets the file of the Unix domain socket
+     *
+     * @return The socket file, relative to the game directory
+     */
+    public String getSocketPath() {
+        return socketPath;
+    }
+
+    /**
+     * Sets the file of the Unix domain socket
+     *
+     * @param socketPath The socket file, relative to the game directory
+     */
+    public void setSocketPath(String socketPath) {
+        this.socketPath = socketPath;
+        save();
+    }
+
+    /**
+     * Gets the delay after which the WebSocket server is stopped once no debugger is connected
+     *
+     * @return The delay in seconds, 0 to never stop it
+     */
+    public int getIdleTimeout() {
+        return idleTimeout;
+    }
+
+    /**
+     * Sets the delay after which the WebSocket server is stopped once no debugger is connected
+     *
+     * @param idleTimeout The delay in seconds, 0 to never stop it
+     */
+    public void setIdleTimeout(int idleTimeout) {
+        this.idleTimeout = idleTimeout;
+        save();
+    }
+
+    /**
+     * Gets the maximum length of the value shown for an NBT variable
+     *
+     * @return The maximum number of characters of the preview
+     */
+    public int getPreviewLength() {
+        return previewLength;
+    }
+
+    /**
+     * Sets the maximum length of the value shown for an NBT variable
+     *
+     * @param previewLength The maximum number of characters of the preview
+     */
+    public void setPreviewLength(int previewLength) {
+        this.previewLength = previewLength;
+        save();
+    }
+
+    /**
+     * Gets whether the tick timeline records the function cost of the ticks
+     *
+     * @return true if the tick timeline is enabled
+     */
+    public boolean isTickTimeline() {
+        return tickTimeline;
+    }
+
+    /**
+     * Sets whether the tick timeline records the function cost of the ticks
+     *
+     * @param tickTimeline true to enable the tick timeline
+     */
+    public void setTickTimeline(boolean tickTimeline) {
+        this.tickTimeline = tickTimeline;
+        save();
+    }
+
+    /**
+     * Gets the port for the WebSocket or TCP server
      * 
      * @return The port number
      */
@@ -118,7 +230,7 @@ public class DebuggerConfig {
     }
     
     /**
-     * Sets the port for the WebSocket server
+     * Sets the port for the WebSocket or TCP server
      * 
      * @param port The port number
      */
@@ -1,12 +1,16 @@
 package net.gunivers.sniffer.dap;
 
 import net.gunivers.sniffer.command.StepType;
+import net.gunivers.sniffer.profiler.TickTimeline;
 import net.minecraft.server.command.ServerCommandSource;
 import net.minecraft.util.Identifier;
 import org.eclipse.lsp4j.debug.*;
 import org.eclipse.lsp4j.debug.Thread;
 import org.eclipse.lsp4j.debug.services.IDebugProtocolServer;
-import org.eclipse.lsp4j.debug.services.IDebugProtocolClient;
+import org.eclipse.lsp4j.jsonrpc.ResponseErrorException;
+import org.eclipse.lsp4j.jsonrpc.messages.ResponseError;
+import org.eclipse.lsp4j.jsonrpc.messages.ResponseErrorCode;
+import org.eclipse.lsp4j.jsonrpc.services.JsonRequest;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import net.gunivers.sniffer.command.BreakPointCommand;
@@ -14,6 +18,8 @@ import net.gunivers.sniffer.command.FunctionTextLoader;
 
 import java.util.*;
 import java.util.concurrent.CompletableFuture;
+import java.util.function.BooleanSupplier;
+import java.util.function.Consumer;
 
 import static net.gunivers.sniffer.util.Utils.addSnifferPrefix;
 import static net.gunivers.sniffer.command.BreakPointCommand.continueExec;
@@ -43,8 +49,17 @@ public class DapServer implements IDebugProtocolServer {
     private final DebuggerState debuggerState = DebuggerState.get();
     /** Manager for variable scopes during debugging */
     private final ScopeManager scopeManager = ScopeManager.get();
+    /** Journal of the paused states, to step back */
+    private final StepJournal stepJournal = StepJournal.get();
+    /** Mailbox running the execution control requests on the server thread */
+    private final ServerMailbox mailbox = ServerMailbox.get();
+    /** Default number of ticks returned by the tick timeline request */
+    private static final int DEFAULT_TIMELINE_COUNT = 200;
+
     /** The client connected to this debug server */
-    private IDebugProtocolClient client;
+    private SnifferDebugClient client;
+    /** Forwards the tick spikes to the client */
+    private final Consumer<TickTimeline.TickSample> tickSpikeListener = this::onTickSpike;
 
     /**
      * Creates a new DAP server instance and sets up the necessary event handlers.
@@ -54,6 +69,7 @@ public class DapServer implements IDebugProtocolServer {
         debuggerState.onStop(this::onStop);
         debuggerState.onContinue(this::onContinue);
         debuggerState.onShutdown(this::exit);
+        TickTimeline.get().addSpikeListener(tickSpikeListener);
     }
 
     // ===== Lifecycle Methods =====
@@ -68,6 +84,7 @@ public class DapServer implements IDebugProtocolServer {
 
         Capabilities capabilities = new Capabilities();
         capabilities.setSupportsConfigurationDoneRequest(true);
+        capabilities.setSupportsStepBack(true);
         // capabilities.setSupportsBreakpointLocationsRequest(true);
 
         LOGGER.debug("Sending capabilities response: {}", capabilities);
@@ -113,8 +130,7 @@ public class DapServer implements IDebugProtocolServer {
         LOGGER.debug("Disconnect request received with arguments: {}", args);
 
         sendMessageToAllPlayers(DISCONNECTED_MESSAGE);
-        continueExec(DebuggerState.get().getCommandSource());
-        return CompletableFuture.completedFuture(null);
+        return mailbox.run("disconnect", () -> continueExec(getCommandSource()));
     }
 
     /**
@@ -143,12 +159,15 @@ public class DapServer implements IDebugProtocolServer {
         }
 
         String path = args.getSource().getPath();
-        var state = debuggerState;
-        state.clearBreakpoints(path);
-
-        List<Breakpoint> breakpoints = new ArrayList<>(args.getBreakpoints().length);
-        for(SourceBreakpoint sourceBreakpoint : args.getBreakpoints()) {
-            breakpoints.add(createBreakpoint(path, sourceBreakpoint, state));
+        var sourceBreakpoints = args.getBreakpoints() != null ? args.getBreakpoints() : new SourceBreakpoint[0];
+        // Store the lines as 0-indexed (convert from 1-indexed)
+        var lines = Arrays.stream(sourceBreakpoints).mapToInt(sourceBreakpoint -> sourceBreakpoint.getLine() - 1).toArray();
+        // The breakpoints are only recompiled if this request changes the set of lines
+        var ids = debuggerState.setBreakpoints(path, lines);
+
+        List<Breakpoint> breakpoints = new ArrayList<>(sourceBreakpoints.length);
+        for(int i = 0; i < sourceBreakpoints.length; i++) {
+            breakpoints.add(createBreakpoint(sourceBreakpoints[i], ids.get(i)));
         }
 
         SetBreakpointsResponse response = new SetBreakpointsResponse();
@@ -161,10 +180,7 @@ public class DapServer implements IDebugProtocolServer {
     /**
      * Creates a DAP Breakpoint from a source breakpoint.
      */
-    private Breakpoint createBreakpoint(String path, SourceBreakpoint sourceBreakpoint, DebuggerState state) {
-        // Store the line as 0-indexed (convert from 1-indexed)
-        var uuidOpt = state.registerBreakpoint(path, sourceBreakpoint.getLine() - 1);
-
+    private Breakpoint createBreakpoint(SourceBreakpoint sourceBreakpoint, Optional<Integer> uuidOpt) {
         var dapBreakpoint = new Breakpoint();
         dapBreakpoint.setLine(sourceBreakpoint.getLine());
         dapBreakpoint.setVerified(uuidOpt.isPresent());
@@ -206,14 +222,7 @@ public class DapServer implements IDebugProtocolServer {
     public CompletableFuture<Void> next(NextArguments args) {
         LOGGER.debug("Next request received with arguments: {}", args);
 
-        try {
-            BreakPointCommand.stepType = StepType.STEP_OVER;
-            BreakPointCommand.step(1, getCommandSource());
-        } catch (Exception e) {
-            LOGGER.warn("Error during step over execution", e);
-        }
-
-        return CompletableFuture.completedFuture(null);
+        return step("next", StepType.STEP_OVER);
     }
 
     /**
@@ -223,14 +232,7 @@ public class DapServer implements IDebugProtocolServer {
     public CompletableFuture<Void> stepIn(StepInArguments args) {
         LOGGER.debug("StepIn request received with arguments: {}", args);
 
-        try {
-            BreakPointCommand.stepType = StepType.STEP_IN;
-            BreakPointCommand.step(1, getCommandSource());
-        } catch (Exception e) {
-            LOGGER.warn("Error during step in execution", e);
-        }
-
-        return CompletableFuture.completedFuture(null);
+        return step("stepIn", StepType.STEP_IN);
     }
 
     /**
@@ -240,14 +242,74 @@ public class DapServer implements IDebugProtocolServer {
     public CompletableFuture<Void> stepOut(StepOutArguments args) {
         LOGGER.debug("StepOut request received with arguments: {}", args);
 
-        try {
-            BreakPointCommand.stepType = StepType.STEP_OUT;
-            BreakPointCommand.step(1, getCommandSource());
-        } catch (Exception e) {
-            LOGGER.warn("Error during step out execution", e);
-        }
+        return step("stepOut", StepType.STEP_OUT);
+    }
 
-        return CompletableFuture.completedFuture(null);
+    /**
+     * Handles step back execution command.
+     * Shows the previous paused state from the journal, without running anything.
+     * Fails if the execution is not paused or the oldest state is already shown.
+     */
+    @Override
+    public CompletableFuture<Void> stepBack(StepBackArguments args) {
+        LOGGER.debug("StepBack request received with arguments: {}", args);
+
+        // The journal is only used on the server thread
+        return travel("stepBack", () -> stepJournal.stepBack(scopeManager));
+    }
+
+    /**
+     * Handles reverse continue execution command.
+     * Shows the previous paused state on a breakpoint from the journal, or the oldest one.
+     * Fails if the execution is not paused or the oldest state is already shown.
+     */
+    @Override
+    public CompletableFuture<Void> reverseContinue(ReverseContinueArguments args) {
+        LOGGER.debug("ReverseContinue request received with arguments: {}", args);
+
+        return travel("reverseContinue", () -> stepJournal.reverseContinue(scopeManager, debuggerState));
+    }
+
+    /**
+     * Moves back in the journal on the server thread, the client being told to show the new state only if it moved.
+     *
+     * @param type The request type
+     * @param move Moves the journal cursor, returning false if there is no older state
+     * @return A future failing if the execution is not paused or there is no older state
+     */
+    private CompletableFuture<Void> travel(String type, BooleanSupplier move) {
+        return mailbox.call(type, () -> {
+            if (!BreakPointCommand.isDebugging || !move.getAsBoolean()) {
+                return false;
+            }
+            debuggerState.stop("step");
+            return true;
+        }).thenAccept(moved -> {
+            if (!moved) {
+                throw new ResponseErrorException(new ResponseError(ResponseErrorCode.InvalidRequest,
+                        BreakPointCommand.isDebugging ? "No older state in the journal" : "The execution is not paused", null));
+            }
+        });
+    }
+
+    /**
+     * Steps the execution on the server thread.
+     * While a past state is shown, steps towards the present in the journal instead,
+     * the execution only going on once the present is reached again.
+     *
+     * @param type The request type
+     * @param stepType The kind of step
+     */
+    private CompletableFuture<Void> step(String type, StepType stepType) {
+        return mailbox.run(type, () -> {
+            if (stepJournal.isTimeTraveling()) {
+                stepJournal.stepForward(scopeManager);
+                debuggerState.stop("step");
+                return;
+            }
+            BreakPointCommand.stepType = stepType;
+            BreakPointCommand.step(1, getCommandSource());
+        });
     }
 
     /**
@@ -257,16 +319,12 @@ public class DapServer implements IDebugProtocolServer {
     public CompletableFuture<ContinueResponse> continue_(ContinueArguments args) {
         LOGGER.debug("Continue request received with arguments: {}", args);
 
-        try {
+        return mailbox.call("continue", () -> {
             continueExec(getCommandSource());
-        } catch (Exception e) {
-            LOGGER.warn( "Error during continue execution", e);
-        }
-
-        var continueResponse = new ContinueResponse();
-
-        LOGGER.debug("Sending Continue response: {}", continueResponse);
-        return CompletableFuture.completedFuture(continueResponse);
+            var continueResponse = new ContinueResponse();
+            LOGGER.debug("Sending Continue response: {}", continueResponse);
+            return continueResponse;
+        });
     }
 
     /**
@@ -303,14 +361,19 @@ public class DapServer implements IDebugProtocolServer {
     /**
      * Provides a stack trace for a given thread.
      * Maps Minecraft function call stack to DAP stack frames.
+     * The scopes are pooled and reused by the server thread, so the request is handled on the server thread.
      */
     @Override
     public CompletableFuture<StackTraceResponse> stackTrace(StackTraceArguments args) {
         LOGGER.debug("StackTrace request received with arguments: {}", args);
+        return debuggerState.getServer().submit(() -> createStackTraceResponse(args));
+    }
 
-        var startFrame = args.getStartFrame() != null ? args.getStartFrame() : DEFAULT_START_FRAME;
+    private StackTraceResponse createStackTraceResponse(StackTraceArguments args) {
+        var count = this.scopeManager.count();
+        var startFrame = Math.min(args.getStartFrame() != null ? args.getStartFrame() : DEFAULT_START_FRAME, count);
         var maxLevels = args.getLevels() != null ? args.getLevels() : DEFAULT_MAX_LEVELS;
-        var endFrame = Math.min(startFrame + maxLevels, ScopeManager.get().count());
+        var endFrame = Math.min(startFrame + maxLevels, count);
 
         var frames = buildStackFrames(startFrame, endFrame);
         updateHeadFrame(frames);
@@ -320,7 +383,7 @@ public class DapServer implements IDebugProtocolServer {
         response.setTotalFrames(frames.size());
 
         LOGGER.debug("Sending StackTrace response: {}", response);
-        return CompletableFuture.completedFuture(response);
+        return response;
     }
 
     @Override
@@ -404,18 +467,24 @@ public class DapServer implements IDebugProtocolServer {
 
     /**
      * Provides variable scopes for a given stack scope.
-     * Currently returns empty scopes.
+     * Returns the variables of the function, the scoreboard and, while a past state is shown, the history.
+     * The root variables are issued references from the game state, so the request is handled on the server thread.
      */
     @Override
     public CompletableFuture<ScopesResponse> scopes(ScopesArguments args) {
         LOGGER.debug("Scopes request received with arguments: {}", args);
+        return debuggerState.getServer().submit(() -> createScopesResponse(args));
+    }
 
+    private ScopesResponse createScopesResponse(ScopesArguments args) {
         var response = new ScopesResponse();
 
+        var scopes = new ArrayList<Scope>();
         var localScope = new Scope();
         localScope.setName("Function");
         localScope.setLine(0);
         localScope.setPresentationHint("locals");
+        scopes.add(localScope);
 
         if(scopeManager.count() > 0) {
             var scopeOpt = scopeManager.getScope(args.getFrameId());
@@ -425,35 +494,89 @@ public class DapServer implements IDebugProtocolServer {
                 localScope.setSource(createSource(scope));
                 localScope.setNamedVariables(rootVariable.size());
                 localScope.setVariablesReference(scope.getId());
+                scopes.add(createScoreboardScope());
             }
         }
 
-        response.setScopes(new Scope[]{localScope});
+        // While a past state is shown, the scores and storages written since then are shown with their past value
+        var historyScope = createHistoryScope();
+        if (historyScope != null) {
+            scopes.add(historyScope);
+        }
+        response.setScopes(scopes.toArray(Scope[]::new));
 
         LOGGER.debug("Sending Scopes response: {}", response);
-        return CompletableFuture.completedFuture(response);
+        return response;
+    }
+
+    /**
+     * Creates the scope of the scoreboard, its objectives and holders being only listed when the client expands them.
+     *
+     * @return The scope
+     */
+    private Scope createScoreboardScope() {
+        var scoreboard = scopeManager.getScoreboardVariable(debuggerState.getServer());
+        var scoreboardScope = new Scope();
+        scoreboardScope.setName("Scoreboard");
+        scoreboardScope.setVariablesReference(scoreboard.id());
+        return scoreboardScope;
     }
 
+    /**
+     * Creates the scope of the values written since the shown past state.
+     *
+     * @return The scope, or null if the present is shown
+     */
+    private Scope createHistoryScope() {
+        if (!stepJournal.isTimeTraveling()) {
+            return null;
+        }
+        var variables = scopeManager.registerVariables(startId -> stepJournal.convertHistory(debuggerState.getServer(), startId));
+        // The root variable has the first ID
+        var root = variables.values().stream().min(Comparator.comparingInt(DebuggerVariable::id));
+        if (root.isEmpty()) {
+            return null;
+        }
+        var historyScope = new Scope();
+        historyScope.setName("History (" + stepJournal.getCursor() + " steps back)");
+        historyScope.setNamedVariables(root.get().children().size());
+        historyScope.setVariablesReference(root.get().id());
+        return historyScope;
+    }
+
+    /**
+     * Provides the children of a variable or a scope.
+     * The children are created on demand from the game state, so the request is handled on the server thread.
+     */
     @Override
     public CompletableFuture<VariablesResponse> variables(VariablesArguments args) {
         LOGGER.debug("Variables request received with arguments: {}", args);
+        return debuggerState.getServer().submit(() -> createVariablesResponse(args));
+    }
 
-        var dapVariables = new LinkedList<Variable>();
+    private VariablesResponse createVariablesResponse(VariablesArguments args) {
+        var dapVariables = new ArrayList<Variable>();
         var variableOpt = scopeManager.getVariables(args.getVariablesReference());
-        if(variableOpt.isPresent()) {
+        if(variableOpt.isPresent() && matchesFilter(variableOpt.get(), args.getFilter())) {
+            // The children of lists and arrays are created on demand, only the requested range is read
             var variables = variableOpt.get();
             var start = args.getStart() == null ? 0 : args.getStart();
-            var count = args.getCount() == null ? variables.size() : args.getCount();
-            var min = start >= 0 && start < variables.size() ? start : 0;
-            var max = Math.min(min + count, variables.size());
+            var count = args.getCount() == null || args.getCount() <= 0 ? variables.size() : args.getCount();
+            var min = Math.clamp(start, 0, variables.size());
+            var max = (int) Math.min((long) min + count, variables.size());
             variables = variables.subList(min, max);
 
             for(var variable: variables) {
                 var var = new Variable();
                 var.setName(variable.name());
                 var.setValue(variable.value());
-                var.setVariablesReference(!variable.children().isEmpty() ? variable.id() : 0);
-                var.setIndexedVariables(variable.children().size());
+                var.setVariablesReference(variable.isExpandable() ? variable.id() : 0);
+                // The holders of an objective are only counted once the client expands it, then requesting all of them
+                if (variable.isCountable() && variable.hasIndexedChildren()) {
+                    var.setIndexedVariables(variable.children().size());
+                } else if (variable.isCountable()) {
+                    var.setNamedVariables(variable.children().size());
+                }
                 var display = new VariablePresentationHint();
                 display.setKind("data");
                 var.setPresentationHint(display);
@@ -462,9 +585,60 @@ public class DapServer implements IDebugProtocolServer {
         }
 
         var response = new VariablesResponse();
-        response.setVariables(dapVariables.stream().sorted(Comparator.comparingInt(Variable::getVariablesReference)).toArray(Variable[]::new));
+        response.setVariables(dapVariables.toArray(Variable[]::new));
         LOGGER.debug("Sending Variables response: {}", response);
-        return CompletableFuture.completedFuture(response);
+        return response;
+    }
+
+    /**
+     * Whether the children of a variable match the filter of a variables request.
+     * The children of lists and arrays are indexed, the other ones are named.
+     */
+    private static boolean matchesFilter(List<DebuggerVariable> children, VariablesArgumentsFilter filter) {
+        if (filter == null) {
+            return true;
+        }
+        return DebuggerVariable.isIndexed(children) == (filter == VariablesArgumentsFilter.INDEXED);
+    }
+
+    // ===== Sniffer Requests =====
+
+    /**
+     * Handles the custom {@code sniffer/tickTimeline} request.
+     * Returns the most recent ticks of the timeline, the most recent first.
+     * The optional {@code count} argument limits the number of ticks.
+     */
+    @JsonRequest("sniffer/tickTimeline")
+    public CompletableFuture<TickSampleArguments[]> tickTimeline(Map<String, Object> args) {
+        LOGGER.debug("TickTimeline request received with arguments: {}", args);
+
+        int count = args != null && args.get("count") instanceof Number number ? number.intValue() : DEFAULT_TIMELINE_COUNT;
+        // The timeline is only written on the server thread, so it is read there too
+        return debuggerState.getServer().submit(() -> TickTimeline.get().samples(count).stream()
+                .map(TickSampleArguments::of)
+                .toArray(TickSampleArguments[]::new));
+    }
+
+    /**
+     * Handles the custom {@code sniffer/scoreboardFilter} request.
+     * Sets the text the holder names of the scoreboard scope must contain, the {@code filter} argument
+     * being missing or empty to show all the holders, then asks the client to request the variables again.
+     */
+    @JsonRequest("sniffer/scoreboardFilter")
+    public CompletableFuture<Void> scoreboardFilter(Map<String, Object> args) {
+        LOGGER.debug("ScoreboardFilter request received with arguments: {}", args);
+
+        var filter = args != null && args.get("filter") instanceof String string ? string : "";
+        return debuggerState.getServer().submit(() -> {
+            ScoreboardVariables.setHolderFilter(filter);
+            scopeManager.refreshScoreboardVariable();
+        }).thenRun(() -> {
+            if (client != null) {
+                var invalidated = new InvalidatedEventArguments();
+                invalidated.setAreas(new String[]{InvalidatedAreas.VARIABLES});
+                client.invalidated(invalidated);
+            }
+        });
     }
 
     // ===== Event Handlers =====
@@ -475,7 +649,7 @@ public class DapServer implements IDebugProtocolServer {
      * @param client The client to send events to
      * @throws IllegalArgumentException if client is null
      */
-    public void setClient(IDebugProtocolClient client) {
+    public void setClient(SnifferDebugClient client) {
         LOGGER.debug("Setting client: {}", client);
         
         if (client == null) {
@@ -530,11 +704,26 @@ public class DapServer implements IDebugProtocolServer {
         this.client.continued(continuedEvent);
     }
 
+    /**
+     * Callback handler for when a tick exceeds the spike threshold of the timeline.
+     * Notifies the connected DAP client.
+     */
+    public void onTickSpike(TickTimeline.TickSample sample) {
+        if (client == null) {
+            return;
+        }
+
+        var args = TickSampleArguments.of(sample);
+        LOGGER.debug("Sending tick spike event for tick {}", sample.tick());
+        this.client.tickSpike(args);
+    }
+
     /**
      * Notifies the client that the debugging session has ended.
      */
     public void exit() {
         LOGGER.debug("exit called");
+        TickTimeline.get().removeSpikeListener(tickSpikeListener);
         
         if (client == null) {
             LOGGER.warn("Cannot send exited event: client is null");
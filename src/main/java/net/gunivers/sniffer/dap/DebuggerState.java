@@ -1,7 +1,10 @@
 package net.gunivers.sniffer.dap;
 
+import net.gunivers.sniffer.command.BreakPointCommand;
 import net.minecraft.server.MinecraftServer;
 import net.minecraft.server.command.ServerCommandSource;
+import net.minecraft.util.Identifier;
+import net.minecraft.util.Pair;
 import org.apache.commons.io.FilenameUtils;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
@@ -11,6 +14,7 @@ import org.slf4j.LoggerFactory;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.*;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.function.BiConsumer;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
@@ -36,6 +40,29 @@ public class DebuggerState {
 
     /** Default thread ID used for DAP communication */
     public static final int DEFAULT_THREAD_ID = 1;
+
+    /** Shared empty bitmap for the functions without any breakpoint */
+    public static final long[] NO_BREAKPOINTS = new long[0];
+
+    /**
+     * Incremented each time the breakpoints, or the function paths they are resolved against, change.
+     * Each function compares it to the generation of its cached bitmap to know when it must be fetched again.
+     */
+    private static volatile int breakpointGeneration = 0;
+
+    /**
+     * Whether the debugger is detached, i.e. no client is connected and no breakpoint has been hit.
+     * While detached, commands run through the vanilla loop without checking breakpoints.
+     */
+    private static volatile boolean detached = true;
+
+    /** Number of debug clients currently connected */
+    private static final AtomicInteger connectedClients = new AtomicInteger();
+    /**
+     * Guards the transitions of {@link #detached}, so that a client connecting on a DAP thread while the server thread
+     * detaches the debugger cannot be left connected to a detached debugger.
+     */
+    private static final Object ATTACH_LOCK = new Object();
     
     /** Thread-safe singleton instance with lazy initialization */
     private static volatile DebuggerState singleton;
@@ -56,6 +83,8 @@ public class DebuggerState {
     private final AllBreakpoints breakpoints = new AllBreakpoints();
     /** Counter for generating unique breakpoint IDs */
     private int breakpointNextId = 0;
+    /** Breakpoint bitmaps compiled from {@link #breakpoints}, indexed by function identifier, or null if stale */
+    private Map<Identifier, long[]> compiledBreakpoints = null;
     
     /** Thread identifier for DAP communication */
     public final int THREAD_ID = DEFAULT_THREAD_ID;
@@ -63,6 +92,16 @@ public class DebuggerState {
     /** Flag indicating whether the debugger has been shut down */
     private boolean isShutdown = false;
 
+    /**
+     * The function and the index of the command the execution is paused on, so that this command does not hit
+     * its breakpoint again when resumed. The queue entry itself cannot be compared, since a function call
+     * re-enqueues the same entry for each of its commands.
+     */
+    private Object pausedFunction = null;
+    private int pausedIndex = -1;
+    /** Whether a breakpoint has been hit and the stop consumers must be notified once the execution is paused */
+    private boolean pendingBreakpointStop = false;
+
     /**
      * Private constructor to enforce singleton pattern.
      */
@@ -161,37 +200,93 @@ public class DebuggerState {
         }
 
         /**
-         * Clears all breakpoints for a mcpath.
+         * Replaces all the breakpoints of a mcpath by the given lines.
+         * Breakpoints already registered on one of these lines keep their ID.
          *
          * @param filePath The filesystem path to the mcpath
+         * @param lines The line numbers (0-indexed)
+         * @return For each line, an Optional containing the breakpoint ID if successful, empty otherwise,
+         *         and whether the set of breakpoint lines has changed
          */
-        public void clearBreakpoints(String filePath) {
+        public Pair<List<Optional<Integer>>, Boolean> replaceBreakpoints(String filePath, int[] lines) {
             if (filePath == null) {
-                LOGGER.warn("Attempted to clear breakpoints with null mcpath path");
-                return;
+                LOGGER.warn("Attempted to set breakpoints with null mcpath path");
+                return new Pair<>(Collections.nCopies(lines.length, Optional.empty()), false);
             }
-            
+            filePath = Paths.get(filePath).toString();
+            var key = Path.of(filePath);
+            var previous = breakpoints.remove(key);
 
-            breakpoints.remove(Path.of(filePath));
-            LOGGER.debug("Cleared all breakpoints for {}", filePath);
+            Optional<String> mcpathOpt = fileToMcPath(filePath);
+            if (mcpathOpt.isEmpty()) {
+                LOGGER.warn("Failed to set breakpoints in {} - Could not convert to MC path", filePath);
+                return new Pair<>(Collections.nCopies(lines.length, Optional.empty()), previous != null);
+            }
+
+            var funBreakpoints = new FunctionBreakpoints(mcpathOpt.get(), filePath);
+            var ids = new ArrayList<Optional<Integer>>(lines.length);
+            for (int line : lines) {
+                var breakpoint = previous != null ? previous.breakpoints.get(line) : null;
+                if (breakpoint == null) {
+                    breakpoint = new Breakpoint(breakpointNextId++, line);
+                }
+                funBreakpoints.breakpoints.put(line, breakpoint);
+                ids.add(Optional.of(breakpoint.id()));
+            }
+            if (!funBreakpoints.breakpoints.isEmpty()) {
+                breakpoints.put(key, funBreakpoints);
+            }
+
+            boolean changed = previous == null
+                    ? !funBreakpoints.breakpoints.isEmpty()
+                    : !previous.breakpoints.keySet().equals(funBreakpoints.breakpoints.keySet());
+            LOGGER.debug("Set {} breakpoints in {} (changed: {})", lines.length, mcpathOpt.get(), changed);
+            return new Pair<>(ids, changed);
         }
 
         /**
-         * Checks if a breakpoint exists at the specified location.
+         * Compiles the breakpoints into one line bitmap per function.
+         * Only the breakpoints set in the file a function has actually been loaded from are kept.
          *
-         * @param mcpath The Minecraft path of the function
-         * @param line The line number (0-indexed)
-         * @return true if a breakpoint exists at the location, false otherwise
+         * @return The breakpoint bitmaps indexed by function identifier
          */
-        public boolean contains(String mcpath, int line) {
-            if (mcpath == null) {
-                return false;
+        public Map<Identifier, long[]> compile() {
+            var compiled = new HashMap<Identifier, long[]>();
+            for (var funBreakpoints : breakpoints.values()) {
+                var loadedPath = scopeManager.getPath(funBreakpoints.functionMcPath).map(Path::of);
+                var id = Identifier.tryParse(funBreakpoints.functionMcPath);
+                if (id == null || loadedPath.isEmpty() || !loadedPath.get().equals(Path.of(funBreakpoints.getFunctionPath()))) {
+                    continue;
+                }
+                int maxLine = funBreakpoints.breakpoints.keySet().stream().mapToInt(Integer::intValue).max().orElse(-1);
+                if (maxLine < 0) {
+                    continue;
+                }
+                var bitmap = new long[(maxLine >>> 6) + 1];
+                for (int line : funBreakpoints.breakpoints.keySet()) {
+                    if (line >= 0) {
+                        bitmap[line >>> 6] |= 1L << line;
+                    }
+                }
+                compiled.put(id, bitmap);
+            }
+            return compiled;
+        }
+
+        /**
+         * Clears all breakpoints for a mcpath.
+         *
+         * @param filePath The filesystem path to the mcpath
+         */
+        public void clearBreakpoints(String filePath) {
+            if (filePath == null) {
+                LOGGER.warn("Attempted to clear breakpoints with null mcpath path");
+                return;
             }
+            
 
-            var path = scopeManager.getPath(mcpath);
-            return path.map(Path::of).map(breakpoints::get)
-                    .map(funBreakpoints -> funBreakpoints.breakpoints.containsKey(line))
-                    .orElse(false);
+            breakpoints.remove(Path.of(filePath));
+            LOGGER.debug("Cleared all breakpoints for {}", filePath);
         }
 
         /**
@@ -222,28 +317,137 @@ public class DebuggerState {
     }
 
     /**
-     * Checks if execution should stop at the specified location.
+     * Checks if execution should stop at a command where a breakpoint is set.
+     * The breakpoint itself must have been found beforehand with {@link #hasBreakpoint(long[], int)},
+     * so that nothing is computed here for the lines without breakpoint.
+     * The paused position is only skipped once, by the first check following the pause.
      *
-     * @param mcpath The Minecraft path of the function
-     * @param line The line number (0-indexed)
+     * @param function The function of the command about to be executed
+     * @param index The index of the command in its function
      * @return true if execution should stop, false otherwise
      */
-    public boolean mustStop(String mcpath, int line) {
-        // Only stop if there's a breakpoint at this location and we're not already stopped here
-        return breakpoints.contains(mcpath, line) && !isAtCurrentPosition(mcpath, line);
+    public boolean mustStop(Object function, int index) {
+        // Only stop if we're not resuming from this very command
+        boolean resumed = function == this.pausedFunction && index == this.pausedIndex;
+        this.pausedFunction = null;
+        this.pausedIndex = -1;
+        return !resumed;
     }
-    
+
     /**
-     * Checks if the specified location is the current execution position.
+     * Tests a line in a breakpoint bitmap.
      *
-     * @param file The Minecraft path of the function
-     * @param line The line number
-     * @return true if the location is the current position, false otherwise
+     * @param breakpointLines The breakpoint bitmap of a function
+     * @param line The line number (0-indexed)
+     * @return true if a breakpoint is set on this line, false otherwise
      */
-    private boolean isAtCurrentPosition(String file, int line) {
-        var functionName = this.scopeManager.getCurrentScope().map(ScopeManager.DebugScope::getFunction).orElse("");
-        var functionLine = this.scopeManager.getCurrentScope().map(ScopeManager.DebugScope::getLine).orElse(-1);
-        return file.equals(functionName) && line == functionLine;
+    public static boolean hasBreakpoint(long[] breakpointLines, int line) {
+        int word = line >>> 6;
+        return line >= 0 && word < breakpointLines.length && (breakpointLines[word] & (1L << line)) != 0;
+    }
+
+    /**
+     * Gets the current breakpoint generation.
+     *
+     * @return The generation, incremented each time the compiled breakpoints are invalidated
+     */
+    public static int getBreakpointGeneration() {
+        return breakpointGeneration;
+    }
+
+    /**
+     * Gets the breakpoint bitmap of a function, compiling the breakpoints if needed.
+     *
+     * @param function The identifier of the function
+     * @return The breakpoint bitmap of the function, or {@link #NO_BREAKPOINTS} if it has none
+     */
+    public long[] getBreakpointLines(Identifier function) {
+        synchronized (breakpoints) {
+            if (compiledBreakpoints == null) {
+                compiledBreakpoints = breakpoints.compile();
+                LOGGER.debug("Compiled breakpoints of {} functions", compiledBreakpoints.size());
+            }
+            return compiledBreakpoints.getOrDefault(function, NO_BREAKPOINTS);
+        }
+    }
+
+    /**
+     * Invalidates the compiled breakpoints.
+     * Must be called each time the breakpoints or the function paths change.
+     */
+    public void invalidateBreakpoints() {
+        synchronized (breakpoints) {
+            compiledBreakpoints = null;
+            breakpointGeneration++;
+        }
+    }
+
+    /**
+     * Checks if the debugger is detached.
+     * This method is called before each command, it must stay as cheap as a field read.
+     *
+     * @return true if commands must run without any debugging overhead, false otherwise
+     */
+    public static boolean isDetached() {
+        return detached;
+    }
+
+    /**
+     * Attaches the debugger, enabling breakpoints and stepping.
+     * Running command contexts switch to the debugging loop before their next command.
+     */
+    public static void attach() {
+        synchronized (ATTACH_LOCK) {
+            if (detached) {
+                detached = false;
+                LOGGER.debug("Debugger attached");
+            }
+        }
+    }
+
+    /**
+     * Detaches the debugger if no client is connected and execution is not paused.
+     */
+    public static void detachIfIdle() {
+        synchronized (ATTACH_LOCK) {
+            if (!detached && connectedClients.get() == 0 && !isDebugging) {
+                detached = true;
+                LOGGER.debug("Debugger detached");
+            }
+        }
+    }
+
+    /**
+     * Signals that a debug client has connected.
+     */
+    public void clientConnected() {
+        synchronized (ATTACH_LOCK) {
+            connectedClients.incrementAndGet();
+            attach();
+        }
+    }
+
+    /**
+     * Signals that a debug client has disconnected.
+     * The debugger is detached once the last client is gone and execution has been resumed.
+     */
+    public void clientDisconnected() {
+        synchronized (ATTACH_LOCK) {
+            connectedClients.updateAndGet(count -> Math.max(0, count - 1));
+            detachIfIdle();
+        }
+    }
+
+    /**
+     * Signals that the connection of a debug client is closed.
+     * Resumes the execution it paused and resets the debugging state. Must be called on the server thread.
+     */
+    public void clientClosed() {
+        clientDisconnected();
+        if (isDebugging) {
+            BreakPointCommand.continueExec(getCommandSource());
+        }
+        BreakPointCommand.clear();
     }
 
     /**
@@ -254,7 +458,29 @@ public class DebuggerState {
      * @return Optional containing the breakpoint ID if successful, empty otherwise
      */
     public Optional<Integer> registerBreakpoint(String file, int line) {
-        return breakpoints.addBreakpoint(file, line);
+        synchronized (breakpoints) {
+            var id = breakpoints.addBreakpoint(file, line);
+            invalidateBreakpoints();
+            return id;
+        }
+    }
+
+    /**
+     * Replaces all the breakpoints of a mcpath.
+     * The compiled breakpoints are only invalidated if the set of lines has changed.
+     *
+     * @param file The filesystem path to the mcpath
+     * @param lines The line numbers (0-indexed)
+     * @return For each line, an Optional containing the breakpoint ID if successful, empty otherwise
+     */
+    public List<Optional<Integer>> setBreakpoints(String file, int[] lines) {
+        synchronized (breakpoints) {
+            var result = breakpoints.replaceBreakpoints(file, lines);
+            if (result.getRight()) {
+                invalidateBreakpoints();
+            }
+            return result.getLeft();
+        }
     }
 
     /**
@@ -299,25 +525,48 @@ public class DebuggerState {
     /**
      * Triggers a breakpoint at the current execution position.
      * Freezes the server tick manager and enables debugging mode.
+     * The stop consumers are notified by {@link #onPaused(Object)}, once the execution is actually paused
+     * and the scope stack has been rebuilt.
      *
      * @param source The command source that triggered the breakpoint
      */
     public void triggerBreakpoint(@NotNull ServerCommandSource source) {
         try {
+            // A breakpoint has been hit, the debugger must be attached to pause the execution
+            attach();
             // Freeze the server to pause execution
             source.getServer().getTickManager().setFrozen(true);
-            
-            // Notify all stop consumers
-            notifyStopConsumersForCurrentPosition();
-            
+
             // Set debugging flag
             isDebugging = true;
+            pendingBreakpointStop = true;
 
-            LOGGER.debug("Breakpoint triggered at {}:{}", this.scopeManager.getCurrentScope().get().getFunction(), this.scopeManager.getCurrentScope().get().getLine());
+            LOGGER.debug("Breakpoint triggered");
         } catch (Exception e) {
             LOGGER.error("Error triggering breakpoint", e);
         }
     }
+
+    /**
+     * Called once the execution is paused and the scope stack has been rebuilt.
+     * The scope stack is captured by the {@link StepJournal}, then the stop consumers are notified
+     * if the pause is due to a breakpoint.
+     *
+     * @param function The function of the command the execution is paused on
+     * @param index The index of the command in its function
+     */
+    public void onPaused(Object function, int index) {
+        this.pausedFunction = function;
+        this.pausedIndex = index;
+        StepJournal.get().capture(this.scopeManager);
+        if (pendingBreakpointStop) {
+            pendingBreakpointStop = false;
+            notifyStopConsumersForCurrentPosition();
+            LOGGER.debug("Execution paused at {}:{}",
+                    this.scopeManager.getCurrentScope().map(ScopeManager.DebugScope::getFunction).orElse(""),
+                    this.scopeManager.getCurrentScope().map(ScopeManager.DebugScope::getLine).orElse(-1));
+        }
+    }
     
     /**
      * Notifies all stop consumers about a breakpoint at the current position.
@@ -359,6 +608,10 @@ public class DebuggerState {
      * Notifies all continue handlers.
      */
     public void continueExec() {
+        // The journal only covers a single pause
+        StepJournal.get().clear();
+        // The variable references are only valid during the pause
+        this.scopeManager.freeVariables();
         continueRunnable.forEach(runnable -> {
             try {
                 runnable.run();
@@ -376,7 +629,10 @@ public class DebuggerState {
      * @param file The filesystem path to the mcpath
      */
     public void clearBreakpoints(String file) {
-        breakpoints.clearBreakpoints(file);
+        synchronized (breakpoints) {
+            breakpoints.clearBreakpoints(file);
+            invalidateBreakpoints();
+        }
     }
 
     /**
@@ -459,7 +715,10 @@ public class DebuggerState {
             }
             
             // Clear all breakpoints and handlers
-            this.breakpoints.breakpoints.clear();
+            synchronized (breakpoints) {
+                this.breakpoints.breakpoints.clear();
+                invalidateBreakpoints();
+            }
             stopConsumers.clear();
             continueRunnable.clear();
             shutdownHandlers.clear();
@@ -485,14 +744,21 @@ public class DebuggerState {
         isShutdown = false;
         
         // Reset counters and collections
-        breakpointNextId = 0;
-        this.breakpoints.breakpoints.clear();
+        synchronized (breakpoints) {
+            breakpointNextId = 0;
+            this.breakpoints.breakpoints.clear();
+            invalidateBreakpoints();
+        }
         stopConsumers.clear();
         continueRunnable.clear();
         shutdownHandlers.clear();
         
         // Reset position information
         this.scopeManager.clear();
+        StepJournal.get().clear();
+        this.pausedFunction = null;
+        this.pausedIndex = -1;
+        this.pendingBreakpointStop = false;
         
         LOGGER.info("Debugger state reset complete");
     }
@@ -16,4 +16,42 @@ import java.util.List;
  * @author theogiraudet
  */
 public record DebuggerVariable(int id, String name, String value, List<DebuggerVariable> children, boolean isRoot) {
+
+    /**
+     * Whether the children of this variable are indexed, e.g. the elements of a list, rather than named.
+     *
+     * @return true if the children are indexed
+     */
+    public boolean hasIndexedChildren() {
+        return isIndexed(children);
+    }
+
+    /**
+     * Whether this variable can be expanded, without listing its children if they are deferred.
+     *
+     * @return true if the variable has children or may have some
+     */
+    public boolean isExpandable() {
+        return children instanceof DeferredVariableList list && !list.isListed() || !children.isEmpty();
+    }
+
+    /**
+     * Whether the number of children of this variable is known without listing them.
+     *
+     * @return true if the children can be counted
+     */
+    public boolean isCountable() {
+        return !(children instanceof DeferredVariableList list) || list.isListed();
+    }
+
+    /**
+     * Whether a list of children is indexed, e.g. the elements of a list, rather than named.
+     *
+     * @param children The children of a variable
+     * @return true if the children are indexed
+     */
+    public static boolean isIndexed(List<DebuggerVariable> children) {
+        return children instanceof LazyVariableList list && list.isIndexed()
+                || children instanceof DeferredVariableList deferred && deferred.isIndexed();
+    }
 }
@@ -0,0 +1,71 @@
+package net.gunivers.sniffer.dap;
+
+import java.util.AbstractList;
+import java.util.List;
+import java.util.function.Supplier;
+
+/**
+ * Children of a debugger variable that are only listed when the client expands the variable,
+ * for the variables whose children cannot even be counted cheaply, e.g. the holders of an objective.
+ * <p>
+ * Until the list is expanded, the variable is shown as expandable without any child count.
+ *
+ * @author theogiraudet
+ */
+public class DeferredVariableList extends AbstractList<DebuggerVariable> {
+
+    private final boolean indexed;
+    private final Supplier<List<DebuggerVariable>> supplier;
+    private List<DebuggerVariable> children;
+
+    /**
+     * Creates a list of children listed on demand.
+     *
+     * @param indexed Whether the children are indexed rather than named
+     * @param supplier Lists the children, only called once
+     */
+    public DeferredVariableList(boolean indexed, Supplier<List<DebuggerVariable>> supplier) {
+        this.indexed = indexed;
+        this.supplier = supplier;
+    }
+
+    /**
+     * Whether the children are indexed, so that the client can request them by range.
+     *
+     * @return true if the children are indexed, false if they are named
+     */
+    public boolean isIndexed() {
+        return indexed;
+    }
+
+    /**
+     * Whether the children are listed yet.
+     *
+     * @return true if the children are listed
+     */
+    public boolean isListed() {
+        return children != null;
+    }
+
+    private List<DebuggerVariable> children() {
+        if (children == null) {
+            children = supplier.get();
+        }
+        return children;
+    }
+
+    @Override
+    public DebuggerVariable get(int index) {
+        return children().get(index);
+    }
+
+    @Override
+    public int size() {
+        return children().size();
+    }
+
+    @Override
+    public List<DebuggerVariable> subList(int fromIndex, int toIndex) {
+        return children().subList(fromIndex, toIndex);
+    }
+}
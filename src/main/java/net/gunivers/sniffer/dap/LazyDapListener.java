@@ -0,0 +1,163 @@
+package net.gunivers.sniffer.dap;
+
+import net.gunivers.sniffer.config.DebuggerConfig;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ServerSocketChannel;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Lightweight listener on the DAP port, starting the {@link WebSocketServer} on the first connection only.
+ * <p>
+ * Most server boots never see a debugger, so the Tyrus engine and the lsp4j classes are not loaded at startup:
+ * the listener only binds the configured port with a bare {@link ServerSocketChannel}. The first connection starts
+ * the {@link WebSocketChannelServer}, and each accepted connection is then handed over to it, without any other port
+ * or HTTP server. Once no connection is left for {@link DebuggerConfig#getIdleTimeout()} seconds, the WebSocket server
+ * is stopped.
+ *
+ * @author theogiraudet
+ */
+public class LazyDapListener {
+
+    private static final Logger logger = LoggerFactory.getLogger("sniffer");
+
+    private static ServerSocketChannel channel;
+    /** Started WebSocket server, or null if it is stopped */
+    private static WebSocketChannelServer backend;
+    private static final AtomicInteger connections = new AtomicInteger();
+    private static ScheduledFuture<?> idleTeardown;
+    private static final ScheduledExecutorService SCHEDULER = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        var thread = new Thread(runnable, "Sniffer DAP idle teardown");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private LazyDapListener() {}
+
+    /**
+     * Binds the configured port, without starting the WebSocket server.
+     *
+     * @return true if the port is bound, false otherwise
+     */
+    public static boolean launch() {
+        stop();
+        var port = DebuggerConfig.getInstance().getPort();
+        try {
+            channel = ServerSocketChannel.open();
+            channel.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), port));
+            var server = channel;
+            var thread = new Thread(() -> acceptLoop(server), "Sniffer DAP listener");
+            thread.setDaemon(true);
+            thread.start();
+            logger.info("Sniffer DAP listener waiting for a debugger on ws://localhost:{}/{}", port, DebuggerConfig.getInstance().getPath());
+            return true;
+        } catch (IOException e) {
+            logger.error("Error binding the DAP port {}", port, e);
+            stop();
+            return false;
+        }
+    }
+
+    private static void acceptLoop(ServerSocketChannel server) {
+        while (server.isOpen()) {
+            try {
+                var client = server.accept();
+                connections.incrementAndGet();
+                var webSocketServer = ensureBackend();
+                if (webSocketServer == null) {
+                    client.close();
+                    release();
+                    continue;
+                }
+                Thread.ofVirtual().name("Sniffer DAP connection").start(() -> {
+                    try {
+                        webSocketServer.serve(client);
+                    } finally {
+                        release();
+                    }
+                });
+            } catch (ClosedChannelException e) {
+                return;
+            } catch (IOException e) {
+                logger.error("Error accepting a DAP connection", e);
+            }
+        }
+    }
+
+    /**
+     * Starts the WebSocket server if needed, cancelling its idle teardown.
+     *
+     * @return The WebSocket server, or null if it failed to start
+     */
+    private static synchronized WebSocketChannelServer ensureBackend() {
+        if (idleTeardown != null) {
+            idleTeardown.cancel(false);
+            idleTeardown = null;
+        }
+        if (backend == null) {
+            long start = System.nanoTime();
+            var server = new WebSocketChannelServer();
+            try {
+                server.start("/", DebuggerConfig.getInstance().getPort());
+                backend = server;
+                logger.info("DAP server started in {}ms", (System.nanoTime() - start) / 1_000_000);
+            } catch (Exception e) {
+                logger.error("Error starting DAP server", e);
+            }
+        }
+        return backend;
+    }
+
+    /**
+     * Signals the end of a connection, scheduling the teardown of the WebSocket server if it was the last one.
+     */
+    private static synchronized void release() {
+        int timeout = DebuggerConfig.getInstance().getIdleTimeout();
+        if (connections.decrementAndGet() == 0 && backend != null && timeout > 0) {
+            idleTeardown = SCHEDULER.schedule(LazyDapListener::teardownIfIdle, timeout, TimeUnit.SECONDS);
+        }
+    }
+
+    private static synchronized void teardownIfIdle() {
+        if (connections.get() == 0 && backend != null) {
+            backend.stop();
+            backend = null;
+            logger.info("DAP server stopped after being idle");
+        }
+    }
+
+    /**
+     * Stops the listener and the WebSocket server if it is started.
+     */
+    public static synchronized void stop() {
+        if (channel != null) {
+            closeQuietly(channel);
+            channel = null;
+        }
+        if (idleTeardown != null) {
+            idleTeardown.cancel(false);
+            idleTeardown = null;
+        }
+        if (backend != null) {
+            backend.stop();
+            backend = null;
+        }
+    }
+
+    private static void closeQuietly(ServerSocketChannel channel) {
+        try {
+            channel.close();
+        } catch (IOException e) {
+            logger.error("Error closing the DAP listener", e);
+        }
+    }
+}
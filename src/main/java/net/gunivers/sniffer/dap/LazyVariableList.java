@@ -0,0 +1,109 @@
+package net.gunivers.sniffer.dap;
+
+import it.unimi.dsi.fastutil.ints.Int2ObjectOpenHashMap;
+
+import java.util.AbstractList;
+import java.util.Objects;
+
+/**
+ * Children of a debugger variable, created on demand when the client expands the variable.
+ * <p>
+ * Only the children read from the list are created, each one being given its reference at this time.
+ * A created child is kept so that it keeps its reference for the rest of the pause.
+ * Reading a range of the list, e.g. through {@link #subList(int, int)}, only creates the children of this range.
+ * The children are either indexed, e.g. the elements of an NBT list, or named, e.g. the entries of an NBT compound.
+ *
+ * @author theogiraudet
+ */
+public class LazyVariableList extends AbstractList<DebuggerVariable> {
+
+    /**
+     * Creates a child of a variable.
+     */
+    @FunctionalInterface
+    public interface ChildFactory {
+        /**
+         * Creates a child of a variable.
+         *
+         * @param index The index of the child in its parent
+         * @param id The reference of the child
+         * @return The created child
+         */
+        DebuggerVariable create(int index, int id);
+    }
+
+    /** Maximum number of indexed children of a variable, more children being split into range buckets */
+    private static final int BUCKET_SIZE = 1000;
+
+    private final int size;
+    private final boolean indexed;
+    private final ChildFactory factory;
+    /** Created children by index */
+    private final Int2ObjectOpenHashMap<DebuggerVariable> children = new Int2ObjectOpenHashMap<>();
+
+    /**
+     * Creates a list of children created on demand.
+     *
+     * @param size The number of children
+     * @param indexed Whether the children are indexed rather than named
+     * @param factory Creates a child from its index and its reference
+     */
+    public LazyVariableList(int size, boolean indexed, ChildFactory factory) {
+        this.size = size;
+        this.indexed = indexed;
+        this.factory = factory;
+    }
+
+    /**
+     * Creates the indexed children of a range of elements, split into range buckets if there are more than {@link #BUCKET_SIZE},
+     * e.g. {@code [0..999]}, {@code [1000..1999]}.
+     * The range of a bucket is the smallest power of {@link #BUCKET_SIZE} giving at most {@link #BUCKET_SIZE} buckets.
+     *
+     * @param offset The index of the first element of the range
+     * @param size The number of elements of the range
+     * @param elements Creates the variable of an element from its index and its ID
+     * @return The children of the range
+     */
+    public static LazyVariableList indexed(int offset, int size, ChildFactory elements) {
+        if (size <= BUCKET_SIZE) {
+            return new LazyVariableList(size, true, (index, childId) -> elements.create(offset + index, childId));
+        }
+        long range = BUCKET_SIZE;
+        while (size > range * BUCKET_SIZE) {
+            range *= BUCKET_SIZE;
+        }
+        int bucketRange = (int) range;
+        int buckets = (size + bucketRange - 1) / bucketRange;
+        return new LazyVariableList(buckets, true, (index, childId) -> {
+            int start = offset + index * bucketRange;
+            int count = Math.min(bucketRange, offset + size - start);
+            var name = "[" + start + ".." + (start + count - 1) + "]";
+            return new DebuggerVariable(childId, name, "", indexed(start, count, elements), false);
+        });
+    }
+
+    /**
+     * Whether the children are indexed, so that the client can request them by range.
+     *
+     * @return true if the children are indexed, false if they are named
+     */
+    public boolean isIndexed() {
+        return indexed;
+    }
+
+    @Override
+    public DebuggerVariable get(int index) {
+        Objects.checkIndex(index, this.size);
+        var child = this.children.get(index);
+        if (child == null) {
+            child = ScopeManager.get().issueVariable(id -> this.factory.create(index, id));
+            this.children.put(index, child);
+        }
+        return child;
+    }
+
+    @Override
+    public int size() {
+        return this.size;
+    }
+}
@@ -1,5 +1,6 @@
 package net.gunivers.sniffer.dap;
 
+import net.gunivers.sniffer.config.DebuggerConfig;
 import net.minecraft.nbt.*;
 import net.minecraft.nbt.visitor.NbtElementVisitor;
 
@@ -7,39 +8,77 @@ import java.util.*;
 
 /**
  * A visitor implementation for NBT elements that converts them into debugger variables.
- * This class traverses NBT data structures and creates corresponding DebuggerVariable objects
- * that can be displayed in a debugging client.
+ * This class converts a single NBT element into a DebuggerVariable that can be displayed in a debugging client.
+ * <p>
+ * The children of compounds, lists and arrays are only converted when the client expands them, one level at a time,
+ * so that opening a large element only costs the part of it that is shown.
+ * The value of a variable is a preview of the element, truncated to {@link DebuggerConfig#getPreviewLength()} characters.
+ * <p>
+ * The elements of lists and arrays are indexed, so that the client can request them by range. The elements of arrays
+ * are read straight from their backing array. Large lists and arrays are split into range buckets,
+ * see {@link LazyVariableList#indexed(int, int, LazyVariableList.ChildFactory)}.
  *
  * @author theogiraudet
  */
 public class NbtElementVariableVisitor implements NbtElementVisitor {
 
-    private int index;
-    private final Map<Integer, DebuggerVariable> variables = new HashMap<>();
-    private DebuggerVariable returnVariable;
-    private String currentName;
-    private boolean isRoot;
+    /** Appended to a truncated preview */
+    private static final String ELLIPSIS = "…";
+
+    private final int id;
+    private final String name;
+    private final boolean isRoot;
+    private final int previewLength;
+    private DebuggerVariable variable;
 
     /**
      * Creates a new NBT element visitor.
      *
-     * @param index The starting index for variable IDs
-     * @param rootName The name of the root variable
+     * @param id The ID of the variable
+     * @param name The name of the variable
      * @param isRoot Whether this variable is a root-level variable
      */
-    public NbtElementVariableVisitor(int index, String rootName, boolean isRoot) {
-        this.index = index;
-        this.currentName = rootName;
+    public NbtElementVariableVisitor(int id, String name, boolean isRoot) {
+        this.id = id;
+        this.name = name;
         this.isRoot = isRoot;
+        this.previewLength = DebuggerConfig.getInstance().getPreviewLength();
     }
 
     /**
-     * Gets the map of created variables.
+     * Converts an NBT element into a debugger variable, its children being converted on demand.
      *
-     * @return A map of variable IDs to debugger variables
+     * @param element The NBT element to convert
+     * @param id The ID of the variable
+     * @param name The name of the variable
+     * @param isRoot Whether this variable is a root-level variable
+     * @return The created variable
      */
-    public Map<Integer, DebuggerVariable> get() {
-        return variables;
+    public static DebuggerVariable convert(NbtElement element, int id, String name, boolean isRoot) {
+        var visitor = new NbtElementVariableVisitor(id, name, isRoot);
+        element.accept(visitor);
+        return visitor.get();
+    }
+
+    /**
+     * Writes the SNBT preview of an element, truncated to {@link DebuggerConfig#getPreviewLength()} characters.
+     *
+     * @param element The element to preview
+     * @return The preview, ending with an ellipsis if it is truncated
+     */
+    public static String previewOf(NbtElement element) {
+        var writer = new PreviewWriter(DebuggerConfig.getInstance().getPreviewLength());
+        element.accept(writer);
+        return writer.toString();
+    }
+
+    /**
+     * Gets the created variable.
+     *
+     * @return The variable of the visited element
+     */
+    public DebuggerVariable get() {
+        return variable;
     }
 
     /**
@@ -119,7 +158,8 @@ public class NbtElementVariableVisitor implements NbtElementVisitor {
      */
     @Override
     public void visitByteArray(NbtByteArray element) {
-        convertList(element);
+        var array = element.getByteArray();
+        convertList(element, (index, childId) -> element(childId, index, array[index] + "b"));
     }
 
     /**
@@ -129,7 +169,8 @@ public class NbtElementVariableVisitor implements NbtElementVisitor {
      */
     @Override
     public void visitIntArray(NbtIntArray element) {
-        convertList(element);
+        var array = element.getIntArray();
+        convertList(element, (index, childId) -> element(childId, index, Integer.toString(array[index])));
     }
 
     /**
@@ -139,7 +180,8 @@ public class NbtElementVariableVisitor implements NbtElementVisitor {
      */
     @Override
     public void visitLongArray(NbtLongArray element) {
-        convertList(element);
+        var array = element.getLongArray();
+        convertList(element, (index, childId) -> element(childId, index, array[index] + "L"));
     }
 
     /**
@@ -149,28 +191,20 @@ public class NbtElementVariableVisitor implements NbtElementVisitor {
      */
     @Override
     public void visitList(NbtList element) {
-        convertList(element);
+        //method_10534(int i) = get(int i)
+        convertList(element, (index, childId) -> convert(element.method_10534(index), childId, Integer.toString(index), false));
     }
 
     /**
      * Visits a compound NBT element and converts it to a debugger variable.
-     * This method recursively processes all child elements of the compound.
+     * The entries of the compound are converted when the client expands it.
      *
      * @param compound The compound NBT element
      */
     @Override
     public void visitCompound(NbtCompound compound) {
-        var children = new LinkedList<DebuggerVariable>();
-        var compoundIndex = this.index++;
-        var compoundVar = new DebuggerVariable(compoundIndex, this.currentName, compound.asString().orElse(null), children, isRoot);
-        isRoot = false;
-        variables.put(compoundIndex, compoundVar);
-        for(var key: compound.getKeys()) {
-            this.currentName = key;
-            Objects.requireNonNull(compound.get(key)).accept(this);
-            children.add(returnVariable);
-        }
-        returnVariable = compoundVar;
+        var children = new LazyVariableList(compound.getKeys().size(), false, new CompoundChildren(compound));
+        variable = new DebuggerVariable(id, name, preview(compound), children, isRoot);
     }
 
     /**
@@ -182,25 +216,26 @@ public class NbtElementVariableVisitor implements NbtElementVisitor {
     public void visitEnd(NbtEnd element) {}
 
     /**
-     * Converts an NBT list or array into debugger variables.
-     * This method processes each element in the list and creates child variables.
+     * Converts an NBT list or array into a debugger variable.
+     * The elements of the list are converted when the client expands it.
      *
      * @param list The NBT list or array to convert
+     * @param elements Creates the variable of an element from its index and its ID
      */
-    private void convertList(AbstractNbtList list) {
-        var arrayIndex = index++;
-        var array = new LinkedList<DebuggerVariable>();
-        var name = currentName;
-        var result = new DebuggerVariable(arrayIndex, name, list.asString().orElse(null), array, false);
-        variables.put(arrayIndex, result);
-        for(int i = 0; i < list.size(); i++) {
-            currentName = Integer.toString(index);
-            //method_10534(int i) = get(int i)
-            list.method_10534(i).accept(this);
-            array.add(returnVariable);
-        }
-        index++;
-        returnVariable = result;
+    private void convertList(AbstractNbtList list, LazyVariableList.ChildFactory elements) {
+        variable = new DebuggerVariable(id, name, preview(list), LazyVariableList.indexed(0, list.size(), elements), isRoot);
+    }
+
+    /**
+     * Creates the variable of an element of an array.
+     *
+     * @param id The ID of the variable
+     * @param index The index of the element
+     * @param value The SNBT value of the element
+     * @return The variable of the element
+     */
+    private static DebuggerVariable element(int id, int index, String value) {
+        return new DebuggerVariable(id, Integer.toString(index), value, List.of(), false);
     }
 
     /**
@@ -210,8 +245,156 @@ public class NbtElementVariableVisitor implements NbtElementVisitor {
      * @param element The primitive NBT element to convert
      */
     private void convertPrimitive(NbtElement element) {
-        var i = index++;
-        returnVariable = new DebuggerVariable(i, currentName, element.asString().orElse(null), List.of(), isRoot);
-        variables.put(i, returnVariable);
+        variable = new DebuggerVariable(id, name, preview(element), List.of(), isRoot);
+    }
+
+    /**
+     * Writes the SNBT preview of an element, stopping as soon as the preview length is reached
+     * so that only the beginning of a large element is read.
+     *
+     * @param element The element to preview
+     * @return The preview, ending with an ellipsis if it is truncated
+     */
+    private String preview(NbtElement element) {
+        var writer = new PreviewWriter(previewLength);
+        element.accept(writer);
+        return writer.toString();
+    }
+
+    /**
+     * Creates the entries of a compound, its keys being listed on the first expansion.
+     */
+    private static class CompoundChildren implements LazyVariableList.ChildFactory {
+        private final NbtCompound compound;
+        private String[] keys;
+
+        private CompoundChildren(NbtCompound compound) {
+            this.compound = compound;
+        }
+
+        @Override
+        public DebuggerVariable create(int index, int id) {
+            if (keys == null) {
+                keys = compound.getKeys().toArray(String[]::new);
+            }
+            return convert(Objects.requireNonNull(compound.get(keys[index])), id, keys[index], false);
+        }
+    }
+
+    /**
+     * Writes a bounded SNBT preview of an element, every visit returning at once once the preview is full.
+     */
+    private static class PreviewWriter implements NbtElementVisitor {
+        private final StringBuilder builder = new StringBuilder();
+        private final int maxLength;
+
+        private PreviewWriter(int maxLength) {
+            this.maxLength = maxLength;
+        }
+
+        private boolean isFull() {
+            return builder.length() > maxLength;
+        }
+
+        @Override
+        public void visitString(NbtString element) {
+            var value = element.asString().orElse("");
+            // Only the beginning of a long string can be shown
+            builder.append(NbtString.escape(value.substring(0, Math.min(value.length(), maxLength + 1))));
+        }
+
+        @Override
+        public void visitByte(NbtByte element) {
+            builder.append(element);
+        }
+
+        @Override
+        public void visitShort(NbtShort element) {
+            builder.append(element);
+        }
+
+        @Override
+        public void visitInt(NbtInt element) {
+            builder.append(element);
+        }
+
+        @Override
+        public void visitLong(NbtLong element) {
+            builder.append(element);
+        }
+
+        @Override
+        public void visitFloat(NbtFloat element) {
+            builder.append(element);
+        }
+
+        @Override
+        public void visitDouble(NbtDouble element) {
+            builder.append(element);
+        }
+
+        @Override
+        public void visitByteArray(NbtByteArray element) {
+            builder.append("[B;");
+            var array = element.getByteArray();
+            for (int i = 0; i < array.length && !isFull(); i++) {
+                builder.append(i == 0 ? "" : ",").append(array[i]).append('b');
+            }
+            builder.append(']');
+        }
+
+        @Override
+        public void visitIntArray(NbtIntArray element) {
+            builder.append("[I;");
+            var array = element.getIntArray();
+            for (int i = 0; i < array.length && !isFull(); i++) {
+                builder.append(i == 0 ? "" : ",").append(array[i]);
+            }
+            builder.append(']');
+        }
+
+        @Override
+        public void visitLongArray(NbtLongArray element) {
+            builder.append("[L;");
+            var array = element.getLongArray();
+            for (int i = 0; i < array.length && !isFull(); i++) {
+                builder.append(i == 0 ? "" : ",").append(array[i]).append('L');
+            }
+            builder.append(']');
+        }
+
+        @Override
+        public void visitList(NbtList element) {
+            builder.append('[');
+            for (int i = 0; i < element.size() && !isFull(); i++) {
+                if (i > 0) {
+                    builder.append(',');
+                }
+                //method_10534(int i) = get(int i)
+                element.method_10534(i).accept(this);
+            }
+            builder.append(']');
+        }
+
+        @Override
+        public void visitCompound(NbtCompound compound) {
+            builder.append('{');
+            var first = true;
+            for (var iterator = compound.getKeys().iterator(); iterator.hasNext() && !isFull(); ) {
+                var key = iterator.next();
+                builder.append(first ? "" : ",").append(key).append(':');
+                first = false;
+                Objects.requireNonNull(compound.get(key)).accept(this);
+            }
+            builder.append('}');
+        }
+
+        @Override
+        public void visitEnd(NbtEnd element) {}
+
+        @Override
+        public String toString() {
+            return isFull() ? builder.substring(0, maxLength) + ELLIPSIS : builder.toString();
+        }
     }
 }
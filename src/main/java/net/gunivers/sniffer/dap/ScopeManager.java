@@ -1,14 +1,14 @@
 package net.gunivers.sniffer.dap;
 
-import com.google.common.base.Suppliers;
 import net.minecraft.nbt.NbtCompound;
+import net.minecraft.server.MinecraftServer;
 import net.minecraft.server.command.AbstractServerCommandSource;
 import org.jetbrains.annotations.Nullable;
 import net.minecraft.util.Identifier;
 
 import java.nio.file.Path;
 import java.util.*;
-import java.util.function.Supplier;
+import java.util.function.IntFunction;
 
 /**
  * Manager for debug scopes in the debugger.
@@ -44,61 +44,87 @@ public class ScopeManager {
         return singleton;
     }
 
-    private static int ID = 1;
-
     /**
      * Represents a debug scope during execution.
      * A scope contains information about the currently executing function,
      * its variables, and its position in the call stack.
+     * Scopes are pooled by the {@link ScopeManager}: each one is bound to a slot of the stack
+     * and is reused each time a function is pushed at this slot.
      */
     public static class DebugScope {
-        private final String function;
-        private final RealPath path;
-        private final AbstractServerCommandSource<?> executor;
+        private final ScopeManager manager;
+        private final int id;
+        private String function;
+        private RealPath path;
+        /** The command source executing the function, null for a past scope */
+        private AbstractServerCommandSource<?> executor;
+        /** The values of the executor at a past pause, null for a live scope */
+        private VariableManager.ExecutorView executorView;
+        private NbtCompound macroVariables;
         private int line = -2;
-        private final Supplier<Map<Integer, DebuggerVariable>> variables;
-        private final int id = ID++;
-        private final DebugScope parent;
+        /** Variables of this scope indexed by ID, computed on first access */
+        private Map<Integer, DebuggerVariable> variables;
+        /** Root variables of this scope ordered by ID, computed with the variables */
+        private List<DebuggerVariable> rootVariables;
 
         /**
-         * Creates a new debug scope for a macro
-         * 
-         * @param parent The parent scope, or null if this is the root scope
-         * @param function The function mcpath being executed
-         * @param executor The command source executing the function
-         * @param macroVariables The NBT compound containing macro variables
+         * Creates a new debug scope bound to a slot of the stack.
+         *
+         * @param manager The scope manager owning this scope
+         * @param slot The index of this scope in the stack
          */
-        protected DebugScope(@Nullable DebugScope parent, String function, AbstractServerCommandSource<?> executor,@Nullable NbtCompound macroVariables) {
-            this.parent = parent;
-            this.function = function;
-            this.path = PATHS.get(function);
-            this.executor = executor;
-            this.variables = Suppliers.memoize(() -> {
-                var qwq = VariableManager.convertCommandSource(executor, ID);
-                var macro = VariableManager.convertNbtCompound("macro", macroVariables, ID + qwq.size(), true);
-                qwq.putAll(macro);
-                ID += qwq.size();
-                return qwq;
-            });
+        private DebugScope(ScopeManager manager, int slot) {
+            this.manager = manager;
+            this.id = slot + 1;
         }
 
         /**
-         * Creates a new debug scope for a normal function
+         * Binds this scope to a function call.
          *
-         * @param parent The parent scope, or null if this is the root scope
          * @param function The function mcpath being executed
-         * @param executor The command source executing the function
+         * @param executor The command source executing the function, or null for a past scope
+         * @param executorView The values of the executor at a past pause, or null for a live scope
+         * @param macroVariables The NBT compound containing macro variables, or null for a normal function
          */
-        protected DebugScope(@Nullable DebugScope parent, String function, AbstractServerCommandSource<?> executor) {
-            this.parent = parent;
+        private void set(String function, @Nullable AbstractServerCommandSource<?> executor,
+                         @Nullable VariableManager.ExecutorView executorView, @Nullable NbtCompound macroVariables) {
             this.function = function;
             this.path = PATHS.get(function);
             this.executor = executor;
-            this.variables = Suppliers.memoize(() -> {
-                var qwq = VariableManager.convertCommandSource(executor, ID);
-                ID += qwq.size();
-                return qwq;
-            });
+            this.executorView = executorView;
+            this.macroVariables = macroVariables;
+            this.line = -2;
+            this.variables = null;
+            this.rootVariables = null;
+        }
+
+        /**
+         * Releases the references held by this scope so that it can be reused.
+         */
+        private void release() {
+            this.function = null;
+            this.path = null;
+            this.executor = null;
+            this.executorView = null;
+            this.macroVariables = null;
+            this.variables = null;
+            this.rootVariables = null;
+        }
+
+        /**
+         * Gets the variables of this scope, converting them on first access.
+         *
+         * @return The variables of this scope indexed by ID
+         */
+        private Map<Integer, DebuggerVariable> variables() {
+            if (this.variables == null) {
+                this.variables = manager.convertVariables(getExecutorView(), macroVariables);
+                this.rootVariables = this.variables.values().stream()
+                        .filter(DebuggerVariable::isRoot)
+                        .sorted(Comparator.comparingInt(DebuggerVariable::id))
+                        .toList();
+            }
+            return this.variables;
         }
 
         /**
@@ -122,14 +148,33 @@ public class ScopeManager {
         /**
          * Gets the command source executing this scope.
          * 
-         * @return The command source
+         * @return The command source, or null if this scope shows a past pause
          */
-        public AbstractServerCommandSource<?> getExecutor() {
+        public @Nullable AbstractServerCommandSource<?> getExecutor() {
             return executor;
         }
 
+        /**
+         * Gets the values of the executor shown for this scope.
+         *
+         * @return The values at the past pause for a past scope, otherwise the current values of the command source
+         */
+        public VariableManager.ExecutorView getExecutorView() {
+            return executorView != null ? executorView : VariableManager.viewOf(executor);
+        }
+
+        /**
+         * Gets the macro variables of this scope.
+         *
+         * @return The NBT compound containing the macro variables, or null for a normal function
+         */
+        public @Nullable NbtCompound getMacroVariables() {
+            return macroVariables;
+        }
+
         /**
          * Gets the unique ID for this scope.
+         * The ID of a scope is its index in the stack plus one.
          * 
          * @return The scope ID
          */
@@ -143,7 +188,16 @@ public class ScopeManager {
          * @return A list of all variables in this scope
          */
         public List<DebuggerVariable> getVariables() {
-            return List.copyOf(variables.get().values());
+            return List.copyOf(variables().values());
+        }
+
+        /**
+         * Gets the parent scope, i.e. the scope in the slot below this one.
+         *
+         * @return An Optional containing the parent scope, or empty if this is the root scope
+         */
+        private Optional<DebugScope> getParent() {
+            return manager.getScope(id - 1);
         }
 
         /**
@@ -152,7 +206,7 @@ public class ScopeManager {
          * @return An Optional containing the caller function, or empty if this is the root scope
          */
         public Optional<String> getCallerFunction() {
-            return Optional.ofNullable(parent).map(DebugScope::getFunction);
+            return getParent().map(DebugScope::getFunction);
         }
 
         /**
@@ -161,16 +215,17 @@ public class ScopeManager {
          * @return An Optional containing the caller line, or empty if this is the root scope
          */
         public Optional<Integer> getCallerLine() {
-            return Optional.ofNullable(parent).map(DebugScope::getLine);
+            return getParent().map(DebugScope::getLine);
         }
 
         /**
          * Gets all root-level variables in this scope.
          * 
-         * @return A list of root variables
+         * @return A list of root variables, ordered by ID
          */
         public List<DebuggerVariable> getRootVariables() {
-            return this.variables.get().values().stream().filter(DebuggerVariable::isRoot).toList();
+            variables();
+            return rootVariables;
         }
 
         /**
@@ -187,12 +242,17 @@ public class ScopeManager {
         }
     }
 
-    /** Stack of debug scopes representing the call hierarchy */
-    private final Stack<DebugScope> debugScopeStack = new Stack<>();
-    /** The currently active scope */
-    private DebugScope currentScope = null;
-    /** Set of known scope IDs for quick lookups */
-    private final Set<Integer> scopeIds = new HashSet<>();
+    /** Initial number of slots of the scope stack */
+    private static final int INITIAL_CAPACITY = 16;
+
+    /** Pooled scopes of the stack, the first {@link #size} ones being in use */
+    private DebugScope[] scopes = new DebugScope[INITIAL_CAPACITY];
+    /** Number of scopes in the stack */
+    private int size = 0;
+    /** Variables of all the scopes indexed by reference, their references being greater than the scope IDs */
+    private final VariableHandleTable handles = new VariableHandleTable();
+    /** Variable of the scoreboard, shared by all the scopes, created on first access */
+    private DebuggerVariable scoreboardVariable;
 
     /**
      * Saves the physical file path for a function identified by its Minecraft identifier.
@@ -217,36 +277,53 @@ public class ScopeManager {
     }
 
     /**
-     * Creates a new scope and pushes it onto the scope stack.
+     * Pushes a new scope onto the scope stack, reusing the pooled scope of the slot if any.
      * 
      * @param function The function mcpath
      * @param executor The command source executing the function
+     * @param macroVariables The NBT compound containing macro variables
      */
-    public void newScope(String function, AbstractServerCommandSource<?> executor, NbtCompound macroVariables) {
-        var scope = new DebugScope(this.currentScope, function, executor, macroVariables);
-        this.scopeIds.add(scope.id);
-        this.debugScopeStack.push(scope);
-        this.currentScope = scope;
+    public void newScope(String function, AbstractServerCommandSource<?> executor, @Nullable NbtCompound macroVariables) {
+        push().set(function, executor, null, macroVariables);
+    }
+
+    /**
+     * Pushes a new scope showing a past pause onto the scope stack, reusing the pooled scope of the slot if any.
+     *
+     * @param function The function mcpath
+     * @param executor The values of the executor at the past pause
+     * @param macroVariables The NBT compound containing macro variables
+     */
+    public void newPastScope(String function, VariableManager.ExecutorView executor, @Nullable NbtCompound macroVariables) {
+        push().set(function, null, executor, macroVariables);
+    }
+
+    private DebugScope push() {
+        if (this.size == this.scopes.length) {
+            this.scopes = Arrays.copyOf(this.scopes, this.size * 2);
+        }
+        var scope = this.scopes[this.size];
+        if (scope == null) {
+            scope = new DebugScope(this, this.size);
+            this.scopes[this.size] = scope;
+        }
+        this.size++;
+        return scope;
     }
 
     public void newScope(String function, AbstractServerCommandSource<?> executor) {
-        var scope = new DebugScope(this.currentScope, function, executor);
-        this.scopeIds.add(scope.id);
-        this.debugScopeStack.push(scope);
-        this.currentScope = scope;
+        newScope(function, executor, null);
     }
 
     /**
-     * Removes the current scope from the stack and sets the parent as current.
+     * Removes the current scope from the stack.
      * Call this when exiting a function.
      */
     public void unscope() {
-        if(this.debugScopeStack.isEmpty()) {
+        if(this.size == 0) {
             return;
         }
-        debugScopeStack.pop();
-        this.scopeIds.remove(currentScope.id);
-        currentScope = debugScopeStack.isEmpty() ? null : debugScopeStack.peek();
+        this.scopes[--this.size].release();
     }
 
     /**
@@ -255,23 +332,61 @@ public class ScopeManager {
      * @return The number of scopes in the stack
      */
     public int count() {
-        return this.debugScopeStack.size();
+        return this.size;
     }
 
     /**
      * If the scope stack is empty.
      */
     public boolean isEmpty(){
-        return this.debugScopeStack.isEmpty();
+        return this.size == 0;
     }
 
     /**
      * Clears all scopes and resets the state.
      */
     public void clear() {
-        this.debugScopeStack.clear();
-        this.scopeIds.clear();
-        ID = 1;
+        for (int i = 0; i < this.size; i++) {
+            this.scopes[i].release();
+        }
+        this.size = 0;
+        this.handles.clear();
+        this.scoreboardVariable = null;
+    }
+
+    /**
+     * Frees the variables of all the scopes, their references being only valid while the execution is paused.
+     * The scopes convert their variables again on the next access.
+     */
+    public void freeVariables() {
+        for (int i = 0; i < this.size; i++) {
+            this.scopes[i].variables = null;
+            this.scopes[i].rootVariables = null;
+        }
+        this.handles.clear();
+        this.scoreboardVariable = null;
+    }
+
+    /**
+     * Gets the variable of the scoreboard, shared by all the scopes. Must be called on the server thread.
+     * The objectives and holders are only listed when the client expands them.
+     *
+     * @param server The server to read the scoreboard from
+     * @return The scoreboard variable
+     */
+    public DebuggerVariable getScoreboardVariable(MinecraftServer server) {
+        if (this.scoreboardVariable == null) {
+            this.scoreboardVariable = issueVariable(id -> ScoreboardVariables.convertScoreboard(server, id));
+        }
+        return this.scoreboardVariable;
+    }
+
+    /**
+     * Drops the variable of the scoreboard, so that the objectives and holders are listed again on the next access,
+     * e.g. once the holder filter changed. Must be called on the server thread.
+     */
+    public void refreshScoreboardVariable() {
+        this.scoreboardVariable = null;
     }
 
     /**
@@ -289,20 +404,47 @@ public class ScopeManager {
      * @return An Optional containing the scope if found, or empty if no scope with the given ID exists
      */
     public Optional<DebugScope> getScope(int id) {
-        return this.debugScopeStack.stream()
-                .filter(scope -> scope.id == id)
-                .findFirst();
+        return id >= 1 && id <= this.size ? Optional.of(this.scopes[id - 1]) : Optional.empty();
     }
 
     /**
-     * Gets all root-level variables from a given scope.
-     * A root variable is one that should be displayed directly in the scope view.
-     * 
-     * @param scope The scope to get variables from
-     * @return A list of root-level variables in this scope
+     * Converts the variables of a scope and indexes them.
+     * The IDs are taken after the ones of the scopes so that both can be used as variable references.
+     *
+     * @param executor The values of the command source executing the scope
+     * @param macroVariables The NBT compound containing macro variables, or null for a normal function
+     * @return The variables of the scope indexed by ID
      */
-    private List<DebuggerVariable> getRootVariables(DebugScope scope) {
-        return scope.variables.get().values().stream().filter(DebuggerVariable::isRoot).toList();
+    private Map<Integer, DebuggerVariable> convertVariables(VariableManager.ExecutorView executor, @Nullable NbtCompound macroVariables) {
+        return registerVariables(startId -> {
+            var variables = VariableManager.convertExecutor(executor, startId);
+            variables.putAll(VariableManager.convertNbtCompound("macro", macroVariables, startId + variables.size(), true));
+            return variables;
+        });
+    }
+
+    /**
+     * Converts variables not bound to a scope and indexes them, so that they can be used as variable references.
+     * The variables are freed with the scopes, or when the execution continues.
+     *
+     * @param converter Converts the variables from the first ID to give
+     * @return The variables indexed by ID
+     */
+    public Map<Integer, DebuggerVariable> registerVariables(IntFunction<Map<Integer, DebuggerVariable>> converter) {
+        var variables = converter.apply(this.handles.nextHandle(this.size + 1));
+        variables.values().forEach(this.handles::put);
+        return variables;
+    }
+
+    /**
+     * Issues a reference to a variable created on demand, when the client expands its parent.
+     * The variable is freed with the other ones.
+     *
+     * @param factory Creates the variable from its reference
+     * @return The created variable
+     */
+    public DebuggerVariable issueVariable(IntFunction<DebuggerVariable> factory) {
+        return this.handles.issue(this.size + 1, factory);
     }
 
     /**
@@ -314,24 +456,32 @@ public class ScopeManager {
      * @return An Optional containing the list of variables, or empty if no match was found
      */
     public Optional<List<DebuggerVariable>> getVariables(int id) {
-        if(this.scopeIds.contains(id)) {
-            return debugScopeStack.stream().filter(scope -> scope.id == id).findFirst().map(this::getRootVariables);
-        } else {
-            return this.debugScopeStack.stream()
-                    .flatMap(scope -> scope.getVariables().stream())
-                    .filter(var -> var.id() == id)
-                    .findFirst()
-                    .map(DebuggerVariable::children);
+        var scope = getScope(id);
+        if(scope.isPresent()) {
+            return scope.map(DebugScope::getRootVariables);
         }
+        return Optional.ofNullable(this.handles.get(id)).map(DebuggerVariable::children);
     }
 
     /**
-     * Gets all active debug scopes in the call stack.
+     * Gets all active debug scopes in the call stack, from the current one to the root one.
+     * The returned list is a view of the stack.
      * 
      * @return The list of all debug scopes
      */
     public List<DebugScope> getDebugScopes() {
-        return this.debugScopeStack.reversed();
+        return new AbstractList<>() {
+            @Override
+            public DebugScope get(int index) {
+                Objects.checkIndex(index, size);
+                return scopes[size - 1 - index];
+            }
+
+            @Override
+            public int size() {
+                return size;
+            }
+        };
     }
 
     /**
@@ -340,6 +490,6 @@ public class ScopeManager {
      * @return An Optional containing the current scope, or empty if no scope is active
      */
     public Optional<DebugScope> getCurrentScope() {
-        return Optional.ofNullable(currentScope);
+        return this.size == 0 ? Optional.empty() : Optional.of(this.scopes[this.size - 1]);
     }
 }
@@ -0,0 +1,84 @@
+package net.gunivers.sniffer.dap;
+
+import net.minecraft.scoreboard.Scoreboard;
+import net.minecraft.scoreboard.ScoreboardEntry;
+import net.minecraft.scoreboard.ScoreboardObjective;
+import net.minecraft.server.MinecraftServer;
+
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Converts the scoreboard into debugger variables, listing the objectives and their holders.
+ * <p>
+ * A server may hold hundreds of objectives with thousands of holders each, so nothing is read upfront:
+ * the objectives are only listed when the client expands the scoreboard, and the holders of an objective
+ * when the client expands this objective. The holders are indexed, so that the client can request them by range,
+ * and only keep the ones whose name contains the {@linkplain #setHolderFilter(String) holder filter}.
+ * The variables must be expanded on the server thread.
+ *
+ * @author theogiraudet
+ */
+public class ScoreboardVariables {
+
+    /** Filter of the holder names, in lower case, empty to show all the holders */
+    private static volatile String holderFilter = "";
+
+    private ScoreboardVariables() {}
+
+    /**
+     * Gets the filter of the holder names.
+     *
+     * @return The text the holder names must contain, empty to show all the holders
+     */
+    public static String getHolderFilter() {
+        return holderFilter;
+    }
+
+    /**
+     * Sets the filter of the holder names, applied the next time the holders of an objective are listed.
+     *
+     * @param filter The text the holder names must contain, ignoring the case, null or empty to show all the holders
+     */
+    public static void setHolderFilter(String filter) {
+        holderFilter = filter == null ? "" : filter.toLowerCase(Locale.ROOT);
+    }
+
+    /**
+     * Converts the scoreboard of a server into a debugger variable, its objectives being listed on demand.
+     *
+     * @param server The server to read the scoreboard from
+     * @param id The ID of the variable
+     * @return The scoreboard variable
+     */
+    public static DebuggerVariable convertScoreboard(MinecraftServer server, int id) {
+        var scoreboard = server.getScoreboard();
+        var filter = holderFilter;
+        var children = new DeferredVariableList(false, () -> {
+            var objectives = scoreboard.getObjectives().stream()
+                    .sorted(Comparator.comparing(ScoreboardObjective::getName))
+                    .toArray(ScoreboardObjective[]::new);
+            return new LazyVariableList(objectives.length, false,
+                    (index, childId) -> convertObjective(scoreboard, objectives[index], filter, childId));
+        });
+        var value = filter.isEmpty() ? "" : "holders matching \"" + filter + "\"";
+        return new DebuggerVariable(id, "scoreboard", value, children, false);
+    }
+
+    /**
+     * Converts an objective into a debugger variable, its holders being listed when the client expands it.
+     */
+    private static DebuggerVariable convertObjective(Scoreboard scoreboard, ScoreboardObjective objective, String filter, int id) {
+        var children = new DeferredVariableList(true, () -> {
+            var entries = scoreboard.getScoreboardEntries(objective).stream()
+                    .filter(entry -> filter.isEmpty() || entry.owner().toLowerCase(Locale.ROOT).contains(filter))
+                    .sorted(Comparator.comparing(ScoreboardEntry::owner))
+                    .toArray(ScoreboardEntry[]::new);
+            return LazyVariableList.indexed(0, entries.length,
+                    (index, childId) -> new DebuggerVariable(childId, entries[index].owner(), Integer.toString(entries[index].value()), List.of(), false));
+        });
+        var value = objective.getDisplayName().getString() + " (" + objective.getCriterion().getName() + ")";
+        return new DebuggerVariable(id, objective.getName(), value, children, false);
+    }
+}
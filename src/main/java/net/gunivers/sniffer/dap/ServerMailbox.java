@@ -0,0 +1,154 @@
+package net.gunivers.sniffer.dap;
+
+import net.gunivers.sniffer.util.LogHistogram;
+import net.minecraft.server.MinecraftServer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Supplier;
+
+/**
+ * Mailbox of the execution control requests of the debugger, drained by the server thread.
+ * <p>
+ * The step and continue requests mutate the state of {@link net.gunivers.sniffer.command.BreakPointCommand},
+ * which the command execution mixins read on the server thread. The DAP threads therefore never run them directly:
+ * each request is posted as a message, completed through a {@link CompletableFuture} once the server thread has run it.
+ * The mailbox is drained as soon as the server thread runs its pending tasks, and at the end of each tick.
+ * A request posted while no server is running fails at once, and the requests still pending when the server stops
+ * are failed by {@link #discard()}, so that a request of a previous world never runs against the next one.
+ * <p>
+ * The latency of each message, from its posting to its completion, is recorded per request type.
+ *
+ * @author theogiraudet
+ */
+public class ServerMailbox {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger("sniffer");
+
+    private static final ServerMailbox INSTANCE = new ServerMailbox();
+
+    /**
+     * A request waiting to be run by the server thread.
+     *
+     * @param type The request type, the key of the latency statistics
+     * @param action The action of the request
+     * @param future The future completed with the result of the action
+     * @param posted The time the message was posted, in nanoseconds
+     */
+    private record Message<T>(String type, Supplier<T> action, CompletableFuture<T> future, long posted) {
+        private void run() {
+            try {
+                future.complete(action.get());
+            } catch (Throwable t) {
+                LOGGER.warn("Error while running the {} request", type, t);
+                future.completeExceptionally(t);
+            }
+        }
+    }
+
+    private final ConcurrentLinkedQueue<Message<?>> queue = new ConcurrentLinkedQueue<>();
+    /** If a drain is already scheduled on the server thread */
+    private final AtomicBoolean scheduled = new AtomicBoolean();
+    /** Latencies of the requests by type, only accessed by the server thread */
+    private final Map<String, LogHistogram> latencies = new LinkedHashMap<>();
+
+    private ServerMailbox() {}
+
+    /**
+     * Gets the mailbox instance.
+     *
+     * @return The mailbox instance
+     */
+    public static ServerMailbox get() {
+        return INSTANCE;
+    }
+
+    /**
+     * Posts a request computing a result.
+     *
+     * @param type The request type
+     * @param action The action to run on the server thread
+     * @return A future completed with the result of the action once it has run
+     */
+    public <T> CompletableFuture<T> call(String type, Supplier<T> action) {
+        var message = new Message<>(type, action, new CompletableFuture<>(), System.nanoTime());
+        queue.offer(message);
+        MinecraftServer server;
+        try {
+            server = DebuggerState.get().getServer();
+        } catch (IllegalStateException e) {
+            server = null;
+        }
+        if (server == null || !server.isRunning()) {
+            // No server to run the request, the message is failed unless the server stopped and discarded it first
+            if (queue.remove(message)) {
+                message.future().completeExceptionally(new IllegalStateException("No running server for the " + type + " request"));
+            }
+            return message.future();
+        }
+        if (scheduled.compareAndSet(false, true)) {
+            server.execute(this::drain);
+        }
+        return message.future();
+    }
+
+    /**
+     * Posts a request without result.
+     *
+     * @param type The request type
+     * @param action The action to run on the server thread
+     * @return A future completed once the action has run
+     */
+    public CompletableFuture<Void> run(String type, Runnable action) {
+        return call(type, () -> {
+            action.run();
+            return null;
+        });
+    }
+
+    /**
+     * Runs all the posted requests. Must be called on the server thread.
+     */
+    public void drain() {
+        scheduled.set(false);
+        Message<?> message;
+        while ((message = queue.poll()) != null) {
+            message.run();
+            latencies.computeIfAbsent(message.type(), type -> new LogHistogram()).record(System.nanoTime() - message.posted());
+        }
+    }
+
+    /**
+     * Fails all the pending requests. Called once the server has stopped, so that they are not run by the next one.
+     */
+    public void discard() {
+        Message<?> message;
+        while ((message = queue.poll()) != null) {
+            message.future().completeExceptionally(new IllegalStateException("The server stopped before the " + message.type() + " request was run"));
+        }
+        // A drain scheduled on the stopped server never runs
+        scheduled.set(false);
+    }
+
+    /**
+     * Gets the latencies of the requests by type. Must be called on the server thread.
+     *
+     * @return A view of the latency histograms in nanoseconds, by request type
+     */
+    public Map<String, LogHistogram> getLatencies() {
+        return Collections.unmodifiableMap(latencies);
+    }
+
+    /**
+     * Resets the latency statistics. Must be called on the server thread.
+     */
+    public void resetLatencies() {
+        latencies.clear();
+    }
+}
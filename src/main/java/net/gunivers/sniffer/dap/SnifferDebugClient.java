@@ -0,0 +1,22 @@
+package net.gunivers.sniffer.dap;
+
+import org.eclipse.lsp4j.debug.services.IDebugProtocolClient;
+import org.eclipse.lsp4j.jsonrpc.services.JsonNotification;
+
+/**
+ * DAP client interface extended with the custom events sent by Sniffer.
+ * Clients not knowing these events simply ignore them.
+ *
+ * @author theogiraudet
+ */
+public interface SnifferDebugClient extends IDebugProtocolClient {
+
+    /**
+     * Event sent when the commands of a tick took longer than the spike threshold.
+     *
+     * @param args The totals of the tick
+     */
+    @JsonNotification("sniffer/tickSpike")
+    default void tickSpike(TickSampleArguments args) {
+    }
+}
@@ -0,0 +1,217 @@
+package net.gunivers.sniffer.dap;
+
+import net.gunivers.sniffer.config.DebuggerConfig;
+import org.eclipse.lsp4j.debug.launch.DSPLauncher;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.*;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousCloseException;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Objects;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * Debug Adapter Protocol server over a raw socket, the alternative to the {@link WebSocketServer}.
+ * The messages use the {@code Content-Length} framing lsp4j reads and writes natively,
+ * so the IDE can connect directly, e.g. with the {@code debugServer} port of VS Code.
+ * <p>
+ * The server listens on a local TCP port or on a Unix domain socket, as selected by {@link DebuggerConfig#getTransport()}.
+ * A single listener thread accepts the connections and serves one client at a time, without any selector or worker pool.
+ *
+ * @author theogiraudet
+ */
+public class SocketDapServer {
+
+    private static final Logger logger = LoggerFactory.getLogger("sniffer");
+
+    private static ServerSocketChannel channel;
+    /** Connection of the client being served, closed with the server */
+    private static volatile SocketChannel current;
+    private static Path socketFile;
+
+    private SocketDapServer() {}
+
+    /**
+     * Launches the socket server with the configured transport.
+     *
+     * @return true if the server is listening, false if it failed to start
+     */
+    public static boolean launch() {
+        stopServer();
+        var config = DebuggerConfig.getInstance();
+        try {
+            SocketAddress address;
+            if (config.getTransport() == DebuggerConfig.Transport.UNIX) {
+                socketFile = Path.of(config.getSocketPath()).toAbsolutePath();
+                // A socket file left by a crashed server would prevent binding
+                Files.deleteIfExists(socketFile);
+                channel = ServerSocketChannel.open(StandardProtocolFamily.UNIX);
+                address = UnixDomainSocketAddress.of(socketFile);
+            } else {
+                channel = ServerSocketChannel.open();
+                address = new InetSocketAddress(InetAddress.getLoopbackAddress(), config.getPort());
+            }
+            channel.bind(address);
+            var thread = new Thread(() -> acceptLoop(channel), "Sniffer DAP listener");
+            thread.setDaemon(true);
+            thread.start();
+            logger.info("Socket DAP server is running on {}", address);
+            return true;
+        } catch (IOException e) {
+            logger.error("Error starting socket DAP server", e);
+            stopServer();
+            return false;
+        }
+    }
+
+    /**
+     * Accepts the clients one at a time until the channel is closed.
+     */
+    private static void acceptLoop(ServerSocketChannel server) {
+        while (server.isOpen()) {
+            try (var client = server.accept()) {
+                current = client;
+                try {
+                    serve(client);
+                } finally {
+                    current = null;
+                }
+            } catch (AsynchronousCloseException e) {
+                return;
+            } catch (IOException e) {
+                logger.error("Error accepting a DAP client", e);
+            }
+        }
+    }
+
+    /**
+     * Serves a client until its connection is closed.
+     */
+    private static void serve(SocketChannel client) {
+        logger.info("DAP client connected: {}", safeRemoteAddress(client));
+        var dapServer = new DapServer();
+        var in = new BufferedInputStream(new ChannelInputStream(client));
+        var out = new BufferedOutputStream(new ChannelOutputStream(client));
+        var launcher = DSPLauncher.createLauncher(dapServer, SnifferDebugClient.class, in, out);
+        dapServer.setClient(launcher.getRemoteProxy());
+        DebuggerState.get().clientConnected();
+        try {
+            launcher.startListening().get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            logger.error("Error in DAP server", e.getCause());
+        } finally {
+            logger.info("DAP client disconnected");
+            ServerMailbox.get().run("close", DebuggerState.get()::clientClosed);
+            dapServer.exit();
+        }
+    }
+
+    private static Object safeRemoteAddress(SocketChannel client) {
+        try {
+            return client.getRemoteAddress();
+        } catch (IOException e) {
+            return "unknown";
+        }
+    }
+
+    /**
+     * Stops the socket server, closing the connection of the current client.
+     */
+    public static void stopServer() {
+        if (channel != null) {
+            try {
+                channel.close();
+                logger.info("Socket DAP server stopped");
+            } catch (IOException e) {
+                logger.error("Error stopping socket DAP server", e);
+            } finally {
+                channel = null;
+            }
+        }
+        var client = current;
+        if (client != null) {
+            try {
+                client.close();
+            } catch (IOException e) {
+                logger.error("Error closing the DAP client connection", e);
+            }
+        }
+        if (socketFile != null) {
+            try {
+                Files.deleteIfExists(socketFile);
+            } catch (IOException e) {
+                logger.warn("Could not delete the DAP socket file {}", socketFile, e);
+            }
+            socketFile = null;
+        }
+    }
+
+    /**
+     * Input stream reading a blocking socket channel.
+     * Unlike {@link java.nio.channels.Channels#newInputStream}, it does not hold the blocking lock of the channel,
+     * so a write is not blocked by a pending read.
+     */
+    private static class ChannelInputStream extends InputStream {
+        private final SocketChannel channel;
+
+        private ChannelInputStream(SocketChannel channel) {
+            this.channel = channel;
+        }
+
+        @Override
+        public int read() throws IOException {
+            var b = new byte[1];
+            return read(b, 0, 1) < 0 ? -1 : b[0] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            Objects.checkFromIndexSize(off, len, b.length);
+            if (len == 0) {
+                return 0;
+            }
+            try {
+                return channel.read(ByteBuffer.wrap(b, off, len));
+            } catch (AsynchronousCloseException e) {
+                return -1;
+            }
+        }
+    }
+
+    /**
+     * Output stream writing a blocking socket channel, see {@link ChannelInputStream}.
+     */
+    private static class ChannelOutputStream extends OutputStream {
+        private final SocketChannel channel;
+
+        private ChannelOutputStream(SocketChannel channel) {
+            this.channel = channel;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            Objects.checkFromIndexSize(off, len, b.length);
+            var buffer = ByteBuffer.wrap(b, off, len);
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+        }
+    }
+}
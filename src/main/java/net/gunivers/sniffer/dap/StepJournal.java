@@ -0,0 +1,521 @@
+package net.gunivers.sniffer.dap;
+
+import net.minecraft.nbt.NbtCompound;
+import net.minecraft.nbt.NbtElement;
+import net.minecraft.scoreboard.ReadableScoreboardScore;
+import net.minecraft.scoreboard.ScoreHolder;
+import net.minecraft.server.MinecraftServer;
+import net.minecraft.util.Identifier;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.*;
+
+/**
+ * Journal of the paused states of a debugging session, used to step back without running anything again.
+ * <p>
+ * Each time the execution is paused, the scope stack is captured as a snapshot, each frame keeping the values
+ * of its executor at this time. Snapshots are delta-encoded: a snapshot only keeps the frames pushed since
+ * the previous one, the bottom frames being shared, and a full keyframe is stored every {@link #KEYFRAME_INTERVAL}
+ * snapshots so that resolving a stack stays cheap.
+ * Between two snapshots, the scoreboard and command storage writes are journaled as undo records:
+ * only the value before the first write of each score or storage path is kept. A storage write is diffed
+ * against the previous content of the storage, so only the entries it changed are kept.
+ * <p>
+ * Going back in time is read-only: the scope stack shown to the client is replaced by the one of the snapshot,
+ * and the journaled values are shown in a history scope, while the world itself keeps its current state.
+ * The journal is bounded by an estimate of its size in bytes, the oldest snapshots being dropped with their writes.
+ * It must only be used on the server thread.
+ *
+ * @author theogiraudet
+ */
+public class StepJournal {
+
+    /** Maximum number of snapshots kept */
+    public static final int MAX_SNAPSHOTS = 512;
+    /** Maximum estimated size of the snapshots and writes kept, in bytes */
+    public static final long MAX_BYTES = 16L * 1024 * 1024;
+    /** Estimated size of a frame or a write without its strings and NBT, in bytes */
+    private static final int RECORD_BYTES = 64;
+    /** Estimated size of the values of an executor, in bytes */
+    private static final int EXECUTOR_BYTES = 256;
+    /** Number of snapshots between two keyframes */
+    private static final int KEYFRAME_INTERVAL = 32;
+
+    /** Whether a debugging session is paused and the writes must be journaled */
+    private static volatile boolean recording = false;
+
+    private static final StepJournal INSTANCE = new StepJournal();
+
+    /**
+     * Gets the singleton instance of the StepJournal.
+     *
+     * @return The StepJournal singleton instance
+     */
+    public static StepJournal get() {
+        return INSTANCE;
+    }
+
+    /**
+     * Checks if the writes must be journaled.
+     * This method is called on each scoreboard and storage write, it must stay as cheap as a field read.
+     *
+     * @return true if the journal is recording, false otherwise
+     */
+    public static boolean isRecording() {
+        return recording;
+    }
+
+    /**
+     * A frame of a captured scope stack.
+     *
+     * @param executor The values of the executor when the snapshot was captured
+     */
+    private record Frame(String function, int line, VariableManager.ExecutorView executor, @Nullable NbtCompound macroVariables) {
+        private long bytes() {
+            return RECORD_BYTES + EXECUTOR_BYTES + 2L * function.length() + (macroVariables != null ? macroVariables.getSizeInBytes() : 0);
+        }
+    }
+
+    /**
+     * A captured scope stack.
+     *
+     * @param keptFrames The number of bottom frames shared with the previous snapshot, 0 for a keyframe
+     * @param pushedFrames The frames above the kept ones, from the bottom to the top
+     * @param firstWrite The index of the first write journaled after this snapshot
+     * @param bytes The estimated size of the pushed frames
+     */
+    private record Snapshot(int keptFrames, Frame[] pushedFrames, long firstWrite, long bytes) {
+        private Snapshot(int keptFrames, Frame[] pushedFrames, long firstWrite) {
+            this(keptFrames, pushedFrames, firstWrite, Arrays.stream(pushedFrames).mapToLong(Frame::bytes).sum());
+        }
+    }
+
+    private sealed interface Write permits ScoreWrite, StorageWrite {
+        Object key();
+
+        long bytes();
+    }
+
+    private record ScoreKey(String holder, String objective) {}
+
+    /**
+     * @param before The score before the write
+     */
+    private record ScoreWrite(ScoreKey key, int before) implements Write {
+        @Override
+        public long bytes() {
+            return RECORD_BYTES + 2L * (key.holder().length() + key.objective().length());
+        }
+    }
+
+    /**
+     * @param storage The identifier of the storage
+     * @param path The keys leading to the entry from the root of the storage
+     */
+    private record StorageKey(Identifier storage, List<String> path) {
+        @Override
+        public String toString() {
+            return storage + " " + String.join(".", path);
+        }
+    }
+
+    /**
+     * @param before The entry before the write, or null if it did not exist
+     */
+    private record StorageWrite(StorageKey key, @Nullable NbtElement before) implements Write {
+        @Override
+        public long bytes() {
+            long bytes = RECORD_BYTES + 2L * key.path().stream().mapToInt(String::length).sum();
+            return before != null ? bytes + before.getSizeInBytes() : bytes;
+        }
+    }
+
+    private final List<Snapshot> snapshots = new ArrayList<>();
+    /** Frames of the last snapshot, the present */
+    private Frame[] lastFrames = new Frame[0];
+    private int sinceKeyframe = 0;
+
+    /** Estimated size of the snapshots and the writes */
+    private long bytes = 0;
+
+    private final ArrayDeque<Write> writes = new ArrayDeque<>();
+    /** Index of the first write of {@link #writes} */
+    private long firstWriteIndex = 0;
+    /** Keys written since the last snapshot, only their first write is journaled */
+    private final Set<Object> writtenKeys = new HashSet<>();
+
+    /** The score of the pending {@code setScore}, and its value before the write */
+    private Object pendingScore;
+    private int pendingBefore;
+
+    /** Number of snapshots between the shown one and the present, 0 when showing the present */
+    private volatile int cursor = 0;
+
+    private StepJournal() {}
+
+    // ===== Capture =====
+
+    /**
+     * Captures the scope stack once the execution is paused, going back to the present.
+     *
+     * @param scopeManager The scope manager, rebuilt for the paused position
+     */
+    public void capture(ScopeManager scopeManager) {
+        var frames = new Frame[scopeManager.count()];
+        for (int i = 0; i < frames.length; i++) {
+            var scope = scopeManager.getScope(i + 1).orElseThrow();
+            frames[i] = new Frame(scope.getFunction(), scope.getLine(), scope.getExecutorView(), scope.getMacroVariables());
+        }
+
+        int kept = 0;
+        if (this.sinceKeyframe < KEYFRAME_INTERVAL && !this.snapshots.isEmpty()) {
+            int max = Math.min(frames.length, this.lastFrames.length);
+            // Usually only the top frame has moved to another line
+            while (kept < max && frames[kept].equals(this.lastFrames[kept])) {
+                kept++;
+            }
+        }
+        this.sinceKeyframe = kept == 0 ? 1 : this.sinceKeyframe + 1;
+        var snapshot = new Snapshot(kept, Arrays.copyOfRange(frames, kept, frames.length), this.firstWriteIndex + this.writes.size());
+        this.snapshots.add(snapshot);
+        this.bytes += snapshot.bytes();
+        this.lastFrames = frames;
+        this.writtenKeys.clear();
+        this.cursor = 0;
+        recording = true;
+        trim();
+    }
+
+    /**
+     * Clears the journal, once the execution is resumed.
+     */
+    public void clear() {
+        recording = false;
+        this.snapshots.clear();
+        this.lastFrames = new Frame[0];
+        this.sinceKeyframe = 0;
+        this.bytes = 0;
+        this.writes.clear();
+        this.firstWriteIndex = 0;
+        this.writtenKeys.clear();
+        this.pendingScore = null;
+        this.cursor = 0;
+    }
+
+    /**
+     * Called before a score is set.
+     *
+     * @param score The score being set
+     * @param before The value before the write
+     */
+    public void beforeScoreSet(Object score, int before) {
+        this.pendingScore = score;
+        this.pendingBefore = before;
+    }
+
+    /**
+     * Called when a score is updated.
+     * Updates not preceded by a set of the same score only change its display and are not journaled.
+     *
+     * @param holder The name of the score holder
+     * @param objective The name of the objective
+     * @param score The updated score
+     */
+    public void onScoreUpdated(String holder, String objective, Object score) {
+        if (score != this.pendingScore) {
+            return;
+        }
+        this.pendingScore = null;
+        journal(new ScoreWrite(new ScoreKey(holder, objective), this.pendingBefore));
+    }
+
+    /**
+     * Called before a score is removed.
+     *
+     * @param holder The name of the score holder
+     * @param objective The name of the objective
+     * @param before The value before the removal
+     */
+    public void onScoreRemoved(String holder, String objective, int before) {
+        journal(new ScoreWrite(new ScoreKey(holder, objective), before));
+    }
+
+    /**
+     * Called before a command storage is written.
+     * The storage is diffed against its new content, only the entries that changed being copied and journaled.
+     *
+     * @param id The identifier of the storage
+     * @param before The storage before the write, not modified
+     * @param after The storage after the write
+     */
+    public void onStorageWrite(Identifier id, NbtCompound before, NbtCompound after) {
+        diff(id, new ArrayList<>(), before, after);
+        trim();
+    }
+
+    /**
+     * Journals the entries that differ between two versions of a storage.
+     * Compounds are compared entry by entry, any other element being journaled as a whole if it changed.
+     */
+    private void diff(Identifier id, List<String> path, @Nullable NbtElement before, @Nullable NbtElement after) {
+        if (before instanceof NbtCompound beforeCompound && after instanceof NbtCompound afterCompound) {
+            var keys = new LinkedHashSet<>(beforeCompound.getKeys());
+            keys.addAll(afterCompound.getKeys());
+            for (var key : keys) {
+                path.add(key);
+                diff(id, path, beforeCompound.get(key), afterCompound.get(key));
+                path.removeLast();
+            }
+        } else if (!Objects.equals(before, after)) {
+            var key = new StorageKey(id, List.copyOf(path));
+            if (this.writtenKeys.add(key)) {
+                append(new StorageWrite(key, before != null ? before.copy() : null));
+            }
+        }
+    }
+
+    private void journal(Write write) {
+        if (this.writtenKeys.add(write.key())) {
+            append(write);
+            trim();
+        }
+    }
+
+    private void append(Write write) {
+        this.writes.addLast(write);
+        this.bytes += write.bytes();
+    }
+
+    /**
+     * Drops the oldest snapshots and their writes until the journal fits in its bounds.
+     * The new oldest snapshot is turned into a keyframe.
+     */
+    private void trim() {
+        while (this.snapshots.size() > 1 && (this.snapshots.size() > MAX_SNAPSHOTS || this.bytes > MAX_BYTES)) {
+            // The oldest snapshot is always a keyframe
+            var oldest = this.snapshots.removeFirst();
+            this.bytes -= oldest.bytes();
+            var next = this.snapshots.getFirst();
+            if (next.keptFrames() > 0) {
+                this.bytes -= next.bytes();
+                next = new Snapshot(0, apply(oldest.pushedFrames(), next), next.firstWrite());
+                this.bytes += next.bytes();
+                this.snapshots.set(0, next);
+            }
+            while (this.firstWriteIndex < next.firstWrite()) {
+                this.bytes -= this.writes.pollFirst().bytes();
+                this.firstWriteIndex++;
+            }
+            this.cursor = Math.min(this.cursor, this.snapshots.size() - 1);
+        }
+    }
+
+    // ===== Time travel =====
+
+    /**
+     * Checks if a past snapshot is shown.
+     *
+     * @return true if the client is shown a past state, false if it is shown the present
+     */
+    public boolean isTimeTraveling() {
+        return this.cursor > 0;
+    }
+
+    /**
+     * Gets the number of snapshots between the shown one and the present.
+     *
+     * @return The cursor, 0 when showing the present
+     */
+    public int getCursor() {
+        return this.cursor;
+    }
+
+    /**
+     * Gets the number of snapshots in the journal.
+     *
+     * @return The number of snapshots
+     */
+    public int size() {
+        return this.snapshots.size();
+    }
+
+    /**
+     * Shows the previous snapshot.
+     *
+     * @param scopeManager The scope manager to rebuild with the snapshot
+     * @return false if the oldest snapshot is already shown
+     */
+    public boolean stepBack(ScopeManager scopeManager) {
+        if (this.cursor >= this.snapshots.size() - 1) {
+            return false;
+        }
+        this.cursor++;
+        show(scopeManager);
+        return true;
+    }
+
+    /**
+     * Shows the next snapshot, towards the present.
+     *
+     * @param scopeManager The scope manager to rebuild with the snapshot
+     * @return false if the present is already shown
+     */
+    public boolean stepForward(ScopeManager scopeManager) {
+        if (this.cursor == 0) {
+            return false;
+        }
+        this.cursor--;
+        show(scopeManager);
+        return true;
+    }
+
+    /**
+     * Goes back to the previous snapshot paused on a breakpoint, or to the oldest one if none.
+     *
+     * @param scopeManager The scope manager to rebuild with the snapshot
+     * @param debuggerState The debugger state holding the breakpoints
+     * @return false if the oldest snapshot is already shown
+     */
+    public boolean reverseContinue(ScopeManager scopeManager, DebuggerState debuggerState) {
+        if (this.cursor >= this.snapshots.size() - 1) {
+            return false;
+        }
+        var frames = resolveAll();
+        int index = frames.size() - 1 - this.cursor;
+        do {
+            index--;
+        } while (index > 0 && !onBreakpoint(frames.get(index), debuggerState));
+        this.cursor = frames.size() - 1 - index;
+        show(scopeManager);
+        return true;
+    }
+
+    private static boolean onBreakpoint(Frame[] frames, DebuggerState debuggerState) {
+        if (frames.length == 0) {
+            return false;
+        }
+        var head = frames[frames.length - 1];
+        var id = Identifier.tryParse(head.function());
+        return id != null && DebuggerState.hasBreakpoint(debuggerState.getBreakpointLines(id), head.line());
+    }
+
+    /**
+     * Rebuilds the scope stack with the snapshot at the cursor.
+     */
+    private void show(ScopeManager scopeManager) {
+        var frames = this.cursor == 0 ? this.lastFrames : resolve(this.snapshots.size() - 1 - this.cursor);
+        scopeManager.clear();
+        for (var frame : frames) {
+            scopeManager.newPastScope(frame.function(), frame.executor(), frame.macroVariables());
+            scopeManager.getCurrentScope().ifPresent(scope -> scope.setLine(frame.line()));
+        }
+    }
+
+    /**
+     * Resolves the frames of a snapshot from the previous keyframe.
+     */
+    private Frame[] resolve(int index) {
+        int keyframe = index;
+        while (keyframe > 0 && this.snapshots.get(keyframe).keptFrames() > 0) {
+            keyframe--;
+        }
+        var frames = this.snapshots.get(keyframe).pushedFrames();
+        for (int i = keyframe + 1; i <= index; i++) {
+            frames = apply(frames, this.snapshots.get(i));
+        }
+        return frames;
+    }
+
+    /**
+     * Resolves the frames of all the snapshots, the oldest first.
+     */
+    private List<Frame[]> resolveAll() {
+        var result = new ArrayList<Frame[]>(this.snapshots.size());
+        Frame[] frames = new Frame[0];
+        for (var snapshot : this.snapshots) {
+            frames = snapshot.keptFrames() == 0 ? snapshot.pushedFrames() : apply(frames, snapshot);
+            result.add(frames);
+        }
+        return result;
+    }
+
+    private static Frame[] apply(Frame[] previous, Snapshot snapshot) {
+        var frames = Arrays.copyOf(previous, snapshot.keptFrames() + snapshot.pushedFrames().length);
+        System.arraycopy(snapshot.pushedFrames(), 0, frames, snapshot.keptFrames(), snapshot.pushedFrames().length);
+        return frames;
+    }
+
+    // ===== History =====
+
+    /**
+     * Converts the scores and storages written since the shown snapshot into debugger variables.
+     * The value of each variable is the one at the shown snapshot, followed by the current one.
+     *
+     * @param server The server to read the current values from
+     * @param startId The ID of the root variable, the other ones following it
+     * @return The variables indexed by ID, the root one holding the scores and storages, or an empty map if the present is shown
+     */
+    public Map<Integer, DebuggerVariable> convertHistory(MinecraftServer server, int startId) {
+        if (this.cursor == 0) {
+            return Map.of();
+        }
+        var snapshot = this.snapshots.get(this.snapshots.size() - 1 - this.cursor);
+        // The first write of each key after the snapshot holds its value at the snapshot
+        var firstWrites = new LinkedHashMap<Object, Write>();
+        long index = this.firstWriteIndex;
+        for (var write : this.writes) {
+            if (index++ >= snapshot.firstWrite()) {
+                firstWrites.putIfAbsent(write.key(), write);
+            }
+        }
+
+        var variables = new HashMap<Integer, DebuggerVariable>();
+        var scores = new ArrayList<DebuggerVariable>();
+        var storages = new ArrayList<DebuggerVariable>();
+        int id = startId + 3;
+        for (var write : firstWrites.values()) {
+            if (write instanceof ScoreWrite(ScoreKey key, int before)) {
+                var value = before + " (now " + currentScore(server, key) + ")";
+                var variable = new DebuggerVariable(id++, key.holder() + " " + key.objective(), value, List.of(), false);
+                variables.put(variable.id(), variable);
+                scores.add(variable);
+            } else if (write instanceof StorageWrite(StorageKey key, NbtElement before)) {
+                var current = currentStorage(server, key);
+                var variable = before != null
+                        ? NbtElementVariableVisitor.convert(before, id++, key.toString(), false)
+                        : new DebuggerVariable(id++, key.toString(), "unset", List.of(), false);
+                variable = new DebuggerVariable(variable.id(), variable.name(),
+                        variable.value() + " (now " + (current != null ? NbtElementVariableVisitor.previewOf(current) : "unset") + ")", variable.children(), false);
+                variables.put(variable.id(), variable);
+                storages.add(variable);
+            }
+        }
+        var scoresVariable = new DebuggerVariable(startId + 1, "scores", scores.size() + " changed", scores, false);
+        var storagesVariable = new DebuggerVariable(startId + 2, "storage", storages.size() + " changed", storages, false);
+        variables.put(scoresVariable.id(), scoresVariable);
+        variables.put(storagesVariable.id(), storagesVariable);
+        variables.put(startId, new DebuggerVariable(startId, "history", this.cursor + " steps back", List.of(scoresVariable, storagesVariable), false));
+        return variables;
+    }
+
+    private static @Nullable NbtElement currentStorage(MinecraftServer server, StorageKey key) {
+        NbtElement element = server.getDataCommandStorage().get(key.storage());
+        for (var name : key.path()) {
+            if (!(element instanceof NbtCompound compound)) {
+                return null;
+            }
+            element = compound.get(name);
+        }
+        return element;
+    }
+
+    private static String currentScore(MinecraftServer server, ScoreKey key) {
+        var scoreboard = server.getScoreboard();
+        var objective = scoreboard.getNullableObjective(key.objective());
+        if (objective == null) {
+            return "unset";
+        }
+        ReadableScoreboardScore score = scoreboard.getScore(ScoreHolder.fromName(key.holder()), objective);
+        return score != null ? Integer.toString(score.getScore()) : "unset";
+    }
+}
@@ -0,0 +1,88 @@
+package net.gunivers.sniffer.dap;
+
+import net.gunivers.sniffer.profiler.TickTimeline;
+
+/**
+ * Totals of a tick as sent to the DAP client, by the {@code sniffer/tickSpike} event and the {@code sniffer/tickTimeline} request.
+ *
+ * @author theogiraudet
+ */
+public class TickSampleArguments {
+
+    /** The number of the tick */
+    private long tick;
+    /** The number of commands executed */
+    private long commands;
+    /** The number of functions entered */
+    private int functions;
+    /** The maximum frame depth reached */
+    private int maxDepth;
+    /** The time spent running commands, in nanoseconds */
+    private long nanos;
+    /** The most expensive functions, the most expensive first */
+    private FunctionCost[] topFunctions;
+
+    /**
+     * Cost of a function during a tick.
+     */
+    public static class FunctionCost {
+        /** The identifier of the function */
+        private String function;
+        /** The inclusive time spent in the function, in nanoseconds */
+        private long nanos;
+
+        public String getFunction() {
+            return function;
+        }
+
+        public long getNanos() {
+            return nanos;
+        }
+    }
+
+    /**
+     * Converts a tick sample of the timeline.
+     *
+     * @param sample The tick sample
+     * @return The DAP arguments
+     */
+    public static TickSampleArguments of(TickTimeline.TickSample sample) {
+        var args = new TickSampleArguments();
+        args.tick = sample.tick();
+        args.commands = sample.commands();
+        args.functions = sample.functions();
+        args.maxDepth = sample.maxDepth();
+        args.nanos = sample.nanos();
+        args.topFunctions = sample.topFunctions().stream().map(cost -> {
+            var functionCost = new FunctionCost();
+            functionCost.function = cost.function().toString();
+            functionCost.nanos = cost.nanos();
+            return functionCost;
+        }).toArray(FunctionCost[]::new);
+        return args;
+    }
+
+    public long getTick() {
+        return tick;
+    }
+
+    public long getCommands() {
+        return commands;
+    }
+
+    public int getFunctions() {
+        return functions;
+    }
+
+    public int getMaxDepth() {
+        return maxDepth;
+    }
+
+    public long getNanos() {
+        return nanos;
+    }
+
+    public FunctionCost[] getTopFunctions() {
+        return topFunctions;
+    }
+}
@@ -0,0 +1,81 @@
+package net.gunivers.sniffer.dap;
+
+import org.jetbrains.annotations.Nullable;
+
+import java.util.Arrays;
+import java.util.function.IntFunction;
+
+/**
+ * Table of the variable references given to the debugging client while the execution is paused.
+ * <p>
+ * The references are dense integers issued in increasing order, so the variables are stored in an array
+ * indexed by their reference and resolved without any lookup. The references are only valid for the current pause:
+ * the table is cleared at once when the execution continues, the array being kept for the next pause.
+ *
+ * @author theogiraudet
+ */
+public class VariableHandleTable {
+
+    /** Initial number of references of the table */
+    private static final int INITIAL_CAPACITY = 256;
+
+    /** Variables indexed by reference, the references below {@link #next} being issued */
+    private DebuggerVariable[] variables = new DebuggerVariable[INITIAL_CAPACITY];
+    /** Next reference to issue */
+    private int next = 1;
+
+    /**
+     * Gets the first reference of a new batch of variables.
+     *
+     * @param minimum The lowest reference the batch can start with, the lower ones being used elsewhere
+     * @return The first reference to give to the variables of the batch
+     */
+    public int nextHandle(int minimum) {
+        return Math.max(this.next, minimum);
+    }
+
+    /**
+     * Stores a variable under its reference.
+     *
+     * @param variable The variable to store, its ID being its reference
+     */
+    public void put(DebuggerVariable variable) {
+        int handle = variable.id();
+        if (handle >= this.variables.length) {
+            this.variables = Arrays.copyOf(this.variables, Math.max(this.variables.length * 2, handle + 1));
+        }
+        this.variables[handle] = variable;
+        this.next = Math.max(this.next, handle + 1);
+    }
+
+    /**
+     * Issues the next reference to a variable created on demand.
+     *
+     * @param minimum The lowest reference that can be issued, the lower ones being used elsewhere
+     * @param factory Creates the variable from its reference
+     * @return The created variable
+     */
+    public DebuggerVariable issue(int minimum, IntFunction<DebuggerVariable> factory) {
+        var variable = factory.apply(nextHandle(minimum));
+        put(variable);
+        return variable;
+    }
+
+    /**
+     * Resolves a reference.
+     *
+     * @param handle The reference to resolve
+     * @return The variable with this reference, or null if it was not issued during the current pause
+     */
+    public @Nullable DebuggerVariable get(int handle) {
+        return handle > 0 && handle < this.next ? this.variables[handle] : null;
+    }
+
+    /**
+     * Frees all the references at once.
+     */
+    public void clear() {
+        Arrays.fill(this.variables, 0, this.next, null);
+        this.next = 1;
+    }
+}
@@ -1,6 +1,5 @@
 package net.gunivers.sniffer.dap;
 
-import net.minecraft.entity.Entity;
 import net.minecraft.entity.EntityType;
 import net.minecraft.nbt.NbtCompound;
 import net.minecraft.server.command.AbstractServerCommandSource;
@@ -26,6 +25,48 @@ import java.util.Map;
  */
 public class VariableManager {
 
+    /**
+     * The values of a command source shown to the client, copied so that they keep the state at the time they were read.
+     *
+     * @param entity The executor entity, or null for the server
+     * @param position The position of the command source
+     * @param rotation The rotation of the command source
+     * @param world The dimension of the command source
+     */
+    public record ExecutorView(@Nullable EntityView entity, Vec3d position, Vec2f rotation, String world) {}
+
+    /**
+     * The values of an executor entity shown to the client.
+     *
+     * @param type The entity type
+     * @param name The literal name of the entity, or null if it has none
+     * @param uuid The UUID of the entity
+     * @param position The position of the entity
+     * @param rotation The rotation of the entity
+     * @param world The dimension of the entity
+     */
+    public record EntityView(String type, @Nullable String name, String uuid, Vec3d position, Vec2f rotation, String world) {}
+
+    /**
+     * Reads the values of a command source shown to the client.
+     *
+     * @param source The command source to read
+     * @return The values of the command source and its executor at this time
+     */
+    public static ExecutorView viewOf(AbstractServerCommandSource<?> source) {
+        if(source instanceof ServerCommandSource commandSource) {
+            var entity = commandSource.getEntity();
+            EntityView entityView = null;
+            if(entity != null) {
+                entityView = new EntityView(typeToString(entity.getType()), entity.getName().getLiteralString(), entity.getUuidAsString(),
+                        entity.getEntityPos(), entity.getRotationClient(), worldToString(entity.getEntityWorld()));
+            }
+            return new ExecutorView(entityView, commandSource.getPosition(), commandSource.getRotation(), worldToString(commandSource.getWorld()));
+        } else {
+            throw new IllegalStateException("AbstractServerCommandSource is not a ServerCommandSource but a " + source.getClass().getSimpleName());
+        }
+    }
+
     /**
      * Converts a command source into a map of debugger variables.
      * This method extracts relevant information from the command source such as
@@ -36,43 +77,50 @@ public class VariableManager {
      * @return A map of variable IDs to debugger variables
      */
     public static Map<Integer, DebuggerVariable> convertCommandSource(AbstractServerCommandSource<?> source, int startIndex) {
-        if(source instanceof ServerCommandSource commandSource) {
-            //if executor is an entity
-            var executorVariable = convertEntityVariables(commandSource.getEntity(), startIndex, true);
-            var currentIndex = executorVariable.getRight();
+        return convertExecutor(viewOf(source), startIndex);
+    }
 
-            var locId = currentIndex++;
+    /**
+     * Converts the values of a command source into a map of debugger variables.
+     *
+     * @param source The values of the command source to convert
+     * @param startIndex The starting index for variable IDs
+     * @return A map of variable IDs to debugger variables
+     */
+    public static Map<Integer, DebuggerVariable> convertExecutor(ExecutorView source, int startIndex) {
+        //if executor is an entity
+        var executorVariable = convertEntityVariables(source.entity(), startIndex, true);
+        var currentIndex = executorVariable.getRight();
 
-            var posVariable = convertPos(commandSource.getPosition(), currentIndex, false);
-            currentIndex = posVariable.getRight();
+        var locId = currentIndex++;
 
-            var rotVariable = convertRotation(commandSource.getRotation(), currentIndex, false);
-            currentIndex = rotVariable.getRight();
+        var posVariable = convertPos(source.position(), currentIndex, false);
+        currentIndex = posVariable.getRight();
 
-            var worldVariable = convertWorld(commandSource.getWorld(), currentIndex, false);
+        var rotVariable = convertRotation(source.rotation(), currentIndex, false);
+        currentIndex = rotVariable.getRight();
 
-            var locationVariable = new DebuggerVariable(locId, "location", posVariable.getLeft().value(), List.of(posVariable.getLeft(), rotVariable.getLeft(), worldVariable), true);
+        var worldVariable = convertWorld(source.world(), currentIndex, false);
 
-            var result = new ArrayList<DebuggerVariable>(currentIndex);
-            result.add(executorVariable.getLeft());
-            result.add(locationVariable);
+        var locationVariable = new DebuggerVariable(locId, "location", posVariable.getLeft().value(), List.of(posVariable.getLeft(), rotVariable.getLeft(), worldVariable), true);
 
-            return flattenToMap(result);
-        } else {
-            throw new IllegalStateException("AbstractServerCommandSource is not a ServerCommandSource but a " + source.getClass().getSimpleName());
-        }
+        var result = new ArrayList<DebuggerVariable>(currentIndex);
+        result.add(executorVariable.getLeft());
+        result.add(locationVariable);
+
+        return flattenToMap(result);
     }
 
     /**
      * Converts an entity into a debugger variable with its properties.
      * This method extracts entity information such as type, name, UUID, position, rotation, and dimension.
      *
-     * @param entity The entity to convert, can be null (representing the server)
+     * @param entity The values of the entity to convert, can be null (representing the server)
      * @param startIndex The starting index for variable IDs
      * @param isRoot Whether this variable is a root-level variable
      * @return A pair containing the created variable and the next available ID
      */
-    private static Pair<DebuggerVariable, Integer> convertEntityVariables(@Nullable Entity entity, int startIndex, boolean isRoot) {
+    private static Pair<DebuggerVariable, Integer> convertEntityVariables(@Nullable EntityView entity, int startIndex, boolean isRoot) {
         if(entity == null) {
             return new Pair<>(
                     new DebuggerVariable(startIndex, "executor", "server", List.of(), isRoot),
@@ -82,18 +130,18 @@ public class VariableManager {
 
         var id = startIndex + 1;
 
-        var objectType = new DebuggerVariable(id++, "type", typeToString(entity.getType()), List.of(), false);
-        var objectName = new DebuggerVariable(id++, "name", entity.getName().getLiteralString(), List.of(), false);
+        var objectType = new DebuggerVariable(id++, "type", entity.type(), List.of(), false);
+        var objectName = new DebuggerVariable(id++, "name", entity.name(), List.of(), false);
 
-        var objectUuid = new DebuggerVariable(id++, "uuid", entity.getUuidAsString(), List.of(), false);
+        var objectUuid = new DebuggerVariable(id++, "uuid", entity.uuid(), List.of(), false);
 
-        var pos = convertPos(entity.getEntityPos(), id, false);
+        var pos = convertPos(entity.position(), id, false);
         id = pos.getRight();
 
-        var rot = convertRotation(entity.getRotationClient(), id, false);
+        var rot = convertRotation(entity.rotation(), id, false);
         id = rot.getRight();
 
-        var objectDimension = convertWorld(entity.getEntityWorld(), id++, false);
+        var objectDimension = convertWorld(entity.world(), id++, false);
 
         var displayName = objectName.value() != null ? objectName.value() : objectType.value();
 
@@ -153,13 +201,23 @@ public class VariableManager {
      * Converts a Minecraft world into a debugger variable.
      * This method creates a variable representing the world/dimension.
      *
-     * @param world The world to convert
+     * @param world The dimension of the world, see {@link #worldToString(World)}
      * @param id The ID for the variable
      * @param isRoot Whether this variable is a root-level variable
      * @return The created debugger variable
      */
-    private static DebuggerVariable convertWorld(World world, int id, boolean isRoot) {
-        return new DebuggerVariable(id, "world", world.getDimension().effects().getPath(), List.of(), isRoot);
+    private static DebuggerVariable convertWorld(String world, int id, boolean isRoot) {
+        return new DebuggerVariable(id, "world", world, List.of(), isRoot);
+    }
+
+    /**
+     * Converts a Minecraft world to a readable string representation.
+     *
+     * @param world The world to convert
+     * @return The path of the dimension effects of the world
+     */
+    private static String worldToString(World world) {
+        return world.getDimension().effects().getPath();
     }
 
     /**
@@ -190,20 +248,18 @@ public class VariableManager {
 
     /**
      * Converts an NBT compound into a map of debugger variables.
-     * This method uses a visitor pattern to traverse the NBT structure and create
-     * corresponding debugger variables for each element.
+     * This method uses a visitor pattern to convert the compound into a single variable,
+     * its entries being converted when the client expands it.
      *
      * @param name The name of the root variable
      * @param compound The NBT compound to convert, may be null
-     * @param startIndex The starting index for variable IDs
+     * @param startIndex The ID of the variable
      * @param isRoot Whether this variable is a root-level variable
-     * @return A map of variable IDs to debugger variables, or an empty map if compound is null
+     * @return A map holding the variable by ID, or an empty map if compound is null
      */
     public static Map<Integer, DebuggerVariable> convertNbtCompound(String name, @Nullable NbtCompound compound, int startIndex, boolean isRoot) {
         if(compound != null) {
-            var visitor = new NbtElementVariableVisitor(startIndex, name, isRoot);
-            compound.accept(visitor);
-            return visitor.get();
+            return Map.of(startIndex, NbtElementVariableVisitor.convert(compound, startIndex, name, isRoot));
         }
         return Map.of();
     }
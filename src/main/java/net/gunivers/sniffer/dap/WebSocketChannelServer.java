@@ -0,0 +1,239 @@
+package net.gunivers.sniffer.dap;
+
+import jakarta.websocket.CloseReason;
+import jakarta.websocket.DeploymentException;
+import jakarta.websocket.server.ServerEndpointConfig;
+import org.glassfish.tyrus.core.RequestContext;
+import org.glassfish.tyrus.core.TyrusUpgradeResponse;
+import org.glassfish.tyrus.core.TyrusWebSocketEngine;
+import org.glassfish.tyrus.server.TyrusServerContainer;
+import org.glassfish.tyrus.spi.CompletionHandler;
+import org.glassfish.tyrus.spi.WebSocketEngine;
+import org.glassfish.tyrus.spi.Writer;
+import org.jetbrains.annotations.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Tyrus container serving the WebSocket connections accepted by the {@link LazyDapListener}.
+ * <p>
+ * The accepted channels are handed over to the Tyrus engine as they are: this container reads the HTTP upgrade request,
+ * writes the handshake response, then feeds the frames to the engine, which calls the {@link WebSocketServer} endpoint.
+ * No HTTP server is started, no port is bound besides the one of the listener, and each connection is served
+ * by the thread that reads it.
+ *
+ * @author theogiraudet
+ */
+public class WebSocketChannelServer extends TyrusServerContainer {
+
+    private static final Logger logger = LoggerFactory.getLogger("sniffer");
+
+    /** Size of the buffer a connection is read into */
+    private static final int BUFFER_SIZE = 16 * 1024;
+    /** Maximum size of the HTTP upgrade request */
+    private static final int MAX_REQUEST_SIZE = 8 * 1024;
+
+    private final WebSocketEngine engine = TyrusWebSocketEngine.builder(this).build();
+    /** Connections being served, closed with the container */
+    private final Set<SocketChannel> clients = ConcurrentHashMap.newKeySet();
+    private String contextPath = "/";
+
+    /**
+     * Creates the container of the {@link WebSocketServer} endpoint, registered when the container is started.
+     */
+    public WebSocketChannelServer() {
+        super(Set.of(WebSocketServer.WebSocketConfigurator.class));
+    }
+
+    @Override
+    public void register(Class<?> endpointClass) throws DeploymentException {
+        engine.register(endpointClass, contextPath);
+    }
+
+    @Override
+    public void register(ServerEndpointConfig serverEndpointConfig) throws DeploymentException {
+        engine.register(serverEndpointConfig, contextPath);
+    }
+
+    @Override
+    public WebSocketEngine getWebSocketEngine() {
+        return engine;
+    }
+
+    /**
+     * Registers the endpoints, the connections being accepted by the caller.
+     *
+     * @param rootPath The context path of the endpoints
+     * @param port The port the connections are accepted on
+     */
+    @Override
+    public void start(String rootPath, int port) throws IOException, DeploymentException {
+        this.contextPath = rootPath;
+        super.start(rootPath, port);
+    }
+
+    /**
+     * Closes the connections being served.
+     */
+    @Override
+    public void stop() {
+        clients.forEach(WebSocketChannelServer::closeQuietly);
+        super.stop();
+    }
+
+    /**
+     * Serves a connection until it is closed, on the calling thread.
+     *
+     * @param client The accepted connection, closed when this method returns
+     */
+    public void serve(SocketChannel client) {
+        clients.add(client);
+        try (client) {
+            var buffer = ByteBuffer.allocate(BUFFER_SIZE);
+            int requestEnd;
+            while ((requestEnd = requestEnd(buffer)) < 0) {
+                if (buffer.position() >= MAX_REQUEST_SIZE || client.read(buffer) < 0) {
+                    return;
+                }
+            }
+            var request = parseRequest(new String(buffer.array(), 0, requestEnd, StandardCharsets.ISO_8859_1));
+            var response = new TyrusUpgradeResponse();
+            var upgrade = request == null ? null : engine.upgrade(request, response);
+            if (upgrade == null || upgrade.getStatus() == WebSocketEngine.UpgradeStatus.NOT_APPLICABLE) {
+                response.setStatus(upgrade == null ? 400 : 404);
+                response.setReasonPhrase(upgrade == null ? "Bad Request" : "Not Found");
+            }
+            write(client, ByteBuffer.wrap(responseHeader(response).getBytes(StandardCharsets.ISO_8859_1)));
+            if (upgrade == null || upgrade.getStatus() != WebSocketEngine.UpgradeStatus.SUCCESS) {
+                return;
+            }
+
+            var connection = upgrade.createConnection(new ChannelWriter(client), reason -> closeQuietly(client));
+            // The frames sent right after the upgrade request may have been read with it
+            buffer.flip().position(requestEnd);
+            var reason = "Connection closed";
+            try {
+                do {
+                    if (buffer.hasRemaining()) {
+                        connection.getReadHandler().handle(buffer);
+                    }
+                    buffer.clear();
+                } while (client.read(buffer) >= 0 && buffer.flip() != null);
+            } catch (IOException e) {
+                reason = e.getMessage();
+            }
+            connection.close(new CloseReason(CloseReason.CloseCodes.CLOSED_ABNORMALLY, reason));
+        } catch (IOException e) {
+            logger.debug("DAP connection closed", e);
+        } finally {
+            clients.remove(client);
+        }
+    }
+
+    /**
+     * Finds the end of the HTTP upgrade request in the bytes read so far.
+     *
+     * @return The index following the blank line ending the request, or -1 if it is not read yet
+     */
+    private static int requestEnd(ByteBuffer buffer) {
+        var bytes = buffer.array();
+        for (int i = 3; i < buffer.position(); i++) {
+            if (bytes[i - 3] == '\r' && bytes[i - 2] == '\n' && bytes[i - 1] == '\r' && bytes[i] == '\n') {
+                return i + 1;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Parses an HTTP upgrade request.
+     *
+     * @return The request, or null if it is not a GET request
+     */
+    private static @Nullable RequestContext parseRequest(String text) {
+        var lines = text.split("\r\n");
+        var requestLine = lines[0].split(" ");
+        if (requestLine.length != 3 || !requestLine[0].equals("GET")) {
+            return null;
+        }
+        URI uri;
+        try {
+            uri = URI.create(requestLine[1]);
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+        var request = RequestContext.Builder.create().requestURI(uri).queryString(uri.getQuery()).build();
+        for (int i = 1; i < lines.length; i++) {
+            int colon = lines[i].indexOf(':');
+            if (colon > 0) {
+                request.getHeaders().computeIfAbsent(lines[i].substring(0, colon).trim(), name -> new ArrayList<>())
+                        .add(lines[i].substring(colon + 1).trim());
+            }
+        }
+        return request;
+    }
+
+    private static String responseHeader(TyrusUpgradeResponse response) {
+        var header = new StringBuilder("HTTP/1.1 ").append(response.getStatus()).append(' ')
+                .append(response.getReasonPhrase() == null ? "" : response.getReasonPhrase()).append("\r\n");
+        response.getHeaders().forEach((name, values) -> header.append(name).append(": ").append(String.join(", ", values)).append("\r\n"));
+        return header.append("\r\n").toString();
+    }
+
+    /**
+     * Writes a buffer entirely, the engine writing from the threads sending the messages.
+     */
+    private static void write(SocketChannel client, ByteBuffer buffer) throws IOException {
+        synchronized (client) {
+            while (buffer.hasRemaining()) {
+                client.write(buffer);
+            }
+        }
+    }
+
+    private static void closeQuietly(SocketChannel client) {
+        try {
+            client.close();
+        } catch (IOException ignored) {
+        }
+    }
+
+    /**
+     * Writes the frames of the engine to a connection.
+     */
+    private static class ChannelWriter extends Writer {
+        private final SocketChannel client;
+
+        private ChannelWriter(SocketChannel client) {
+            this.client = client;
+        }
+
+        @Override
+        public void write(ByteBuffer buffer, CompletionHandler<ByteBuffer> completionHandler) {
+            try {
+                WebSocketChannelServer.write(client, buffer);
+                if (completionHandler != null) {
+                    completionHandler.completed(buffer);
+                }
+            } catch (IOException e) {
+                if (completionHandler != null) {
+                    completionHandler.failed(e);
+                }
+            }
+        }
+
+        @Override
+        public void close() {
+            closeQuietly(client);
+        }
+    }
+}
@@ -1,55 +1,188 @@
 package net.gunivers.sniffer.dap;
 
 
-import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.util.Objects;
+import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.LinkedBlockingQueue;
 
 /**
  * Adapts WebSocket messages into an InputStream.
- * This class provides a bridge between the WebSocket message-based API and 
- * the Java stream-based API by converting incoming WebSocket messages 
+ * This class provides a bridge between the WebSocket message-based API and
+ * the Java stream-based API by converting incoming WebSocket messages
  * into a continuous input stream that can be consumed by stream-based APIs.
  * <p>
- * The class blocks when no data is available and waits for messages
- * to arrive on the provided message queue.
+ * The messages are offered by the WebSocket thread and read by the lsp4j reader thread.
+ * They are copied into pooled buffers, text messages being encoded in UTF-8, and read in bulk
+ * by {@link #read(byte[], int, int)}. The stream blocks when no data is available,
+ * and reaches its end once {@link #offerEndOfStream()} is called and the pending messages are read.
  *
  * @author theogiraudet
  */
 public class WebSocketInputStream extends InputStream {
-    /** Queue containing incoming WebSocket messages */
-    private final LinkedBlockingQueue<byte[]> queue;
-    /** Current stream being read from */
-    private ByteArrayInputStream currentStream;
+    /** Size of the pooled buffers, larger messages being copied into a dedicated buffer */
+    private static final int POOLED_BUFFER_SIZE = 16 * 1024;
+    /** Maximum number of buffers kept in the pool */
+    private static final int MAX_POOLED_BUFFERS = 8;
+    /** Marker of the end of the stream in the queue */
+    private static final ByteBuffer END_OF_STREAM = ByteBuffer.allocate(0);
+
+    /** Queue containing the incoming WebSocket messages, ready to be read */
+    private final LinkedBlockingQueue<ByteBuffer> queue = new LinkedBlockingQueue<>();
+    /** Buffers of the messages already read, to be reused */
+    private final ArrayBlockingQueue<ByteBuffer> pool = new ArrayBlockingQueue<>(MAX_POOLED_BUFFERS);
+    /** Encoder of the text messages, only used by the WebSocket thread */
+    private final CharsetEncoder encoder = StandardCharsets.UTF_8.newEncoder()
+            .onMalformedInput(CodingErrorAction.REPLACE)
+            .onUnmappableCharacter(CodingErrorAction.REPLACE);
+    /** Message being read, only used by the reader thread */
+    private ByteBuffer current;
+    /** If the end of the stream has been read */
+    private boolean ended = false;
+
+    /**
+     * Queues a text message, encoded in UTF-8.
+     *
+     * @param message The text message
+     */
+    public void offerText(String message) {
+        int maxLength = (int) Math.ceil(message.length() * (double) encoder.maxBytesPerChar());
+        if (maxLength > POOLED_BUFFER_SIZE) {
+            queue.offer(ByteBuffer.wrap(message.getBytes(StandardCharsets.UTF_8)));
+            return;
+        }
+        var buffer = acquire();
+        encoder.reset();
+        encoder.encode(CharBuffer.wrap(message), buffer, true);
+        encoder.flush(buffer);
+        queue.offer(buffer.flip());
+    }
+
+    /**
+     * Queues a binary message. The message is copied, so its buffer can be reused by the caller.
+     *
+     * @param message The binary message
+     */
+    public void offerBinary(ByteBuffer message) {
+        var buffer = message.remaining() > POOLED_BUFFER_SIZE ? ByteBuffer.allocate(message.remaining()) : acquire();
+        queue.offer(buffer.put(message).flip());
+    }
 
     /**
-     * Creates a new WebSocketInputStream.
-     * 
-     * @param queue The queue that will be filled with WebSocket messages
+     * Signals that no message will be offered anymore.
+     * The messages already queued are still read before the end of the stream.
      */
-    public WebSocketInputStream(LinkedBlockingQueue<byte[]> queue) {
-        this.queue = queue;
+    public void offerEndOfStream() {
+        queue.offer(END_OF_STREAM);
+    }
+
+    private ByteBuffer acquire() {
+        var buffer = pool.poll();
+        return buffer != null ? buffer : ByteBuffer.allocate(POOLED_BUFFER_SIZE);
+    }
+
+    /**
+     * Gets the message to read from, waiting for one if requested.
+     * The message fully read is given back to the pool.
+     *
+     * @param block If the method must wait for a message when none is queued
+     * @return The message to read from, or null if the end of the stream is reached or no message is queued
+     * @throws IOException If the thread is interrupted while waiting
+     */
+    private ByteBuffer next(boolean block) throws IOException {
+        if (current != null) {
+            if (current.hasRemaining()) {
+                return current;
+            }
+            if (current.capacity() == POOLED_BUFFER_SIZE) {
+                pool.offer(current.clear());
+            }
+            current = null;
+        }
+        if (ended) {
+            return null;
+        }
+        ByteBuffer message;
+        try {
+            message = block ? queue.take() : queue.poll();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for a WebSocket message");
+        }
+        if (message == END_OF_STREAM) {
+            ended = true;
+            return null;
+        }
+        current = message;
+        // Empty messages are skipped
+        return message == null || message.hasRemaining() ? message : next(block);
     }
 
     /**
      * Reads a single byte from the WebSocket message stream.
      * If the current message has been fully read, this method will block until
      * a new message is available in the queue.
-     * 
+     *
      * @return The byte read, or -1 if the end of the stream is reached
-     * @throws IOException If an I/O error occurs or the thread is interrupted
+     * @throws IOException If the thread is interrupted
      */
     @Override
     public int read() throws IOException {
-        if (currentStream == null || currentStream.available() == 0) {
-            try {
-                byte[] nextMessage = queue.take();
-                currentStream = new ByteArrayInputStream(nextMessage);
-            } catch (InterruptedException e) {
-                throw new IOException("Interrupted while waiting for a WebSocket message", e);
-            }
+        var buffer = next(true);
+        return buffer == null ? -1 : buffer.get() & 0xFF;
+    }
+
+    /**
+     * Reads bytes from the WebSocket message stream.
+     * This method only blocks until one message is available, then reads as many bytes as possible
+     * from the messages already queued.
+     *
+     * @return The number of bytes read, or -1 if the end of the stream is reached
+     * @throws IOException If the thread is interrupted
+     */
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        Objects.checkFromIndexSize(off, len, b.length);
+        if (len == 0) {
+            return 0;
+        }
+        var buffer = next(true);
+        if (buffer == null) {
+            return -1;
+        }
+        int read = 0;
+        while (buffer != null && read < len) {
+            int count = Math.min(len - read, buffer.remaining());
+            buffer.get(b, off + read, count);
+            read += count;
+            buffer = read < len ? next(false) : null;
         }
-        return currentStream.read();
+        return read;
+    }
+
+    /**
+     * Gets the number of bytes that can be read without blocking from the current message.
+     *
+     * @return The number of remaining bytes of the current message
+     */
+    @Override
+    public int available() {
+        return current == null ? 0 : current.remaining();
+    }
+
+    /**
+     * Closes the stream, discarding the pending messages and waking up the reader.
+     */
+    @Override
+    public void close() {
+        queue.clear();
+        offerEndOfStream();
     }
 }
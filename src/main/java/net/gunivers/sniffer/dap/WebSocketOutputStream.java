@@ -1,32 +1,94 @@
 package net.gunivers.sniffer.dap;
 
+import jakarta.websocket.SendResult;
 import jakarta.websocket.Session;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
-import java.io.ByteArrayOutputStream;
-import java.io.IOException;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Objects;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Adapts an OutputStream to send data through WebSocket.
  * This class provides a bridge between the Java stream-based API and
  * the WebSocket message-based API by buffering written data
- * and then sending it as a WebSocket message when flushed.
+ * and then sending it as WebSocket messages.
  * <p>
- * Data is accumulated in an internal buffer until flush() is called,
- * at which point it is converted to a string and sent as a WebSocket text message.
+ * lsp4j writes one DAP message per {@link #flush()}. The messages are queued, then sent by a sender thread
+ * as binary frames holding several messages, the client reading the frames as a stream:
+ * <ul>
+ *     <li>Events wait for {@link #BATCH_WINDOW_MILLIS} so that a burst of events is sent in one frame,
+ *     responses are sent at once with the pending events.</li>
+ *     <li>At most {@link #MAX_IN_FLIGHT} frames are being sent at a time, the messages queuing up meanwhile.</li>
+ *     <li>Queued {@code stopped} and {@code continued} events are replaced by the next one,
+ *     since only the last execution state matters to a client that did not see them yet.</li>
+ *     <li>The oldest queued {@code output} events are dropped once the queue exceeds {@link #MAX_PENDING_BYTES}.</li>
+ * </ul>
  *
  * @author theogiraudet
  */
 public class WebSocketOutputStream extends OutputStream {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger("sniffer");
+
+    /** Delay during which the events are gathered before being sent */
+    private static final long BATCH_WINDOW_MILLIS = 2;
+    /** Maximum number of frames being sent at a time */
+    private static final int MAX_IN_FLIGHT = 2;
+    /** Maximum size of a frame, unless it holds a single larger message */
+    private static final int MAX_BATCH_BYTES = 256 * 1024;
+    /** Size of the queued messages above which the output events are dropped */
+    private static final int MAX_PENDING_BYTES = 4 * 1024 * 1024;
+    /** Number of bytes of a message searched for its type, the header and the first JSON fields */
+    private static final int PREFIX_LENGTH = 128;
+
+    /** Thread sending the frames of all the sessions */
+    private static final ScheduledExecutorService SENDER = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        var thread = new Thread(runnable, "Sniffer DAP sender");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /**
+     * The kind of a DAP message, deciding how it is batched.
+     */
+    private enum Kind {
+        /** A response or a request, never delayed nor dropped */
+        URGENT,
+        /** A {@code stopped} or {@code continued} event, replaced by the next one */
+        EXECUTION_STATE,
+        /** An {@code output} event, dropped when the client is too slow */
+        OUTPUT,
+        /** Any other event */
+        EVENT
+    }
+
+    private record Message(byte[] bytes, Kind kind) {}
+
     /** The WebSocket session to send messages to */
     private final Session session;
-    /** Buffer to accumulate data until flushed */
-    private final ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+    /** Message being written, only used by the lsp4j writer thread */
+    private byte[] buffer = new byte[1024];
+    private int length = 0;
+
+    /** Messages waiting to be sent, guarded by itself */
+    private final ArrayDeque<Message> pending = new ArrayDeque<>();
+    private int pendingBytes = 0;
+    private int inFlight = 0;
+    /** If a drain of the pending messages is scheduled */
+    private boolean scheduled = false;
 
     /**
      * Creates a new WebSocketOutputStream.
-     * 
+     *
      * @param session The WebSocket session to send data to
      */
     public WebSocketOutputStream(Session session) {
@@ -34,38 +96,163 @@ public class WebSocketOutputStream extends OutputStream {
     }
 
     /**
-     * Writes a single byte to the internal buffer.
+     * Writes a single byte to the message being written.
      * This does not send any data over the WebSocket until flush() is called.
-     * 
+     *
      * @param b The byte to write
      */
     @Override
     public void write(int b) {
-        buffer.write(b);
+        ensureCapacity(1);
+        buffer[length++] = (byte) b;
+    }
+
+    /**
+     * Writes bytes to the message being written.
+     * This does not send any data over the WebSocket until flush() is called.
+     */
+    @Override
+    public void write(byte[] b, int off, int len) {
+        Objects.checkFromIndexSize(off, len, b.length);
+        ensureCapacity(len);
+        System.arraycopy(b, off, buffer, length, len);
+        length += len;
+    }
+
+    private void ensureCapacity(int additional) {
+        if (length + additional > buffer.length) {
+            buffer = Arrays.copyOf(buffer, Math.max(buffer.length * 2, length + additional));
+        }
     }
 
     /**
-     * Flushes the buffered data by sending it as a WebSocket text message.
-     * The internal buffer is reset after sending.
-     * 
-     * @throws IOException If an error occurs sending the message or if the session is closed
+     * Queues the message written since the last flush to be sent.
      */
     @Override
-    public void flush() throws IOException {
-        String message = buffer.toString(StandardCharsets.UTF_8);
-        buffer.reset();
+    public void flush() {
+        if (length == 0) {
+            return;
+        }
+        var bytes = Arrays.copyOf(buffer, length);
+        length = 0;
         if (session.isOpen()) {
-            session.getAsyncRemote().sendText(message);
+            enqueue(new Message(bytes, kindOf(bytes)));
+        }
+    }
+
+    /**
+     * Gets the kind of a message from its first JSON fields, lsp4j writing the type and the event name before the body.
+     */
+    private static Kind kindOf(byte[] bytes) {
+        var prefix = new String(bytes, 0, Math.min(bytes.length, PREFIX_LENGTH), StandardCharsets.UTF_8);
+        if (!prefix.contains("\"type\":\"event\"")) {
+            return Kind.URGENT;
+        }
+        if (prefix.contains("\"event\":\"stopped\"") || prefix.contains("\"event\":\"continued\"")) {
+            return Kind.EXECUTION_STATE;
+        }
+        return prefix.contains("\"event\":\"output\"") ? Kind.OUTPUT : Kind.EVENT;
+    }
+
+    private void enqueue(Message message) {
+        synchronized (pending) {
+            if (message.kind() == Kind.EXECUTION_STATE) {
+                removePending(Kind.EXECUTION_STATE, Integer.MAX_VALUE);
+            }
+            pending.addLast(message);
+            pendingBytes += message.bytes().length;
+            if (pendingBytes > MAX_PENDING_BYTES) {
+                removePending(Kind.OUTPUT, pendingBytes - MAX_PENDING_BYTES);
+            }
+            if (message.kind() == Kind.URGENT) {
+                SENDER.execute(this::drain);
+                scheduled = true;
+            } else if (!scheduled) {
+                SENDER.schedule(this::drain, BATCH_WINDOW_MILLIS, TimeUnit.MILLISECONDS);
+                scheduled = true;
+            }
+        }
+    }
+
+    /**
+     * Removes the oldest pending messages of a kind. Must be called while holding the lock of the pending messages.
+     *
+     * @param kind The kind of the messages to remove
+     * @param bytes The number of bytes to remove at least, if enough messages of this kind are pending
+     */
+    private void removePending(Kind kind, int bytes) {
+        int removed = 0;
+        for (Iterator<Message> iterator = pending.iterator(); iterator.hasNext() && removed < bytes; ) {
+            var message = iterator.next();
+            if (message.kind() == kind) {
+                iterator.remove();
+                removed += message.bytes().length;
+                pendingBytes -= message.bytes().length;
+            }
+        }
+    }
+
+    /**
+     * Sends the pending messages in one frame, on the sender thread.
+     * The messages stay queued while {@link #MAX_IN_FLIGHT} frames are being sent, the drain being run again
+     * once a frame is sent.
+     */
+    private void drain() {
+        ByteBuffer frame;
+        synchronized (pending) {
+            scheduled = false;
+            if (pending.isEmpty() || inFlight >= MAX_IN_FLIGHT) {
+                return;
+            }
+            int size = 0;
+            int count = 0;
+            for (var message : pending) {
+                if (count > 0 && size + message.bytes().length > MAX_BATCH_BYTES) {
+                    break;
+                }
+                size += message.bytes().length;
+                count++;
+            }
+            frame = ByteBuffer.allocate(size);
+            for (int i = 0; i < count; i++) {
+                frame.put(pending.removeFirst().bytes());
+            }
+            pendingBytes -= size;
+            inFlight++;
+            if (!pending.isEmpty()) {
+                SENDER.execute(this::drain);
+                scheduled = true;
+            }
+        }
+        if (!session.isOpen()) {
+            synchronized (pending) {
+                pending.clear();
+                pendingBytes = 0;
+                inFlight--;
+            }
+            return;
+        }
+        session.getAsyncRemote().sendBinary(frame.flip(), this::onSent);
+    }
+
+    private void onSent(SendResult result) {
+        if (!result.isOK()) {
+            LOGGER.debug("Failed to send a DAP frame", result.getException());
+        }
+        synchronized (pending) {
+            inFlight--;
+            if (!pending.isEmpty() && !scheduled) {
+                SENDER.execute(this::drain);
+                scheduled = true;
+            }
         }
     }
 
     /**
-     * Closes this output stream by flushing any remaining data.
-     * 
-     * @throws IOException If an error occurs during flushing
+     * Closes this output stream by queuing any remaining data.
      */
     @Override
-    public void close() throws IOException {
+    public void close() {
         flush();
     }
-}
\ No newline at end of file
+}
@@ -3,28 +3,22 @@ package net.gunivers.sniffer.dap;
 import jakarta.websocket.*;
 import jakarta.websocket.server.ServerApplicationConfig;
 import jakarta.websocket.server.ServerEndpointConfig;
-import net.gunivers.sniffer.command.BreakPointCommand;
-import org.eclipse.lsp4j.debug.services.IDebugProtocolClient;
 import org.eclipse.lsp4j.debug.launch.DSPLauncher;
 import org.eclipse.lsp4j.jsonrpc.Launcher;
-import org.glassfish.tyrus.server.Server;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import net.gunivers.sniffer.config.DebuggerConfig;
 
-import java.io.InputStream;
 import java.io.OutputStream;
-import java.util.Optional;
+import java.nio.ByteBuffer;
 import java.util.Set;
-import java.util.concurrent.LinkedBlockingQueue;
 import java.util.HashSet;
 
-import static net.gunivers.sniffer.command.BreakPointCommand.continueExec;
-
 /**
  * WebSocket server implementation for the Debug Adapter Protocol.
  * This class handles the communication between the debugging client (IDE) and the Minecraft server,
  * allowing remote debugging of datapacks through a WebSocket connection.
+ * The connections are accepted by the {@link LazyDapListener} and served by the {@link WebSocketChannelServer}.
  *
  * @author theogiraudet
  */
@@ -33,8 +27,8 @@ public class WebSocketServer extends Endpoint {
     private static final Logger logger = LoggerFactory.getLogger("sniffer");
 
     private DapServer dapServer;
-    private Launcher<IDebugProtocolClient> launcher;
-    private final LinkedBlockingQueue<byte[]> messageQueue = new LinkedBlockingQueue<>();
+    private Launcher<SnifferDebugClient> launcher;
+    private WebSocketInputStream input;
     private Session currentSession;
 
     /**
@@ -59,27 +53,29 @@ public class WebSocketServer extends Endpoint {
         session.setMaxBinaryMessageBufferSize(65536);
         
         // Add message handlers for text and binary
+        var in = new WebSocketInputStream();
+        this.input = in;
         session.addMessageHandler(new MessageHandler.Whole<String>() {
             @Override
             public void onMessage(String message) {
-                messageQueue.offer(message.getBytes());
+                in.offerText(message);
             }
         });
         
-        session.addMessageHandler(new MessageHandler.Whole<byte[]>() {
+        session.addMessageHandler(new MessageHandler.Whole<ByteBuffer>() {
             @Override
-            public void onMessage(byte[] message) {
-                messageQueue.offer(message);
+            public void onMessage(ByteBuffer message) {
+                in.offerBinary(message);
             }
         });
         
         // Initialize a new DAP server for this session
         dapServer = new DapServer();
-        InputStream in = new WebSocketInputStream(messageQueue);
         OutputStream out = new WebSocketOutputStream(session);
-        launcher = DSPLauncher.createServerLauncher(dapServer, in, out);
+        launcher = DSPLauncher.createLauncher(dapServer, SnifferDebugClient.class, in, out);
         dapServer.setClient(launcher.getRemoteProxy());
         launcher.startListening();
+        DebuggerState.get().clientConnected();
     }
 
     /**
@@ -92,8 +88,7 @@ public class WebSocketServer extends Endpoint {
     @Override
     public void onClose(Session session, CloseReason closeReason) {
         logger.info("WebSocket closed: {}", closeReason);
-        BreakPointCommand.clear();
-        continueExec(DebuggerState.get().getCommandSource());
+        ServerMailbox.get().run("close", DebuggerState.get()::clientClosed);
         cleanup();
     }
 
@@ -125,8 +120,11 @@ public class WebSocketServer extends Endpoint {
             dapServer = null;
         }
         
-        // Clear the message queue
-        messageQueue.clear();
+        // End the input stream, so that the lsp4j reader thread terminates
+        if (input != null) {
+            input.close();
+            input = null;
+        }
         
         // Close the session if it is still open
         if (currentSession != null && currentSession.isOpen()) {
@@ -149,8 +147,6 @@ public class WebSocketServer extends Endpoint {
         }
     }
 
-    private static Server server;
-    
     /**
      * Configuration class for the WebSocket server endpoint.
      * This class programmatically configures the WebSocket endpoint for the Debug Adapter Protocol,
@@ -184,73 +180,4 @@ public class WebSocketServer extends Endpoint {
             return new HashSet<>();
         }
     }
-
-    /**
-     * Launches the WebSocket server using the configured port.
-     * 
-     * @return An Optional containing the server if successfully launched, or empty if failed
-     */
-    public static Optional<Server> launch() {
-        // Use configured port from settings
-        return launch(DebuggerConfig.getInstance().getPort());
-    }
-
-    /**
-     * Launches the WebSocket server on the specified port.
-     * 
-     * @param port The port to run the server on
-     * @return An Optional containing the server if successfully launched, or empty if failed
-     */
-    public static Optional<Server> launch(int port) {
-        // Properly stop any existing server
-        if (server != null) {
-            try {
-                server.stop();
-                // Wait a moment for the system to release resources
-                Thread.sleep(100);
-            } catch (Exception e) {
-                logger.error("Error stopping existing WebSocket server", e);
-            } finally {
-                server = null;
-            }
-        }
-        
-        // Get configuration values
-        DebuggerConfig config = DebuggerConfig.getInstance();
-        String path = config.getPath();
-        
-        // Create and start a new server
-        server = new Server("localhost", port, "/", null, WebSocketConfigurator.class);
-        try {
-            server.start();
-            logger.info("Jakarta WebSocket DAP server is running on ws://localhost:{}/{}", port, path);
-        } catch (Exception e) {
-            logger.error("Error starting DAP server", e);
-            try {
-                server.stop();
-            } catch (Exception stopEx) {
-                logger.error("Error stopping failed server", stopEx);
-            }
-            server = null;
-        }
-        
-        return Optional.ofNullable(server);
-    }
-    
-    /**
-     * Stops the WebSocket server gracefully.
-     * This method ensures all connections are closed properly before shutting down.
-     */
-    public static void stopServer() {
-        if (server != null) {
-            try {
-                server.stop();
-                logger.info("WebSocket server stopped");
-            } catch (Exception e) {
-                logger.error("Error stopping WebSocket server", e);
-            } finally {
-                server = null;
-            }
-        }
-    }
 }
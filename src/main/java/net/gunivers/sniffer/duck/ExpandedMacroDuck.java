@@ -0,0 +1,81 @@
+package net.gunivers.sniffer.duck;
+
+import net.gunivers.sniffer.debugcmd.JvmtimerCommand;
+import net.minecraft.nbt.NbtCompound;
+import net.minecraft.server.function.Macro;
+import net.minecraft.util.Identifier;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Duck interface implemented by {@code ExpandedMacroMixin}.
+ * It exposes the debugging data attached to each ExpandedMacro instance without going through reflection.
+ * Cast any {@link net.minecraft.server.function.ExpandedMacro} to this interface to use it.
+ *
+ * @author theogiraudet
+ */
+public interface ExpandedMacroDuck {
+
+    /**
+     * Gets the arguments this function has been expanded with.
+     *
+     * @return The macro arguments, or null if this function is not an expanded macro
+     */
+    @Nullable
+    NbtCompound getArguments();
+
+    /**
+     * Sets the arguments this function has been expanded with.
+     *
+     * @param arguments The macro arguments
+     */
+    void setArguments(NbtCompound arguments);
+
+    /**
+     * Gets the identifier of the function as written in the datapack.
+     * For an expanded macro, this is the identifier of the original macro and not the generated one.
+     *
+     * @return The identifier of the function
+     */
+    Identifier getFunctionIdentifier();
+
+    /**
+     * Sets the identifier of the function as written in the datapack.
+     *
+     * @param functionIdentifier The identifier of the function
+     */
+    void setFunctionIdentifier(Identifier functionIdentifier);
+
+    /**
+     * Gets the macro this function has been expanded from.
+     *
+     * @return The original macro, or null if this function is not an expanded macro
+     */
+    @Nullable
+    Macro<?> getOriginalMacro();
+
+    /**
+     * Sets the macro this function has been expanded from.
+     *
+     * @param originalMacro The original macro
+     */
+    void setOriginalMacro(Macro<?> originalMacro);
+
+    /**
+     * Gets the breakpoint bitmap of this function.
+     * Bit {@code n} is set when a breakpoint is registered at the (0-indexed) line {@code n}.
+     * The bitmap is recompiled lazily when the set of breakpoints changes.
+     *
+     * @return The breakpoint bitmap, never null but possibly empty
+     * @see net.gunivers.sniffer.dap.DebuggerState#hasBreakpoint(long[], int)
+     */
+    long[] getBreakpointLines();
+
+    /**
+     * Gets the timer attached to this function by {@code /jvmtimer attach}.
+     * The timer is resolved again lazily when the attachments change.
+     *
+     * @return The attached timer, or null if no attachment matches this function
+     */
+    @Nullable
+    JvmtimerCommand.JvmTimer getAttachedTimer();
+}
@@ -0,0 +1,45 @@
+package net.gunivers.sniffer.duck;
+
+import net.minecraft.server.command.AbstractServerCommandSource;
+import net.minecraft.server.function.Procedure;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Duck interface implemented by {@code FrameMixin}.
+ * It exposes the function attached to each execution frame without going through reflection.
+ * Cast any {@link net.minecraft.command.Frame} to this interface to use it.
+ *
+ * @author Alumopper
+ */
+public interface FrameDuck {
+
+    /**
+     * Gets the function that created this frame.
+     *
+     * @return The function of this frame, or null if the frame is not associated with any function
+     */
+    @Nullable
+    Procedure<?> getFunction();
+
+    /**
+     * Sets the function that created this frame.
+     *
+     * @param function The function of this frame
+     */
+    void setFunction(Procedure<?> function);
+
+    /**
+     * Gets the command source executing the function of this frame.
+     *
+     * @return The executor of this frame, or null if the function has not been entered yet
+     */
+    @Nullable
+    AbstractServerCommandSource<?> getExecutor();
+
+    /**
+     * Sets the command source executing the function of this frame.
+     *
+     * @param executor The executor of this frame
+     */
+    void setExecutor(AbstractServerCommandSource<?> executor);
+}
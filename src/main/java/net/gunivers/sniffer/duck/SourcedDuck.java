@@ -0,0 +1,39 @@
+package net.gunivers.sniffer.duck;
+
+/**
+ * Duck interface implemented by {@code SingleCommandActionSourcedMixin}.
+ * It exposes the source information attached to each command without going through reflection.
+ * Cast any {@link net.minecraft.command.SingleCommandAction.Sourced} to this interface to use it.
+ *
+ * @author theogiraudet
+ */
+public interface SourcedDuck {
+
+    /**
+     * Gets the function this command has been loaded from.
+     *
+     * @return The identifier of the source function, as a string
+     */
+    String getSourceFunction();
+
+    /**
+     * Sets the function this command has been loaded from.
+     *
+     * @param sourceFunction The identifier of the source function, as a string
+     */
+    void setSourceFunction(String sourceFunction);
+
+    /**
+     * Gets the line of this command in its source function.
+     *
+     * @return The line number (0-indexed)
+     */
+    int getSourceLine();
+
+    /**
+     * Sets the line of this command in its source function.
+     *
+     * @param sourceLine The line number (0-indexed)
+     */
+    void setSourceLine(int sourceLine);
+}
@@ -0,0 +1,25 @@
+package net.gunivers.sniffer.duck;
+
+/**
+ * Duck interface implemented by {@code VariableLineMixin}.
+ * It exposes the source line of each macro line without going through reflection.
+ * Cast any {@code Macro.VariableLine} to this interface to use it.
+ *
+ * @author theogiraudet
+ */
+public interface VariableLineDuck {
+
+    /**
+     * Gets the line of this macro line in its source function.
+     *
+     * @return The line number (0-indexed), or -1 if not set
+     */
+    int getLine();
+
+    /**
+     * Sets the line of this macro line in its source function.
+     *
+     * @param line The line number (0-indexed)
+     */
+    void setLine(int line);
+}
@@ -1,7 +1,6 @@
 package net.gunivers.sniffer.mixin;
 
 import net.gunivers.sniffer.command.FunctionInAction;
-import net.gunivers.sniffer.util.ReflectUtil;
 import net.minecraft.command.*;
 import net.minecraft.nbt.NbtCompound;
 import net.minecraft.nbt.NbtElement;
@@ -16,6 +15,7 @@ import net.minecraft.text.TextColor;
 import net.minecraft.util.Pair;
 import net.minecraft.util.profiler.Profiler;
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 import org.slf4j.Logger;
 import org.spongepowered.asm.mixin.Final;
 import org.spongepowered.asm.mixin.Mixin;
@@ -27,14 +27,21 @@ import org.spongepowered.asm.mixin.injection.callback.CallbackInfo;
 import net.gunivers.sniffer.command.FunctionOutAction;
 import net.gunivers.sniffer.dap.DebuggerState;
 import net.gunivers.sniffer.dap.ScopeManager;
+import net.gunivers.sniffer.duck.ExpandedMacroDuck;
+import net.gunivers.sniffer.duck.FrameDuck;
+import net.gunivers.sniffer.duck.SourcedDuck;
+import net.gunivers.sniffer.profiler.FunctionProfiler;
+import net.gunivers.sniffer.profiler.TickTimeline;
+import net.gunivers.sniffer.profiler.TraceRecorder;
 
 import java.lang.reflect.Field;
+import java.util.ArrayList;
 import java.util.Deque;
 import java.util.List;
-import java.util.Optional;
 
 import static net.gunivers.sniffer.command.BreakPointCommand.*;
 import static net.gunivers.sniffer.command.StepType.*;
+import static net.gunivers.sniffer.util.Utils.getId;
 
 /**
  * Mixin class that extends CommandExecutionContext to add debugging capabilities.
@@ -94,9 +101,7 @@ abstract public class CommandExecutionContextMixin<T> {
     ) {
         // Create a new frame for the procedure call
         Frame frame = frame(context, returnValueConsumer);
-        ReflectUtil.set(frame, "function", Procedure.class, procedure)
-                .onFailure(e -> LOGGER.error("Failed to set function in frame for procedure call: {}", e)
-        );
+        ((FrameDuck) (Object) frame).setFunction(procedure);
         // Add the command to the queue with the modified frame
         context.enqueueCommand(
                 new CommandQueueEntry<>(frame, new CommandFunctionAction<>(procedure, source.getReturnValueConsumer(), false).bind(source))
@@ -113,14 +118,19 @@ abstract public class CommandExecutionContextMixin<T> {
         text.append("Stack trace:").append("\n");
         text.append(getErrorStack(10));
         MinecraftServer server = null;
-        var executor = ScopeManager.get().getDebugScopes().getFirst().getExecutor();
-        if(executor instanceof ServerCommandSource source){
+        var scopes = ScopeManager.get().getDebugScopes();
+        if(!scopes.isEmpty() && scopes.getFirst().getExecutor() instanceof ServerCommandSource source){
             server = source.getServer();
         }
         LOGGER.error(text.getLiteralString());
         if(server != null){
             server.getPlayerManager().getPlayerList().forEach(player -> player.sendMessage(text));
         }
+        // Keep the records leading to the overflow before they are overwritten
+        if(TraceRecorder.isRecording()){
+            TraceRecorder.get().dump(DebuggerState.get().getServer().getRunDirectory().resolve(TraceRecorder.DUMP_DIRECTORY))
+                    .thenAccept(file -> LOGGER.info("Trace of the overflow dumped to {}", file));
+        }
     }
 
     /**
@@ -136,10 +146,19 @@ abstract public class CommandExecutionContextMixin<T> {
 
         // Process pending commands before starting the main loop
         this.queuePendingCommands();
+        if(TickTimeline.isEnabled()) TickTimeline.get().onRunStart();
+
+        // Without debugger, run the vanilla loop until the debugger is attached
+        if(DebuggerState.isDetached() && !runDetached(THIS)) {
+            endRun(true);
+            ci.cancel();
+            return;
+        }
 
         while (true) {
             // Check if we've hit the command execution limit
             if (this.commandsRemaining <= 0) {
+                rebuildScopes();
                 sendOverflowMessage();
                 break;
             }
@@ -148,16 +167,21 @@ abstract public class CommandExecutionContextMixin<T> {
             CommandQueueEntry<T> commandQueueEntry = this.commandQueue.pollFirst();
 
             if (commandQueueEntry == null) {
+                endRun(true);
                 ci.cancel();
                 return;
             }
 
             boolean isDapBreakpoint = processBreakpointForEntry(commandQueueEntry);
+            if (isDapBreakpoint) {
+                DebuggerState.get().triggerBreakpoint(DebuggerState.get().getServer().getCommandSource());
+            }
 
             // If we're debugging and the command is inside a function (depth > 0)
             // and we're not stepping through code, pause execution
             if(isDebugging && (commandQueueEntry.frame().depth() != 0 && moveSteps == 0 || isDapBreakpoint)) {
                 pauseExecution(commandQueueEntry, THIS);
+                endRun(false);
                 ci.cancel();
                 return;
             }
@@ -167,6 +191,7 @@ abstract public class CommandExecutionContextMixin<T> {
             
             // Check for queue overflow
             if (this.queueOverflowed) {
+                rebuildScopes();
                 sendOverflowMessage();
                 break;
             }
@@ -175,10 +200,128 @@ abstract public class CommandExecutionContextMixin<T> {
             this.queuePendingCommands();
         }
 
+        endRun(true);
         this.currentDepth = 0;
         ci.cancel();
     }
 
+    /**
+     * Runs the commands as the vanilla loop does, without any debugging overhead.
+     * The debugger state is checked before each command so that a debugger attaching mid-execution
+     * (a client connecting or a breakpoint command being hit) takes over the remaining commands.
+     *
+     * @param context The command execution context
+     * @return true if the debugger has been attached and the remaining commands must be run by the debugging loop,
+     *         false if the execution is over
+     */
+    @Unique
+    private boolean runDetached(CommandExecutionContext<T> context) {
+        while (true) {
+            if (!DebuggerState.isDetached()) {
+                return true;
+            }
+
+            if (this.commandsRemaining <= 0) {
+                rebuildScopes();
+                sendOverflowMessage();
+                break;
+            }
+
+            CommandQueueEntry<T> commandQueueEntry = this.commandQueue.pollFirst();
+            if (commandQueueEntry == null) {
+                return false;
+            }
+
+            beforeCommand(commandQueueEntry);
+            this.currentDepth = commandQueueEntry.frame().depth();
+            commandQueueEntry.execute(context);
+
+            if (this.queueOverflowed) {
+                rebuildScopes();
+                sendOverflowMessage();
+                break;
+            }
+
+            this.queuePendingCommands();
+        }
+
+        this.currentDepth = 0;
+        return false;
+    }
+
+    /**
+     * Notifies the tick timeline if enabled, and the profiler and the trace recorder if running, that a command is about to be executed.
+     *
+     * @param commandQueueEntry The command entry about to be executed
+     */
+    @Unique
+    private static void beforeCommand(CommandQueueEntry<?> commandQueueEntry) {
+        if(TickTimeline.isEnabled()) TickTimeline.get().onCommand(commandQueueEntry.frame().depth());
+        if(FunctionProfiler.isRunning()) FunctionProfiler.get().beforeCommand(commandQueueEntry);
+        if(TraceRecorder.isRecording()) TraceRecorder.get().onCommand(commandQueueEntry);
+    }
+
+    /**
+     * Notifies the tick timeline if enabled, and the profiler if running, that the command loop returns.
+     *
+     * @param finished true if all the commands have been executed, false if the execution is only paused
+     */
+    @Unique
+    private static void endRun(boolean finished) {
+        if(TickTimeline.isEnabled()) TickTimeline.get().onRunEnd(finished);
+        if(FunctionProfiler.isRunning()) FunctionProfiler.get().onRunEnd(finished);
+    }
+
+    /**
+     * Rebuilds the scope stack from the command queue.
+     * For each function of the call stack, the queue holds the continuation of its {@link SteppedCommandAction},
+     * the deepest one first. Scopes are not tracked while functions run, they are only rebuilt
+     * when the execution is paused or overflows.
+     */
+    @Unique
+    private void rebuildScopes() {
+        var scopeManager = ScopeManager.get();
+        scopeManager.clear();
+
+        // Keep one entry per depth, from the deepest frame to the root one, preferring the stepped continuations
+        var frames = new ArrayList<CommandQueueEntry<T>>();
+        int depth = Integer.MAX_VALUE;
+        for (var entry : this.commandQueue) {
+            int entryDepth = entry.frame().depth();
+            if (entryDepth <= 0) {
+                break;
+            }
+            if (entryDepth < depth) {
+                frames.add(entry);
+                depth = entryDepth;
+            } else if (entryDepth == depth && !(frames.getLast().action() instanceof SteppedCommandAction<?, ?>)
+                    && entry.action() instanceof SteppedCommandAction<?, ?>) {
+                frames.set(frames.size() - 1, entry);
+            }
+        }
+
+        var head = this.commandQueue.peekFirst();
+        for (int i = frames.size() - 1; i >= 0; i--) {
+            var entry = frames.get(i);
+            var frame = (FrameDuck) (Object) entry.frame();
+            if (!(frame.getFunction() instanceof ExpandedMacro<?> macro) || frame.getExecutor() == null) {
+                continue;
+            }
+            var macroDuck = (ExpandedMacroDuck) (Object) macro;
+            var macroVariables = macroDuck.getOriginalMacro() != null ? macroDuck.getArguments() : null;
+            scopeManager.newScope(getId(macro).toString(), frame.getExecutor(), macroVariables);
+
+            // The head entry is about to run its next command, the callers are running the previous one
+            if (entry.action() instanceof SteppedCommandAction<?, ?> steppedAction) {
+                int index = ((SteppedCommandActionAccessors) steppedAction).getNextActionIndex() - (entry == head ? 0 : 1);
+                if (index >= 0 && index < macro.entries().size() && macro.entries().get(index) instanceof SourcedDuck sourced) {
+                    int line = sourced.getSourceLine();
+                    scopeManager.getCurrentScope().ifPresent(scope -> scope.setLine(line));
+                }
+            }
+        }
+    }
+
     /**
      * Handles stepping through command execution.
      * This method manages the command queue and handles breakpoints during step-by-step execution.
@@ -196,6 +339,7 @@ abstract public class CommandExecutionContextMixin<T> {
 
         // Process pending commands before starting the step
         this.queuePendingCommands();
+        if(TickTimeline.isEnabled()) TickTimeline.get().onRunStart();
 
         while (true) {
             // If we are in step over mode, update the stepOverDepth if needed
@@ -211,19 +355,24 @@ abstract public class CommandExecutionContextMixin<T> {
             CommandQueueEntry<T> commandQueueEntry = this.commandQueue.pollFirst();
 
             if (commandQueueEntry == null) {
+                endRun(true);
                 return;
             }
 
-            this.getNextCommand(commandQueueEntry).ifPresent(command -> this.nextCommand = command);
+            var nextCommand = this.getNextCommand(commandQueueEntry);
+            if (nextCommand != null) {
+                this.nextCommand = nextCommand;
+            }
 
             var shouldPause = mustPause(commandQueueEntry);
 
             // If we're debugging and the command is inside a function
             // and we're not stepping through code, pause execution
             if(shouldPause) {
-                DebuggerState.get().stop("step");
                 moveSteps = 0;
                 pauseExecution(commandQueueEntry, THIS);
+                endRun(false);
+                DebuggerState.get().stop("step");
                 resetStepTypeIfNeeded();
                 return;
             }
@@ -244,6 +393,7 @@ abstract public class CommandExecutionContextMixin<T> {
             this.queuePendingCommands();
         }
 
+        endRun(true);
         this.currentDepth = 0;
     }
 
@@ -282,12 +432,14 @@ abstract public class CommandExecutionContextMixin<T> {
      * Executes a command entry and updates the current depth.
      * This method is responsible for the actual execution of commands during debugging.
      * It updates the current depth based on the frame depth and then executes the command.
+     * The tick timeline and the profiler are notified before the command is executed.
      *
      * @param commandQueueEntry The command entry to execute
      * @param context The command execution context
      */
     @Unique
     private void executeCommandEntry(CommandQueueEntry<T> commandQueueEntry, CommandExecutionContext<T> context) {
+        beforeCommand(commandQueueEntry);
         this.currentDepth = commandQueueEntry.frame().depth();
         commandQueueEntry.execute(context);
     }
@@ -307,6 +459,7 @@ abstract public class CommandExecutionContextMixin<T> {
 
     /**
      * Pauses execution by returning the command to the queue and storing the context.
+     * The scope stack is rebuilt from the queue before the debugger is notified of the stop.
      * 
      * @param commandQueueEntry The command entry to pause
      * @param context The command execution context
@@ -319,46 +472,44 @@ abstract public class CommandExecutionContextMixin<T> {
         if(storedCommandExecutionContext.peekFirst() != context) {
             storedCommandExecutionContext.addFirst(context);
         }
+        rebuildScopes();
+        DebuggerState.get().onPaused(getExpandedMacroFromFrame(commandQueueEntry.frame()), getNextActionIndex(commandQueueEntry));
     }
 
     /**
      * Processes breakpoint information for a command entry.
      * This method checks if a breakpoint is set at the current line in the current function.
-     * If a breakpoint is found, it triggers the debugger to stop.
+     * It runs for every command, so the index and the line are read as ints and nothing is allocated.
      * 
      * @param commandQueueEntry The command entry to process
-     * @return true if a breakpoint was triggered, false otherwise
+     * @return true if a breakpoint must stop the execution, false otherwise
      */
     @Unique
     private boolean processBreakpointForEntry(CommandQueueEntry<T> commandQueueEntry) {
-        if(commandQueueEntry.frame().depth() <= 0) {
+        int depth = commandQueueEntry.frame().depth();
+        if(depth <= 0) {
             return false;
         }
 
-        var function = this.getNextCommand(commandQueueEntry);
-
-        var lineOpt = function.flatMap(fun -> {
-            if(fun instanceof SingleCommandAction.Sourced<?>){
-                return ReflectUtil.getT(fun, "sourceLine", int.class).onFailure(LOGGER::error).toOptional();
-            }else{
-                return Optional.empty();
-            }
-        });
-        if (lineOpt.isEmpty()) {
+        var macro = getExpandedMacroFromFrame(commandQueueEntry.frame());
+        if (macro == null) {
             return false;
         }
 
-        var funcId = getExpandedMacroFromFrame(commandQueueEntry.frame()).id();
+        int index = getNextActionIndex(commandQueueEntry);
+        var entries = macro.entries();
+        if (index < 0 || index >= entries.size()) {
+            return false;
+        }
+        this.isLastCommand = index + 1 >= entries.size() && depth <= 1;
 
-        var line = (int) lineOpt.get();
-        boolean isDapBreakpoint = DebuggerState.get().mustStop(funcId.toString(), line);
-        ScopeManager.get().getCurrentScope().ifPresent(scope -> scope.setLine(line));
-        
-        if (isDapBreakpoint) {
-            DebuggerState.get().triggerBreakpoint(DebuggerState.get().getServer().getCommandSource());
+        if (!(entries.get(index) instanceof SourcedDuck sourced)) {
+            return false;
         }
-        
-        return isDapBreakpoint;
+
+        // Breakpoints are compiled into a line bitmap attached to the function
+        var breakpointLines = ((ExpandedMacroDuck) (Object) macro).getBreakpointLines();
+        return DebuggerState.hasBreakpoint(breakpointLines, sourced.getSourceLine()) && DebuggerState.get().mustStop(macro, index);
     }
 
     /**
@@ -375,16 +526,10 @@ abstract public class CommandExecutionContextMixin<T> {
     private boolean mustPause(CommandQueueEntry<T> commandQueueEntry) {
         var shouldPause = isDebugging && commandQueueEntry.frame().depth() != 0;
 
-        var nextCommandOpt = Optional.ofNullable(this.nextCommand);
-
-        if(commandQueueEntry.frame().depth() > 0 && nextCommandOpt.isPresent()) {
-            var nextCommand = nextCommandOpt.get();
+        if(commandQueueEntry.frame().depth() > 0 && this.nextCommand != null) {
+            var nextCommand = this.nextCommand;
             if(nextCommand instanceof FunctionOutAction<?> || nextCommand instanceof FunctionInAction<?>) {
                 shouldPause = false;
-            } else {
-                ReflectUtil.getT(nextCommand, "sourceLine", int.class).onFailure(LOGGER::error).onSuccess(line ->
-                        ScopeManager.get().getCurrentScope().ifPresent(scope -> scope.setLine(line))
-                );
             }
         }
 
@@ -405,38 +550,47 @@ abstract public class CommandExecutionContextMixin<T> {
      * is the last one in the function.
      *
      * @param commandQueueEntry The command queue entry to process
-     * @return An Optional containing the next command, or empty if not found
+     * @return The next command, or null if not found
      */
     @Unique
-    private Optional<SourcedCommandAction<?>> getNextCommand(CommandQueueEntry<T> commandQueueEntry) {
+    private @Nullable SourcedCommandAction<?> getNextCommand(CommandQueueEntry<T> commandQueueEntry) {
         var function = getExpandedMacroFromFrame(commandQueueEntry.frame());
         if(function == null) {
-            return Optional.empty();
-        }
-
-        if (!(commandQueueEntry.action() instanceof SteppedCommandAction<?, ?> steppedAction)) {
-            return Optional.empty();
+            return null;
         }
 
-        int index = ((SteppedCommandActionAccessors) steppedAction).getNextActionIndex();
+        int index = getNextActionIndex(commandQueueEntry);
         if(index < 0) {
-            return Optional.empty();
+            return null;
         }
 
         this.isLastCommand = index + 1 >= function.entries().size() && commandQueueEntry.frame().depth() <= 1;
 
-        return Optional.ofNullable(function.entries().get(index));
+        return function.entries().get(index);
+    }
+
+    /**
+     * Gets the index of the next command of the function of a command queue entry.
+     *
+     * @param commandQueueEntry The command queue entry
+     * @return The index of the next command, or -1 if the entry does not step through a function
+     */
+    @Unique
+    private int getNextActionIndex(CommandQueueEntry<T> commandQueueEntry) {
+        return commandQueueEntry.action() instanceof SteppedCommandAction<?, ?> steppedAction
+                ? ((SteppedCommandActionAccessors) steppedAction).getNextActionIndex()
+                : -1;
     }
 
     /**
-     * Gets the expanded macro from a frame using reflection.
+     * Gets the expanded macro from a frame.
      * 
      * @param frame The frame to get the macro from
-     * @return The expanded macro, or null if an error occurred
+     * @return The expanded macro, or null if the frame is not associated with a function
      */
     @Unique
     private ExpandedMacro<?> getExpandedMacroFromFrame(Frame frame) {
-        return ReflectUtil.getT(frame, "function", ExpandedMacro.class).onFailure(LOGGER::error).getDataOrElse(null);
+        return ((FrameDuck) (Object) frame).getFunction() instanceof ExpandedMacro<?> macro ? macro : null;
     }
 
     /**
@@ -455,13 +609,12 @@ abstract public class CommandExecutionContextMixin<T> {
 
         var frame = commandQueueEntry.frame();
         try {
-            var function = ReflectUtil.getT(frame, "function", ExpandedMacro.class).onFailure(LOGGER::error).getDataOrElse(null);
-            
-            if (function == null) {
+            if (!(((FrameDuck) (Object) frame).getFunction() instanceof ExpandedMacro<?> macro)) {
                 return null;
             }
 
-            var args = ReflectUtil.getT(function, "arguments", NbtCompound.class).onFailure(LOGGER::error).getDataOrElse(null);
+            var function = (ExpandedMacro<T>) macro;
+            var args = ((ExpandedMacroDuck) (Object) function).getArguments();
 
             return new Pair<ExpandedMacro<T>, NbtCompound>(function, args);
         } catch (Exception e) {
@@ -1,14 +1,12 @@
 package net.gunivers.sniffer.mixin;
 
 import com.llamalad7.mixinextras.sugar.Local;
-import com.mojang.logging.LogUtils;
-import net.gunivers.sniffer.util.ReflectUtil;
+import net.gunivers.sniffer.duck.FrameDuck;
 import net.minecraft.command.CommandExecutionContext;
 import net.minecraft.command.CommandFunctionAction;
 import net.minecraft.command.Frame;
 import net.minecraft.server.command.AbstractServerCommandSource;
 import net.minecraft.server.function.Procedure;
-import org.slf4j.Logger;
 import org.spongepowered.asm.mixin.Final;
 import org.spongepowered.asm.mixin.Mixin;
 import org.spongepowered.asm.mixin.Shadow;
@@ -28,8 +26,6 @@ import org.spongepowered.asm.mixin.injection.callback.CallbackInfo;
 @Mixin(CommandFunctionAction.class)
 public class CommandFunctionActionMixin<T extends AbstractServerCommandSource<T>> {
 
-    private static final Logger LOGGER = LogUtils.getLogger();
-
     /** The function being executed by this action */
     @Shadow @Final private Procedure<T> function;
 
@@ -52,7 +48,7 @@ public class CommandFunctionActionMixin<T extends AbstractServerCommandSource<T>
             )
     )
     public void onExecute(T abstractServerCommandSource, CommandExecutionContext<T> commandExecutionContext, Frame frame, CallbackInfo ci, @Local(ordinal = 1) Frame frame2){
-        ReflectUtil.set(frame2, "function", Procedure.class, function).onFailure(LOGGER::error);
+        ((FrameDuck) (Object) frame2).setFunction(function);
     }
 
 }
@@ -5,6 +5,7 @@ import com.mojang.brigadier.StringReader;
 import com.mojang.brigadier.exceptions.CommandSyntaxException;
 import net.gunivers.sniffer.DatapackDebugger;
 import net.gunivers.sniffer.command.FunctionTextLoader;
+import net.gunivers.sniffer.duck.SourcedDuck;
 import net.gunivers.sniffer.util.Extension;
 import net.gunivers.sniffer.util.ReflectUtil;
 import net.minecraft.command.SourcedCommandAction;
@@ -84,14 +85,9 @@ public interface CommandFunctionMixin {
                 } else {
                     try {
                         SourcedCommandAction<T> action = parse(dispatcher, source, stringReader);
-                        ReflectUtil.invoke(action, "setSourceFunction", id.toString())
-                                .onFailure(msg -> {
-                                    throw new IllegalArgumentException(msg);
-                                });
-                        ReflectUtil.invoke(action, "setSourceLine", j - 1)
-                                .onFailure(msg -> {
-                                    throw new IllegalArgumentException(msg);
-                                });
+                        var sourced = (SourcedDuck) action;
+                        sourced.setSourceFunction(id.toString());
+                        sourced.setSourceLine(j - 1);
                         functionBuilder.addAction(action);
                     } catch (CommandSyntaxException commandSyntaxException) {
                         throw new IllegalArgumentException("Whilst parsing command on line " + j + ": " + commandSyntaxException.getMessage());
@@ -102,14 +98,9 @@ public interface CommandFunctionMixin {
                 stringReader.skip();
                 try {
                     SourcedCommandAction<T> action = parse(dispatcher, source, stringReader);
-                    ReflectUtil.invoke(action, "setSourceFunction", id.toString())
-                            .onFailure(msg -> {
-                                throw new IllegalArgumentException(msg);
-                            });
-                    ReflectUtil.invoke(action, "setSourceLine", j - 1)
-                            .onFailure(msg -> {
-                                throw new IllegalArgumentException(msg);
-                            });
+                    var sourced = (SourcedDuck) action;
+                    sourced.setSourceFunction(id.toString());
+                    sourced.setSourceLine(j - 1);
                     functionBuilder.addAction(action);
                 } catch (CommandSyntaxException commandSyntaxException) {
                      DatapackDebugger.getLogger().warn("Whilst parsing debug command on line " + j + ": " + commandSyntaxException.getMessage());
@@ -0,0 +1,28 @@
+package net.gunivers.sniffer.mixin;
+
+import net.gunivers.sniffer.dap.StepJournal;
+import net.minecraft.command.DataCommandStorage;
+import net.minecraft.nbt.NbtCompound;
+import net.minecraft.util.Identifier;
+import org.spongepowered.asm.mixin.Mixin;
+import org.spongepowered.asm.mixin.injection.At;
+import org.spongepowered.asm.mixin.injection.Inject;
+import org.spongepowered.asm.mixin.injection.callback.CallbackInfo;
+
+/**
+ * Mixin for the DataCommandStorage class to journal the command storage writes
+ * while the execution is paused by the debugger.
+ *
+ * @author theogiraudet
+ */
+@Mixin(DataCommandStorage.class)
+public class DataCommandStorageMixin {
+
+    @Inject(method = "set", at = @At("HEAD"))
+    private void onSet(Identifier id, NbtCompound nbt, CallbackInfo ci) {
+        if(StepJournal.isRecording()) {
+            // Only the entries changed by the write are copied into the journal
+            StepJournal.get().onStorageWrite(id, ((DataCommandStorage) (Object) this).get(id), nbt);
+        }
+    }
+}
@@ -15,6 +15,10 @@ import org.spongepowered.asm.mixin.injection.Inject;
 import org.spongepowered.asm.mixin.injection.callback.CallbackInfo;
 import net.gunivers.sniffer.command.FunctionInAction;
 import net.gunivers.sniffer.command.FunctionOutAction;
+import net.gunivers.sniffer.dap.DebuggerState;
+import net.gunivers.sniffer.debugcmd.JvmtimerAttachments;
+import net.gunivers.sniffer.debugcmd.JvmtimerCommand;
+import net.gunivers.sniffer.duck.ExpandedMacroDuck;
 
 import java.util.List;
 
@@ -29,7 +33,7 @@ import java.util.List;
  * @author Wenz-jam
  */
 @Mixin(ExpandedMacro.class)
-public class ExpandedMacroMixin<T extends AbstractServerCommandSource<T>> {
+public class ExpandedMacroMixin<T extends AbstractServerCommandSource<T>> implements ExpandedMacroDuck {
 
     /** The list of command actions in this expanded macro */
     @Shadow @Final private List<SourcedCommandAction<T>> entries;
@@ -45,6 +49,22 @@ public class ExpandedMacroMixin<T extends AbstractServerCommandSource<T>> {
     @Unique
     private Macro<T> originalMacro;
 
+    /** Compiled breakpoint lines of this function, one bit per line */
+    @Unique
+    private long[] breakpointLines = DebuggerState.NO_BREAKPOINTS;
+
+    /** The breakpoint generation {@link #breakpointLines} has been compiled for */
+    @Unique
+    private int breakpointGeneration = -1;
+
+    /** Timer attached to this function, or null if none */
+    @Unique
+    private JvmtimerCommand.JvmTimer attachedTimer;
+
+    /** The attachment generation {@link #attachedTimer} has been resolved for */
+    @Unique
+    private int attachedTimerGeneration = -1;
+
     /**
      * Injects function entry and exit actions into the macro's command list.
      * This allows the debugger to track when a macro is entered and exited,
@@ -61,4 +81,68 @@ public class ExpandedMacroMixin<T extends AbstractServerCommandSource<T>> {
         this.functionIdentifier = THIS.id();
     }
 
+    @Override
+    public NbtCompound getArguments() {
+        return this.arguments;
+    }
+
+    @Override
+    public void setArguments(NbtCompound arguments) {
+        this.arguments = arguments;
+    }
+
+    @Override
+    public Identifier getFunctionIdentifier() {
+        return this.functionIdentifier;
+    }
+
+    @Override
+    public void setFunctionIdentifier(Identifier functionIdentifier) {
+        this.functionIdentifier = functionIdentifier;
+    }
+
+    @Override
+    public Macro<?> getOriginalMacro() {
+        return this.originalMacro;
+    }
+
+    @SuppressWarnings("unchecked")
+    @Override
+    public void setOriginalMacro(Macro<?> originalMacro) {
+        this.originalMacro = (Macro<T>) originalMacro;
+    }
+
+    /**
+     * Gets the breakpoint bitmap of this function.
+     * The bitmap is only fetched again from the {@link DebuggerState} when the breakpoints have changed
+     * since the last call, so on the hot path this is a single integer comparison.
+     *
+     * @return The breakpoint bitmap of this function
+     */
+    @Override
+    public long[] getBreakpointLines() {
+        int generation = DebuggerState.getBreakpointGeneration();
+        if(this.breakpointGeneration != generation) {
+            this.breakpointLines = DebuggerState.get().getBreakpointLines(this.functionIdentifier);
+            this.breakpointGeneration = generation;
+        }
+        return this.breakpointLines;
+    }
+
+    /**
+     * Gets the timer attached to this function.
+     * As for the breakpoints, the timer is only resolved again when the attachments have changed.
+     *
+     * @return The attached timer, or null if none
+     */
+    @Override
+    public JvmtimerCommand.JvmTimer getAttachedTimer() {
+        int generation = JvmtimerAttachments.getGeneration();
+        if(this.attachedTimerGeneration != generation) {
+            this.attachedTimer = JvmtimerAttachments.getTimer(this.functionIdentifier);
+            this.attachedTimerGeneration = generation;
+        }
+        return this.attachedTimer;
+    }
+
 }
@@ -1,9 +1,14 @@
 package net.gunivers.sniffer.mixin;
 
 import net.gunivers.sniffer.command.BreakPointCommand;
-import net.gunivers.sniffer.dap.ScopeManager;
-import net.gunivers.sniffer.util.ReflectUtil;
+import net.gunivers.sniffer.debugcmd.JvmtimerAttachments;
+import net.gunivers.sniffer.duck.ExpandedMacroDuck;
+import net.gunivers.sniffer.duck.FrameDuck;
+import net.gunivers.sniffer.profiler.FunctionProfiler;
+import net.gunivers.sniffer.profiler.TickTimeline;
+import net.gunivers.sniffer.profiler.TraceRecorder;
 import net.minecraft.command.Frame;
+import net.minecraft.server.command.AbstractServerCommandSource;
 import net.minecraft.server.function.Procedure;
 import org.spongepowered.asm.mixin.Final;
 import org.spongepowered.asm.mixin.Mixin;
@@ -23,7 +28,7 @@ import static net.gunivers.sniffer.command.StepType.isStepOut;
  * @author Alumopper
  */
 @Mixin(Frame.class)
-public class FrameMixin {
+public class FrameMixin implements FrameDuck {
     /**
      * Reference to the function/procedure that created this frame.
      * Used by the debugger to track function execution and call hierarchies.
@@ -31,13 +36,46 @@ public class FrameMixin {
     @Unique
     private Procedure<?> function;
 
+    /**
+     * The command source executing the function of this frame.
+     * Used by the debugger to rebuild the call stack from the command queue.
+     */
+    @Unique
+    private AbstractServerCommandSource<?> executor;
+
     @Shadow @Final private int depth;
 
+    @Override
+    public Procedure<?> getFunction() {
+        return this.function;
+    }
+
+    @Override
+    public void setFunction(Procedure<?> function) {
+        this.function = function;
+    }
+
+    @Override
+    public AbstractServerCommandSource<?> getExecutor() {
+        return this.executor;
+    }
+
+    @Override
+    public void setExecutor(AbstractServerCommandSource<?> executor) {
+        this.executor = executor;
+    }
+
     @Inject(method = "doReturn", at = @At("HEAD"))
     private void beforeReturn(CallbackInfo ci) {
         // when a function is returned by a return command, the FunctionOutAction will not execute, so we need to execute it here manually
-        ScopeManager.get().unscope();
         // BreakPointCommand.stepDepth - 1 because we only want to decrement if we go higher than the stepDepth
         if(BreakPointCommand.moveSteps > 0 && isStepOut() && depth - 1 <= BreakPointCommand.stepDepth - 1) BreakPointCommand.moveSteps --;
+        if(TickTimeline.isEnabled()) TickTimeline.get().exitFunction(depth);
+        if(FunctionProfiler.isRunning()) FunctionProfiler.get().exitFunction(depth);
+        if(TraceRecorder.isRecording()) TraceRecorder.get().exitFunction(depth);
+        if(JvmtimerAttachments.isActive() && this.function instanceof ExpandedMacroDuck duck) {
+            var timer = duck.getAttachedTimer();
+            if(timer != null) timer.end();
+        }
     }
 }
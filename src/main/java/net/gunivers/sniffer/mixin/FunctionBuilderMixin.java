@@ -1,5 +1,6 @@
 package net.gunivers.sniffer.mixin;
 
+import net.gunivers.sniffer.duck.VariableLineDuck;
 import net.minecraft.server.command.AbstractServerCommandSource;
 import net.minecraft.server.function.FunctionBuilder;
 import net.minecraft.server.function.Macro;
@@ -35,7 +36,7 @@ public class FunctionBuilderMixin<T extends AbstractServerCommandSource<T>> {
 
     /**
      * Injects code after a macro command is added to store its line number.
-     * This method uses reflection to set the line field on the macro line object,
+     * This method sets the line field on the macro line object,
      * allowing the debugger to know the original source line for each command.
      * 
      * @param command The command string being added
@@ -47,12 +48,8 @@ public class FunctionBuilderMixin<T extends AbstractServerCommandSource<T>> {
     public void addMacroCommand(String command, int lineNum, T source, CallbackInfo ci) {
         // Get the last added macro line and set its line number
         Optional.ofNullable(macroLines.getLast()).ifPresent(macro -> {
-            try {
-                var field = macro.getClass().getDeclaredField("line");
-                field.setAccessible(true);
-                field.set(macro, lineNum - 1);
-            } catch (NoSuchFieldException | IllegalAccessException e) {
-                throw new RuntimeException(e);
+            if(macro instanceof VariableLineDuck variableLine) {
+                variableLine.setLine(lineNum - 1);
             }
         });
     }
@@ -1,7 +1,7 @@
 package net.gunivers.sniffer.mixin;
 
 import com.mojang.brigadier.CommandDispatcher;
-import net.gunivers.sniffer.util.ReflectUtil;
+import net.gunivers.sniffer.duck.ExpandedMacroDuck;
 import net.minecraft.nbt.NbtCompound;
 import net.minecraft.server.command.AbstractServerCommandSource;
 import net.minecraft.server.function.ExpandedMacro;
@@ -63,9 +63,10 @@ public abstract class MacroMixin<T extends AbstractServerCommandSource<T>> {
             at = @At("RETURN"), cancellable = true)
     private void OnWithMacroReplaced(List<String> varNames, List<String> arguments, CommandDispatcher<T> dispatcher, CallbackInfoReturnable<Procedure<T>> cir){
         ExpandedMacro<T> function = (ExpandedMacro<T>) cir.getReturnValue();
-        ReflectUtil.set(function, "arguments", NbtCompound.class, this.arguments);
-        ReflectUtil.set(function, "functionIdentifier", Identifier.class, this.id());
-        ReflectUtil.set(function, "originalMacro", Macro.class, this);
+        var duck = (ExpandedMacroDuck) (Object) function;
+        duck.setArguments(this.arguments);
+        duck.setFunctionIdentifier(this.id());
+        duck.setOriginalMacro((Macro<?>) (Object) this);
         cir.setReturnValue(function);
     }
 
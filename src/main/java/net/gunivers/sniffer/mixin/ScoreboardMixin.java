@@ -0,0 +1,38 @@
+package net.gunivers.sniffer.mixin;
+
+import net.gunivers.sniffer.dap.StepJournal;
+import net.minecraft.scoreboard.ScoreHolder;
+import net.minecraft.scoreboard.Scoreboard;
+import net.minecraft.scoreboard.ScoreboardObjective;
+import org.spongepowered.asm.mixin.Mixin;
+import org.spongepowered.asm.mixin.injection.At;
+import org.spongepowered.asm.mixin.injection.Inject;
+import org.spongepowered.asm.mixin.injection.callback.CallbackInfo;
+
+/**
+ * Mixin for the Scoreboard class to journal the removed scores while the execution is paused by the debugger.
+ *
+ * @author theogiraudet
+ */
+@Mixin(Scoreboard.class)
+public class ScoreboardMixin {
+
+    @Inject(method = "removeScore", at = @At("HEAD"))
+    private void onRemoveScore(ScoreHolder scoreHolder, ScoreboardObjective objective, CallbackInfo ci) {
+        if(StepJournal.isRecording()) {
+            var score = ((Scoreboard) (Object) this).getScore(scoreHolder, objective);
+            if(score != null) {
+                StepJournal.get().onScoreRemoved(scoreHolder.getNameForScoreboard(), objective.getName(), score.getScore());
+            }
+        }
+    }
+
+    @Inject(method = "removeScores", at = @At("HEAD"))
+    private void onRemoveScores(ScoreHolder scoreHolder, CallbackInfo ci) {
+        if(StepJournal.isRecording()) {
+            var name = scoreHolder.getNameForScoreboard();
+            ((Scoreboard) (Object) this).getScoreHolderObjectives(scoreHolder).forEach((objective, score) ->
+                    StepJournal.get().onScoreRemoved(name, objective.getName(), score));
+        }
+    }
+}
@@ -0,0 +1,29 @@
+package net.gunivers.sniffer.mixin;
+
+import net.gunivers.sniffer.dap.StepJournal;
+import net.minecraft.scoreboard.ScoreboardScore;
+import org.spongepowered.asm.mixin.Mixin;
+import org.spongepowered.asm.mixin.Shadow;
+import org.spongepowered.asm.mixin.injection.At;
+import org.spongepowered.asm.mixin.injection.Inject;
+import org.spongepowered.asm.mixin.injection.callback.CallbackInfo;
+
+/**
+ * Mixin for the ScoreboardScore class to journal the value of a score before it is set,
+ * while the execution is paused by the debugger.
+ * The score holder and objective are only known once the scoreboard is notified of the update.
+ *
+ * @author theogiraudet
+ */
+@Mixin(ScoreboardScore.class)
+public class ScoreboardScoreMixin {
+
+    @Shadow private int score;
+
+    @Inject(method = "setScore", at = @At("HEAD"))
+    private void onSetScore(int score, CallbackInfo ci) {
+        if(StepJournal.isRecording()) {
+            StepJournal.get().beforeScoreSet(this, this.score);
+        }
+    }
+}
@@ -0,0 +1,27 @@
+package net.gunivers.sniffer.mixin;
+
+import net.gunivers.sniffer.dap.StepJournal;
+import net.minecraft.scoreboard.ScoreHolder;
+import net.minecraft.scoreboard.ScoreboardObjective;
+import net.minecraft.scoreboard.ScoreboardScore;
+import net.minecraft.scoreboard.ServerScoreboard;
+import org.spongepowered.asm.mixin.Mixin;
+import org.spongepowered.asm.mixin.injection.At;
+import org.spongepowered.asm.mixin.injection.Inject;
+import org.spongepowered.asm.mixin.injection.callback.CallbackInfo;
+
+/**
+ * Mixin for the ServerScoreboard class to journal the score writes while the execution is paused by the debugger.
+ *
+ * @author theogiraudet
+ */
+@Mixin(ServerScoreboard.class)
+public class ServerScoreboardMixin {
+
+    @Inject(method = "updateScore", at = @At("HEAD"))
+    private void onUpdateScore(ScoreHolder scoreHolder, ScoreboardObjective objective, ScoreboardScore score, CallbackInfo ci) {
+        if(StepJournal.isRecording()) {
+            StepJournal.get().onScoreUpdated(scoreHolder.getNameForScoreboard(), objective.getName(), score);
+        }
+    }
+}
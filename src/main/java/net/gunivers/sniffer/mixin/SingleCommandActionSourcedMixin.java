@@ -1,5 +1,6 @@
 package net.gunivers.sniffer.mixin;
 
+import net.gunivers.sniffer.duck.SourcedDuck;
 import net.minecraft.command.SingleCommandAction;
 import org.spongepowered.asm.mixin.Mixin;
 import org.spongepowered.asm.mixin.Unique;
@@ -10,7 +11,7 @@ import org.spongepowered.asm.mixin.Unique;
  * @author theogiraudet
  */
 @Mixin(SingleCommandAction.Sourced.class)
-public class SingleCommandActionSourcedMixin {
+public class SingleCommandActionSourcedMixin implements SourcedDuck {
 
     @Unique
     private String sourceFunction;
@@ -18,23 +19,23 @@ public class SingleCommandActionSourcedMixin {
     @Unique
     private int sourceLine;
 
-    @Unique
+    @Override
     public String getSourceFunction() {
         return sourceFunction;
     }
 
-    @Unique
+    @Override
     public void setSourceFunction(String sourceFunction) {
         this.sourceFunction = sourceFunction;
     }
 
-    @Unique
+    @Override
     public int getSourceLine() {
         return sourceLine;
     }
 
-    @Unique
-    public void setSourceLine(Integer sourceLine) {
+    @Override
+    public void setSourceLine(int sourceLine) {
         this.sourceLine = sourceLine;
     }
 }
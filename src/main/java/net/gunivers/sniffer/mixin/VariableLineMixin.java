@@ -3,7 +3,8 @@ package net.gunivers.sniffer.mixin;
 import com.llamalad7.mixinextras.injector.wrapmethod.WrapMethod;
 import com.llamalad7.mixinextras.injector.wrapoperation.Operation;
 import com.mojang.brigadier.CommandDispatcher;
-import net.gunivers.sniffer.util.ReflectUtil;
+import net.gunivers.sniffer.duck.SourcedDuck;
+import net.gunivers.sniffer.duck.VariableLineDuck;
 import net.minecraft.command.SourcedCommandAction;
 import net.minecraft.server.command.AbstractServerCommandSource;
 import net.minecraft.server.function.MacroException;
@@ -23,7 +24,7 @@ import java.util.List;
  * @author theogiraudet
  */
 @Mixin(targets = "net.minecraft.server.function.Macro$VariableLine")
-public class VariableLineMixin<T extends AbstractServerCommandSource<T>> {
+public class VariableLineMixin<T extends AbstractServerCommandSource<T>> implements VariableLineDuck {
 
     /**
      * Stores the line number within the function file.
@@ -38,8 +39,8 @@ public class VariableLineMixin<T extends AbstractServerCommandSource<T>> {
      * 
      * @param line The line number in the source file (0-indexed)
      */
-    @Unique
-    void setLine(int line) {
+    @Override
+    public void setLine(int line) {
         this.line = line;
     }
 
@@ -48,8 +49,8 @@ public class VariableLineMixin<T extends AbstractServerCommandSource<T>> {
      * 
      * @return The line number, or -1 if not set
      */
-    @Unique
-    int getLine() {
+    @Override
+    public int getLine() {
         return this.line;
     }
 
@@ -67,9 +68,10 @@ public class VariableLineMixin<T extends AbstractServerCommandSource<T>> {
     @WrapMethod(method = "instantiate")
     SourcedCommandAction<T> instantiate(List<String> args, CommandDispatcher<T> dispatcher, Identifier id, Operation<SourcedCommandAction<T>> original) throws MacroException {
         var result = original.call(args, dispatcher, id);
-        ReflectUtil.invoke(result, "setSourceFunction", id.toString());
-        int line = getLine();
-        ReflectUtil.invoke(result, "setSourceLine", line);
+        if(result instanceof SourcedDuck sourced) {
+            sourced.setSourceFunction(id.toString());
+            sourced.setSourceLine(getLine());
+        }
         return result;
     }
 }
@@ -0,0 +1,556 @@
+package net.gunivers.sniffer.profiler;
+
+import it.unimi.dsi.fastutil.longs.Long2IntOpenHashMap;
+import it.unimi.dsi.fastutil.objects.Object2IntOpenHashMap;
+import net.gunivers.sniffer.duck.FrameDuck;
+import net.gunivers.sniffer.duck.SourcedDuck;
+import net.gunivers.sniffer.mixin.SteppedCommandActionAccessors;
+import net.minecraft.command.CommandQueueEntry;
+import net.minecraft.command.SteppedCommandAction;
+import net.minecraft.server.function.ExpandedMacro;
+import net.minecraft.util.Identifier;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Tracing profiler measuring the cost of the datapack functions.
+ * It records, for each function and for each source line, the inclusive and exclusive time
+ * and the number of commands executed, in primitive arrays indexed by interned IDs.
+ * <p>
+ * The profiler is fed by the command execution loop (before each command) and by the function entry and exit markers.
+ * All these hooks run on the server thread, so the profiler is not thread-safe and must only be used from it.
+ * When the profiler is not running, the only cost for the hooks is a read of {@link #isRunning()}.
+ * <p>
+ * By default, the time is only read on the function entries and exits, and each command is only counted,
+ * so that the profiler can run on a live server. The per-line times need the time to be read before each command,
+ * which costs about as much as a cheap command: they are only recorded when {@linkplain #start(boolean) asked for}.
+ *
+ * @author theogiraudet
+ */
+public class FunctionProfiler {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger("sniffer");
+
+    private static final int INITIAL_CAPACITY = 64;
+
+    /** Node of the call tree above all the functions called by the server */
+    private static final int ROOT = 0;
+
+    /** Whether the profiler is recording */
+    private static volatile boolean running = false;
+
+    private static FunctionProfiler singleton;
+
+    /**
+     * Private constructor for singleton pattern.
+     */
+    private FunctionProfiler() {
+        this.functionIds.defaultReturnValue(-1);
+        this.lineIds.defaultReturnValue(-1);
+        this.nodeIds.defaultReturnValue(-1);
+        this.nodeParent[ROOT] = -1;
+        this.nodeFunction[ROOT] = -1;
+    }
+
+    /**
+     * Gets the singleton instance of the FunctionProfiler.
+     *
+     * @return The FunctionProfiler singleton instance
+     */
+    public static FunctionProfiler get() {
+        if (singleton == null) {
+            synchronized (FunctionProfiler.class) {
+                if (singleton == null) {
+                    singleton = new FunctionProfiler();
+                }
+            }
+        }
+        return singleton;
+    }
+
+    /**
+     * Checks if the profiler is recording.
+     * This method is called before each command, it must stay as cheap as a field read.
+     *
+     * @return true if the profiler is recording, false otherwise
+     */
+    public static boolean isRunning() {
+        return running;
+    }
+
+    // ===== Functions =====
+
+    /** Interned function identifiers */
+    private final Object2IntOpenHashMap<Identifier> functionIds = new Object2IntOpenHashMap<>();
+    private Identifier[] functions = new Identifier[INITIAL_CAPACITY];
+    private long[] functionInclusive = new long[INITIAL_CAPACITY];
+    private long[] functionExclusive = new long[INITIAL_CAPACITY];
+    private long[] functionCommands = new long[INITIAL_CAPACITY];
+    private long[] functionCalls = new long[INITIAL_CAPACITY];
+    /** Number of activations of each function in the current call stack, to not count recursive calls twice */
+    private int[] functionActive = new int[INITIAL_CAPACITY];
+    private int functionCount = 0;
+
+    // ===== Lines =====
+
+    /** Interned lines, the key being the function ID in the upper 32 bits and the line in the lower ones */
+    private final Long2IntOpenHashMap lineIds = new Long2IntOpenHashMap();
+    private int[] lineFunction = new int[INITIAL_CAPACITY];
+    private int[] lineNumber = new int[INITIAL_CAPACITY];
+    private long[] lineInclusive = new long[INITIAL_CAPACITY];
+    private long[] lineExclusive = new long[INITIAL_CAPACITY];
+    private long[] lineCommands = new long[INITIAL_CAPACITY];
+    private int lineCount = 0;
+
+    // ===== Call tree =====
+
+    /** Interned call tree nodes, the key being the parent node in the upper 32 bits and the function ID in the lower ones */
+    private final Long2IntOpenHashMap nodeIds = new Long2IntOpenHashMap();
+    private int[] nodeParent = new int[INITIAL_CAPACITY];
+    private int[] nodeFunction = new int[INITIAL_CAPACITY];
+    /** Time spent in each call path itself, excluding the callees */
+    private long[] nodeSelf = new long[INITIAL_CAPACITY];
+    private int nodeCount = 1;
+
+    // ===== Call stack, indexed by frame depth =====
+
+    /** Call tree node at each depth, the root one at depth 0 */
+    private int[] stackNode = new int[INITIAL_CAPACITY];
+
+    /** Function running at each depth, or -1 if none */
+    private int[] stackFunction = new int[INITIAL_CAPACITY];
+    /** Time at which the function at each depth has been entered */
+    private long[] stackEnter = new long[INITIAL_CAPACITY];
+    /** Line running at each depth, or -1 if none */
+    private int[] stackLine = new int[INITIAL_CAPACITY];
+    /** Time at which the line at each depth has started */
+    private long[] stackLineStart = new long[INITIAL_CAPACITY];
+    /** Depth of the deepest function in the call stack, 0 if no function is running */
+    private int top = 0;
+
+    /** Time of the last event, or -1 if no command is running */
+    private long lastTimestamp = -1;
+    /** Whether the time of each line is recorded, reading the time before each command */
+    private boolean lineDetail = false;
+    /** Time at which the profiler has been started */
+    private long startTime = 0;
+    /** Time during which the profiler has been recording, updated when stopped */
+    private long duration = 0;
+
+    /**
+     * Starts recording the functions only, dropping the data of the previous recording.
+     */
+    public void start() {
+        start(false);
+    }
+
+    /**
+     * Starts recording, dropping the data of the previous recording.
+     *
+     * @param lineDetail Whether to also record the time of each line, at the cost of reading the time before each command
+     */
+    public void start(boolean lineDetail) {
+        reset();
+        this.lineDetail = lineDetail;
+        this.startTime = System.nanoTime();
+        running = true;
+        LOGGER.info("Function profiler started");
+    }
+
+    /**
+     * Stops recording. The recorded data are kept until the next start.
+     */
+    public void stop() {
+        if (!running) {
+            return;
+        }
+        running = false;
+        long now = System.nanoTime();
+        charge(now);
+        unwind(0, now);
+        this.lastTimestamp = -1;
+        this.duration = now - this.startTime;
+        LOGGER.info("Function profiler stopped after {} ms", this.duration / 1_000_000);
+    }
+
+    /**
+     * Drops all the recorded data.
+     */
+    private void reset() {
+        this.functionIds.clear();
+        Arrays.fill(this.functions, 0, this.functionCount, null);
+        Arrays.fill(this.functionInclusive, 0);
+        Arrays.fill(this.functionExclusive, 0);
+        Arrays.fill(this.functionCommands, 0);
+        Arrays.fill(this.functionCalls, 0);
+        Arrays.fill(this.functionActive, 0);
+        this.functionCount = 0;
+        this.lineIds.clear();
+        Arrays.fill(this.lineInclusive, 0);
+        Arrays.fill(this.lineExclusive, 0);
+        Arrays.fill(this.lineCommands, 0);
+        this.lineCount = 0;
+        this.nodeIds.clear();
+        Arrays.fill(this.nodeSelf, 0);
+        this.nodeCount = 1;
+        this.top = 0;
+        this.lastTimestamp = -1;
+        this.duration = 0;
+    }
+
+    // ===== Hooks =====
+
+    /**
+     * Called when a function is entered.
+     *
+     * @param function The identifier of the function
+     * @param depth The depth of the frame of the function
+     */
+    public void enterFunction(Identifier function, int depth) {
+        long now = System.nanoTime();
+        charge(now);
+        // Frames at this depth or deeper have been left without exit marker (e.g. discarded by a return)
+        unwind(depth - 1, now);
+        ensureStackCapacity(depth);
+        for (int d = this.top + 1; d < depth; d++) {
+            this.stackFunction[d] = -1;
+            this.stackLine[d] = -1;
+            this.stackNode[d] = this.stackNode[d - 1];
+        }
+        int id = internFunction(function);
+        this.stackFunction[depth] = id;
+        this.stackNode[depth] = internNode(this.stackNode[depth - 1], id);
+        this.stackEnter[depth] = now;
+        this.stackLine[depth] = -1;
+        this.functionCalls[id]++;
+        this.functionActive[id]++;
+        this.top = depth;
+    }
+
+    /**
+     * Called when a function is exited, either normally or by a return command.
+     *
+     * @param depth The depth of the frame of the function
+     */
+    public void exitFunction(int depth) {
+        if (depth > this.top || depth <= 0) {
+            return;
+        }
+        long now = System.nanoTime();
+        charge(now);
+        unwind(depth - 1, now);
+    }
+
+    /**
+     * Called by the execution loop before each command.
+     * When the entry is the continuation of a function, the line it is about to execute becomes the current line.
+     *
+     * @param entry The command queue entry about to be executed
+     */
+    public void beforeCommand(CommandQueueEntry<?> entry) {
+        if (!this.lineDetail) {
+            if (entry.action() instanceof SteppedCommandAction<?, ?>) {
+                countCommand(entry.frame().depth());
+            }
+            return;
+        }
+        if (!(entry.action() instanceof SteppedCommandAction<?, ?> steppedAction)) {
+            charge(System.nanoTime());
+            return;
+        }
+        int sourceLine = -1;
+        if (((FrameDuck) (Object) entry.frame()).getFunction() instanceof ExpandedMacro<?> macro) {
+            int index = ((SteppedCommandActionAccessors) steppedAction).getNextActionIndex();
+            if (index >= 0 && index < macro.entries().size() && macro.entries().get(index) instanceof SourcedDuck sourced) {
+                sourceLine = sourced.getSourceLine();
+            }
+        }
+        beforeStep(entry.frame().depth(), sourceLine);
+    }
+
+    /**
+     * Called before each command continuing a function when the lines are not recorded.
+     * The command is counted without reading the time, unless the function has been left without exit marker.
+     *
+     * @param depth The depth of the frame of the function
+     */
+    public void countCommand(int depth) {
+        if (depth <= 0 || depth > this.top) {
+            return;
+        }
+        if (depth < this.top) {
+            long now = System.nanoTime();
+            charge(now);
+            unwind(depth, now);
+        }
+        int function = this.stackFunction[depth];
+        if (function >= 0) {
+            this.functionCommands[function]++;
+        }
+    }
+
+    /**
+     * Called before each command continuing a function when the lines are recorded, once its source line is resolved.
+     * This is the accounting done by {@link #beforeCommand(CommandQueueEntry)}, split out so that it can be
+     * benchmarked without the mixins the command queue entries are read through.
+     *
+     * @param depth The depth of the frame of the function
+     * @param sourceLine The line the command is read from, or -1 if unknown
+     */
+    public void beforeStep(int depth, int sourceLine) {
+        long now = System.nanoTime();
+        charge(now);
+
+        if (depth <= 0 || depth > this.top) {
+            return;
+        }
+        if (depth < this.top) {
+            unwind(depth, now);
+        }
+        int function = this.stackFunction[depth];
+        if (function < 0 || sourceLine < 0) {
+            return;
+        }
+
+        closeLine(depth, now);
+        int line = internLine(function, sourceLine);
+        this.stackLine[depth] = line;
+        this.stackLineStart[depth] = now;
+        this.lineCommands[line]++;
+        this.functionCommands[function]++;
+    }
+
+    /**
+     * Called when the execution loop returns.
+     * The time between two runs is not accounted.
+     *
+     * @param finished true if all the commands have been executed, false if the execution is only paused
+     */
+    public void onRunEnd(boolean finished) {
+        long now = System.nanoTime();
+        charge(now);
+        if (finished) {
+            unwind(0, now);
+        }
+        this.lastTimestamp = -1;
+    }
+
+    // ===== Accounting =====
+
+    /**
+     * Charges the time elapsed since the last event to the current function and line.
+     *
+     * @param now The current time
+     */
+    private void charge(long now) {
+        if (this.lastTimestamp >= 0 && this.top > 0) {
+            long elapsed = now - this.lastTimestamp;
+            int function = this.stackFunction[this.top];
+            if (function >= 0) {
+                this.functionExclusive[function] += elapsed;
+            }
+            int line = this.stackLine[this.top];
+            if (line >= 0) {
+                this.lineExclusive[line] += elapsed;
+            }
+            this.nodeSelf[this.stackNode[this.top]] += elapsed;
+        }
+        this.lastTimestamp = now;
+    }
+
+    /**
+     * Closes the frames deeper than the given depth.
+     *
+     * @param depth The depth of the new deepest frame
+     * @param now The current time
+     */
+    private void unwind(int depth, long now) {
+        while (this.top > depth) {
+            closeLine(this.top, now);
+            int function = this.stackFunction[this.top];
+            if (function >= 0 && --this.functionActive[function] == 0) {
+                this.functionInclusive[function] += now - this.stackEnter[this.top];
+            }
+            this.top--;
+        }
+    }
+
+    /**
+     * Closes the current line at the given depth.
+     *
+     * @param depth The depth of the frame
+     * @param now The current time
+     */
+    private void closeLine(int depth, long now) {
+        int line = this.stackLine[depth];
+        if (line >= 0) {
+            this.lineInclusive[line] += now - this.stackLineStart[depth];
+            this.stackLine[depth] = -1;
+        }
+    }
+
+    private int internFunction(Identifier function) {
+        int id = this.functionIds.getInt(function);
+        if (id >= 0) {
+            return id;
+        }
+        id = this.functionCount++;
+        if (id == this.functions.length) {
+            int capacity = id * 2;
+            this.functions = Arrays.copyOf(this.functions, capacity);
+            this.functionInclusive = Arrays.copyOf(this.functionInclusive, capacity);
+            this.functionExclusive = Arrays.copyOf(this.functionExclusive, capacity);
+            this.functionCommands = Arrays.copyOf(this.functionCommands, capacity);
+            this.functionCalls = Arrays.copyOf(this.functionCalls, capacity);
+            this.functionActive = Arrays.copyOf(this.functionActive, capacity);
+        }
+        this.functions[id] = function;
+        this.functionIds.put(function, id);
+        return id;
+    }
+
+    private int internLine(int function, int line) {
+        long key = ((long) function << 32) | (line & 0xFFFFFFFFL);
+        int id = this.lineIds.get(key);
+        if (id >= 0) {
+            return id;
+        }
+        id = this.lineCount++;
+        if (id == this.lineFunction.length) {
+            int capacity = id * 2;
+            this.lineFunction = Arrays.copyOf(this.lineFunction, capacity);
+            this.lineNumber = Arrays.copyOf(this.lineNumber, capacity);
+            this.lineInclusive = Arrays.copyOf(this.lineInclusive, capacity);
+            this.lineExclusive = Arrays.copyOf(this.lineExclusive, capacity);
+            this.lineCommands = Arrays.copyOf(this.lineCommands, capacity);
+        }
+        this.lineFunction[id] = function;
+        this.lineNumber[id] = line;
+        this.lineIds.put(key, id);
+        return id;
+    }
+
+    private int internNode(int parent, int function) {
+        long key = ((long) parent << 32) | (function & 0xFFFFFFFFL);
+        int id = this.nodeIds.get(key);
+        if (id >= 0) {
+            return id;
+        }
+        id = this.nodeCount++;
+        if (id == this.nodeParent.length) {
+            int capacity = id * 2;
+            this.nodeParent = Arrays.copyOf(this.nodeParent, capacity);
+            this.nodeFunction = Arrays.copyOf(this.nodeFunction, capacity);
+            this.nodeSelf = Arrays.copyOf(this.nodeSelf, capacity);
+        }
+        this.nodeParent[id] = parent;
+        this.nodeFunction[id] = function;
+        this.nodeIds.put(key, id);
+        return id;
+    }
+
+    private void ensureStackCapacity(int depth) {
+        if (depth >= this.stackFunction.length) {
+            int capacity = Math.max(depth + 1, this.stackFunction.length * 2);
+            this.stackFunction = Arrays.copyOf(this.stackFunction, capacity);
+            this.stackEnter = Arrays.copyOf(this.stackEnter, capacity);
+            this.stackLine = Arrays.copyOf(this.stackLine, capacity);
+            this.stackLineStart = Arrays.copyOf(this.stackLineStart, capacity);
+            this.stackNode = Arrays.copyOf(this.stackNode, capacity);
+        }
+    }
+
+    // ===== Report =====
+
+    /**
+     * Statistics of a function.
+     *
+     * @param function The identifier of the function
+     * @param inclusive The time spent in the function and its callees, in nanoseconds
+     * @param exclusive The time spent in the function itself, in nanoseconds
+     * @param calls The number of times the function has been called
+     * @param commands The number of commands executed by the function itself
+     */
+    public record FunctionStats(Identifier function, long inclusive, long exclusive, long calls, long commands) {}
+
+    /**
+     * Statistics of a source line.
+     *
+     * @param function The identifier of the function
+     * @param line The line in the function (0-indexed)
+     * @param inclusive The time spent on the line and its callees, in nanoseconds
+     * @param exclusive The time spent on the line itself, in nanoseconds
+     * @param commands The number of times the line has been executed
+     */
+    public record LineStats(Identifier function, int line, long inclusive, long exclusive, long commands) {}
+
+    /**
+     * Snapshot of the recorded data.
+     *
+     * @param duration The recording duration, in nanoseconds
+     * @param running Whether the profiler was still recording when the snapshot has been taken
+     * @param functions The statistics of each function
+     * @param lines The statistics of each line
+     */
+    public record Report(long duration, boolean running, List<FunctionStats> functions, List<LineStats> lines) {}
+
+    /**
+     * Takes a snapshot of the recorded data.
+     * The functions still running are not included in the inclusive times.
+     *
+     * @return The report of the current or last recording
+     */
+    public Report report() {
+        var functions = new ArrayList<FunctionStats>(this.functionCount);
+        for (int i = 0; i < this.functionCount; i++) {
+            functions.add(new FunctionStats(this.functions[i], this.functionInclusive[i], this.functionExclusive[i], this.functionCalls[i], this.functionCommands[i]));
+        }
+        var lines = new ArrayList<LineStats>(this.lineCount);
+        for (int i = 0; i < this.lineCount; i++) {
+            lines.add(new LineStats(this.functions[this.lineFunction[i]], this.lineNumber[i], this.lineInclusive[i], this.lineExclusive[i], this.lineCommands[i]));
+        }
+        long duration = running ? System.nanoTime() - this.startTime : this.duration;
+        return new Report(duration, running, functions, lines);
+    }
+
+    /**
+     * Takes a snapshot of the call tree.
+     * Only the arrays are copied, so the snapshot is cheap enough to be taken on the server thread
+     * and can then be processed on another thread.
+     *
+     * @return The call tree of the current or last recording
+     */
+    public CallTree callTree() {
+        return new CallTree(
+                Arrays.copyOf(this.functions, this.functionCount),
+                Arrays.copyOf(this.nodeParent, this.nodeCount),
+                Arrays.copyOf(this.nodeFunction, this.nodeCount),
+                Arrays.copyOf(this.nodeSelf, this.nodeCount)
+        );
+    }
+
+    /**
+     * Snapshot of the call tree, one node per distinct call path.
+     * The node 0 is the root and has no function, the parent of a node always has a lower index.
+     *
+     * @param functions The function identifiers, indexed by function ID
+     * @param parents The parent of each node, -1 for the root
+     * @param nodeFunctions The function ID of each node, -1 for the root
+     * @param self The time spent in each call path itself, in nanoseconds
+     */
+    public record CallTree(Identifier[] functions, int[] parents, int[] nodeFunctions, long[] self) {
+
+        /**
+         * Gets the number of nodes of the tree, root included.
+         *
+         * @return The number of nodes
+         */
+        public int size() {
+            return this.parents.length;
+        }
+    }
+}
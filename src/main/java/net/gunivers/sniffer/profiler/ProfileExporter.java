@@ -0,0 +1,181 @@
+package net.gunivers.sniffer.profiler;
+
+import it.unimi.dsi.fastutil.ints.IntArrayList;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Writes the call tree recorded by the {@link FunctionProfiler} as flame graph files:
+ * <ul>
+ *     <li>the collapsed-stack format ({@code a;b;c 42} per line) read by {@code flamegraph.pl} and most flame graph tools,</li>
+ *     <li>the speedscope JSON format, openable as is on <a href="https://www.speedscope.app">speedscope</a>.</li>
+ * </ul>
+ * The files are streamed from a snapshot of the tree on a dedicated thread, so exporting a long recording never stalls a tick.
+ *
+ * @author theogiraudet
+ */
+public final class ProfileExporter {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger("sniffer");
+
+    private static final DateTimeFormatter FILE_DATE_FORMAT = DateTimeFormatter.ofPattern("yyyy-MM-dd_HH.mm.ss");
+
+    private static final String COLLAPSED_EXTENSION = ".collapsed.txt";
+    private static final String SPEEDSCOPE_EXTENSION = ".speedscope.json";
+
+    /** Single daemon thread writing the exports one after the other, shared with the {@link TraceRecorder} dumps */
+    static final ExecutorService EXECUTOR = Executors.newSingleThreadExecutor(runnable -> {
+        var thread = new Thread(runnable, "Sniffer Profile Exporter");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private ProfileExporter() {}
+
+    /**
+     * Exports a call tree in the given directory, in both formats.
+     * The snapshot must have been taken on the server thread beforehand.
+     *
+     * @param tree The call tree snapshot
+     * @param directory The directory in which the files are written, created if needed
+     * @return A future completed with the written files once the export is done
+     */
+    public static CompletableFuture<List<Path>> export(FunctionProfiler.CallTree tree, Path directory) {
+        return CompletableFuture.supplyAsync(() -> {
+            try {
+                Files.createDirectories(directory);
+                var name = "profile-" + LocalDateTime.now().format(FILE_DATE_FORMAT);
+                var collapsed = directory.resolve(name + COLLAPSED_EXTENSION);
+                var speedscope = directory.resolve(name + SPEEDSCOPE_EXTENSION);
+                try (var writer = Files.newBufferedWriter(collapsed, StandardCharsets.UTF_8)) {
+                    writeCollapsed(tree, writer);
+                }
+                try (var writer = Files.newBufferedWriter(speedscope, StandardCharsets.UTF_8)) {
+                    writeSpeedscope(tree, name, writer);
+                }
+                LOGGER.info("Profile exported to {} and {}", collapsed, speedscope);
+                return List.of(collapsed, speedscope);
+            } catch (IOException e) {
+                LOGGER.error("Failed to export the profile", e);
+                throw new UncheckedIOException(e);
+            }
+        }, EXECUTOR);
+    }
+
+    /**
+     * Writes the call tree in the collapsed-stack format.
+     * Each call path with some self time gets one line: the function identifiers from the outermost one,
+     * separated by semicolons, followed by the self time in nanoseconds.
+     *
+     * @param tree The call tree snapshot
+     * @param writer The writer
+     * @throws IOException If the writer fails
+     */
+    public static void writeCollapsed(FunctionProfiler.CallTree tree, Writer writer) throws IOException {
+        var path = new IntArrayList();
+        for (int node = 1; node < tree.size(); node++) {
+            long self = tree.self()[node];
+            if (self <= 0) {
+                continue;
+            }
+            callPath(tree, node, path);
+            for (int i = path.size() - 1; i >= 0; i--) {
+                writer.write(tree.functions()[path.getInt(i)].toString());
+                writer.write(i > 0 ? ';' : ' ');
+            }
+            writer.write(Long.toString(self));
+            writer.write('\n');
+        }
+    }
+
+    /**
+     * Writes the call tree in the speedscope file format, as a weighted sampled profile.
+     * Each call path with some self time is a sample, weighted by its self time in nanoseconds.
+     *
+     * @param tree The call tree snapshot
+     * @param name The name of the profile
+     * @param writer The writer
+     * @throws IOException If the writer fails
+     * @see <a href="https://github.com/jlfwong/speedscope/wiki/Importing-from-custom-sources">speedscope file format</a>
+     */
+    public static void writeSpeedscope(FunctionProfiler.CallTree tree, String name, Writer writer) throws IOException {
+        var out = writer instanceof BufferedWriter ? writer : new BufferedWriter(writer);
+        long total = 0;
+        for (long self : tree.self()) {
+            total += self;
+        }
+
+        out.write("{\"$schema\":\"https://www.speedscope.app/file-format-schema.json\",\"exporter\":\"sniffer\",\"name\":\"");
+        out.write(name);
+        out.write("\",\"activeProfileIndex\":0,\"shared\":{\"frames\":[");
+        for (int i = 0; i < tree.functions().length; i++) {
+            if (i > 0) out.write(',');
+            out.write("{\"name\":\"");
+            out.write(tree.functions()[i].toString());
+            out.write("\"}");
+        }
+        out.write("]},\"profiles\":[{\"type\":\"sampled\",\"name\":\"");
+        out.write(name);
+        out.write("\",\"unit\":\"nanoseconds\",\"startValue\":0,\"endValue\":");
+        out.write(Long.toString(total));
+
+        out.write(",\"samples\":[");
+        var path = new IntArrayList();
+        boolean first = true;
+        for (int node = 1; node < tree.size(); node++) {
+            if (tree.self()[node] <= 0) {
+                continue;
+            }
+            callPath(tree, node, path);
+            out.write(first ? "[" : ",[");
+            first = false;
+            for (int i = path.size() - 1; i >= 0; i--) {
+                out.write(Integer.toString(path.getInt(i)));
+                if (i > 0) out.write(',');
+            }
+            out.write(']');
+        }
+
+        out.write("],\"weights\":[");
+        first = true;
+        for (int node = 1; node < tree.size(); node++) {
+            long self = tree.self()[node];
+            if (self <= 0) {
+                continue;
+            }
+            if (!first) out.write(',');
+            first = false;
+            out.write(Long.toString(self));
+        }
+        out.write("]}]}");
+        out.flush();
+    }
+
+    /**
+     * Collects the functions of the call path of a node, from the node itself to the outermost function.
+     *
+     * @param tree The call tree snapshot
+     * @param node The node
+     * @param path The list receiving the function IDs, cleared first
+     */
+    private static void callPath(FunctionProfiler.CallTree tree, int node, IntArrayList path) {
+        path.clear();
+        for (int current = node; current > 0; current = tree.parents()[current]) {
+            path.add(tree.nodeFunctions()[current]);
+        }
+    }
+}
@@ -0,0 +1,394 @@
+package net.gunivers.sniffer.profiler;
+
+import it.unimi.dsi.fastutil.objects.Object2IntOpenHashMap;
+import it.unimi.dsi.fastutil.objects.Object2LongMaps;
+import it.unimi.dsi.fastutil.objects.Object2LongOpenHashMap;
+import net.gunivers.sniffer.config.DebuggerConfig;
+import net.minecraft.util.Identifier;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.Consumer;
+
+/**
+ * Timeline of the function cost of the last ticks.
+ * For each tick, it records the number of commands executed, the number of functions entered, the maximum frame depth,
+ * the time spent running commands and the most expensive functions. The ticks are kept in a fixed-size ring buffer,
+ * so that a lag spike can be investigated after the fact without having started the {@link FunctionProfiler}.
+ * <p>
+ * The timeline is disabled by default, see {@link DebuggerConfig#isTickTimeline()}: when it is disabled, the only cost
+ * for the hooks is a read of {@link #isEnabled()}, so that the command loop of a server without debugger is left untouched.
+ * <p>
+ * The ring buffer is made of preallocated columns and is only written on the server thread.
+ * Reading it must be done on the server thread too, see {@link #samples(int)}.
+ *
+ * @author theogiraudet
+ */
+public class TickTimeline {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger("sniffer");
+
+    /** Number of ticks kept, one minute at 20 TPS */
+    public static final int CAPACITY = 1200;
+    /** Number of most expensive functions kept per tick */
+    public static final int TOP_COUNT = 5;
+    /** Default command time above which a tick is reported as a spike, half of a 50ms tick */
+    public static final long DEFAULT_SPIKE_THRESHOLD = 25_000_000L;
+
+    private static final TickTimeline INSTANCE = new TickTimeline();
+
+    /** Whether the ticks are recorded, read by the hooks before calling them */
+    private static volatile boolean enabled = false;
+
+    /**
+     * Gets the singleton instance of the TickTimeline.
+     *
+     * @return The TickTimeline singleton instance
+     */
+    public static TickTimeline get() {
+        return INSTANCE;
+    }
+
+    // ===== Ring buffer =====
+
+    private final long[] ticks = new long[CAPACITY];
+    private final long[] commands = new long[CAPACITY];
+    private final int[] functions = new int[CAPACITY];
+    private final int[] maxDepths = new int[CAPACITY];
+    private final long[] nanos = new long[CAPACITY];
+    /** The most expensive functions of each tick, {@link #TOP_COUNT} slots per tick */
+    private final Identifier[] topFunctions = new Identifier[CAPACITY * TOP_COUNT];
+    private final long[] topNanos = new long[CAPACITY * TOP_COUNT];
+    /** Next slot to be written */
+    private int head = 0;
+    /** Number of ticks recorded, up to {@link #CAPACITY} */
+    private int size = 0;
+
+    // ===== Current tick =====
+
+    private long currentCommands = 0;
+    private int currentFunctions = 0;
+    private int currentMaxDepth = 0;
+    private long currentNanos = 0;
+    /** Inclusive time of each function during the current tick */
+    private final Object2LongOpenHashMap<Identifier> currentCosts = new Object2LongOpenHashMap<>();
+
+    /** Number of nested executions of the command loop */
+    private int runNesting = 0;
+    private long runStart = 0;
+
+    // ===== Function stack, indexed by frame depth =====
+
+    private Identifier[] stackFunction = new Identifier[64];
+    private long[] stackEnter = new long[64];
+    private int top = 0;
+    /** Number of activations of each function in the call stack, to not count recursive calls twice */
+    private final Object2IntOpenHashMap<Identifier> active = new Object2IntOpenHashMap<>();
+
+    // ===== Spikes =====
+
+    private volatile long spikeThreshold = DEFAULT_SPIKE_THRESHOLD;
+    private final List<Consumer<TickSample>> spikeListeners = new CopyOnWriteArrayList<>();
+
+    private TickTimeline() {}
+
+    /**
+     * Whether the timeline records the ticks. The hooks must only be called if it does.
+     *
+     * @return true if the timeline is enabled
+     */
+    public static boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Enables or disables the timeline. Must be called on the server thread.
+     * The recorded ticks are kept, the tick being recorded is dropped when disabling.
+     *
+     * @param enable true to record the ticks
+     */
+    public static void setEnabled(boolean enable) {
+        if (!enable && enabled) {
+            INSTANCE.dropCurrentTick();
+        }
+        enabled = enable;
+    }
+
+    /**
+     * Drops the tick being recorded and the function stack, whose hooks will not be called anymore.
+     */
+    private void dropCurrentTick() {
+        this.currentCommands = 0;
+        this.currentFunctions = 0;
+        this.currentMaxDepth = 0;
+        this.currentNanos = 0;
+        this.currentCosts.clear();
+        Arrays.fill(this.stackFunction, null);
+        this.top = 0;
+        this.active.clear();
+        this.runNesting = 0;
+    }
+
+    // ===== Hooks =====
+
+    /**
+     * Called when the command loop starts.
+     */
+    public void onRunStart() {
+        if (this.runNesting++ == 0) {
+            this.runStart = System.nanoTime();
+        }
+    }
+
+    /**
+     * Called when the command loop returns.
+     *
+     * @param finished true if all the commands have been executed, false if the execution is only paused
+     */
+    public void onRunEnd(boolean finished) {
+        if (this.runNesting <= 0) {
+            return;
+        }
+        if (--this.runNesting == 0) {
+            long now = System.nanoTime();
+            this.currentNanos += now - this.runStart;
+            if (finished) {
+                unwind(0, now);
+            }
+        }
+    }
+
+    /**
+     * Called by the execution loops before each command.
+     *
+     * @param depth The frame depth of the command
+     */
+    public void onCommand(int depth) {
+        this.currentCommands++;
+        if (depth > this.currentMaxDepth) {
+            this.currentMaxDepth = depth;
+        }
+    }
+
+    /**
+     * Called when a function is entered.
+     *
+     * @param function The identifier of the function
+     * @param depth The depth of the frame of the function
+     */
+    public void enterFunction(Identifier function, int depth) {
+        long now = System.nanoTime();
+        unwind(depth - 1, now);
+        if (depth >= this.stackFunction.length) {
+            int capacity = Math.max(depth + 1, this.stackFunction.length * 2);
+            this.stackFunction = Arrays.copyOf(this.stackFunction, capacity);
+            this.stackEnter = Arrays.copyOf(this.stackEnter, capacity);
+        }
+        for (int d = this.top + 1; d < depth; d++) {
+            this.stackFunction[d] = null;
+        }
+        this.stackFunction[depth] = function;
+        this.stackEnter[depth] = now;
+        this.active.addTo(function, 1);
+        this.currentFunctions++;
+        this.top = depth;
+    }
+
+    /**
+     * Called when a function is exited, either normally or by a return command.
+     *
+     * @param depth The depth of the frame of the function
+     */
+    public void exitFunction(int depth) {
+        if (depth > this.top || depth <= 0) {
+            return;
+        }
+        unwind(depth - 1, System.nanoTime());
+    }
+
+    /**
+     * Called at the end of each server tick to store the tick into the ring buffer.
+     *
+     * @param tick The number of the tick
+     */
+    public void endTick(long tick) {
+        int slot = this.head;
+        this.ticks[slot] = tick;
+        this.commands[slot] = this.currentCommands;
+        this.functions[slot] = this.currentFunctions;
+        this.maxDepths[slot] = this.currentMaxDepth;
+        this.nanos[slot] = this.currentNanos;
+        selectTopFunctions(slot * TOP_COUNT);
+
+        this.head = (slot + 1) % CAPACITY;
+        if (this.size < CAPACITY) {
+            this.size++;
+        }
+
+        if (this.currentNanos >= this.spikeThreshold && !this.spikeListeners.isEmpty()) {
+            var sample = sample(slot);
+            for (var listener : this.spikeListeners) {
+                try {
+                    listener.accept(sample);
+                } catch (Exception e) {
+                    LOGGER.warn("Error in tick spike listener", e);
+                }
+            }
+        }
+
+        this.currentCommands = 0;
+        this.currentFunctions = 0;
+        this.currentMaxDepth = 0;
+        this.currentNanos = 0;
+        this.currentCosts.clear();
+    }
+
+    // ===== Accounting =====
+
+    /**
+     * Closes the functions deeper than the given depth, charging their inclusive time to the current tick.
+     *
+     * @param depth The depth of the new deepest function
+     * @param now The current time
+     */
+    private void unwind(int depth, long now) {
+        while (this.top > depth) {
+            var function = this.stackFunction[this.top];
+            if (function != null) {
+                this.stackFunction[this.top] = null;
+                if (this.active.addTo(function, -1) == 1) {
+                    this.active.removeInt(function);
+                    this.currentCosts.addTo(function, now - this.stackEnter[this.top]);
+                }
+            }
+            this.top--;
+        }
+    }
+
+    /**
+     * Selects the most expensive functions of the current tick into the given slots, the most expensive first.
+     *
+     * @param offset The index of the first slot
+     */
+    private void selectTopFunctions(int offset) {
+        Arrays.fill(this.topFunctions, offset, offset + TOP_COUNT, null);
+        Arrays.fill(this.topNanos, offset, offset + TOP_COUNT, 0L);
+        for (var entry : Object2LongMaps.fastIterable(this.currentCosts)) {
+            long cost = entry.getLongValue();
+            int i = offset + TOP_COUNT - 1;
+            if (this.topFunctions[i] != null && this.topNanos[i] >= cost) {
+                continue;
+            }
+            // Insertion in the sorted slots
+            while (i > offset && (this.topFunctions[i - 1] == null || this.topNanos[i - 1] < cost)) {
+                this.topFunctions[i] = this.topFunctions[i - 1];
+                this.topNanos[i] = this.topNanos[i - 1];
+                i--;
+            }
+            this.topFunctions[i] = entry.getKey();
+            this.topNanos[i] = cost;
+        }
+    }
+
+    // ===== Queries =====
+
+    /**
+     * Cost of a function during a tick.
+     *
+     * @param function The identifier of the function
+     * @param nanos The inclusive time spent in the function, in nanoseconds
+     */
+    public record FunctionCost(Identifier function, long nanos) {}
+
+    /**
+     * Totals of a tick.
+     *
+     * @param tick The number of the tick
+     * @param commands The number of commands executed
+     * @param functions The number of functions entered
+     * @param maxDepth The maximum frame depth reached
+     * @param nanos The time spent running commands, in nanoseconds
+     * @param topFunctions The most expensive functions, the most expensive first
+     */
+    public record TickSample(long tick, long commands, int functions, int maxDepth, long nanos, List<FunctionCost> topFunctions) {}
+
+    /**
+     * Gets the most recent ticks. Must be called on the server thread.
+     *
+     * @param count The maximum number of ticks
+     * @return The ticks, the most recent first
+     */
+    public List<TickSample> samples(int count) {
+        int n = Math.min(count, this.size);
+        var samples = new ArrayList<TickSample>(n);
+        for (int i = 1; i <= n; i++) {
+            samples.add(sample((this.head - i + CAPACITY) % CAPACITY));
+        }
+        return samples;
+    }
+
+    /**
+     * Gets the most expensive ticks still in the ring buffer. Must be called on the server thread.
+     *
+     * @param count The maximum number of ticks
+     * @return The ticks, the most expensive first
+     */
+    public List<TickSample> worstSamples(int count) {
+        var samples = samples(this.size);
+        samples.sort(Comparator.comparingLong(TickSample::nanos).reversed());
+        return samples.subList(0, Math.min(count, samples.size()));
+    }
+
+    private TickSample sample(int slot) {
+        var top = new ArrayList<FunctionCost>(TOP_COUNT);
+        for (int i = slot * TOP_COUNT; i < (slot + 1) * TOP_COUNT && this.topFunctions[i] != null; i++) {
+            top.add(new FunctionCost(this.topFunctions[i], this.topNanos[i]));
+        }
+        return new TickSample(this.ticks[slot], this.commands[slot], this.functions[slot], this.maxDepths[slot], this.nanos[slot], top);
+    }
+
+    // ===== Spikes =====
+
+    /**
+     * Gets the command time above which a tick is reported to the spike listeners.
+     *
+     * @return The threshold, in nanoseconds
+     */
+    public long getSpikeThreshold() {
+        return this.spikeThreshold;
+    }
+
+    /**
+     * Sets the command time above which a tick is reported to the spike listeners.
+     *
+     * @param spikeThreshold The threshold, in nanoseconds
+     */
+    public void setSpikeThreshold(long spikeThreshold) {
+        this.spikeThreshold = spikeThreshold;
+    }
+
+    /**
+     * Registers a listener called on the server thread for each tick exceeding the spike threshold.
+     *
+     * @param listener The listener
+     */
+    public void addSpikeListener(Consumer<TickSample> listener) {
+        if (listener != null) {
+            this.spikeListeners.add(listener);
+        }
+    }
+
+    /**
+     * Unregisters a spike listener.
+     *
+     * @param listener The listener
+     */
+    public void removeSpikeListener(Consumer<TickSample> listener) {
+        this.spikeListeners.remove(listener);
+    }
+}
@@ -0,0 +1,481 @@
+package net.gunivers.sniffer.profiler;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+import static net.gunivers.sniffer.profiler.TraceFormat.*;
+
+/**
+ * Offline analyzer of the trace files dumped by the {@link TraceRecorder}.
+ * It only depends on the JDK so it can run from the mod jar without Minecraft:
+ * <pre>
+ * java -cp sniffer.jar net.gunivers.sniffer.profiler.TraceAnalyzer &lt;trace file&gt; [command] [argument]
+ * </pre>
+ * Commands:
+ * <ul>
+ *     <li>{@code summary}: the number of records, ticks and functions and the traced duration (default);</li>
+ *     <li>{@code hot [count]}: the functions with the highest self time;</li>
+ *     <li>{@code tree [min %]}: the call tree with inclusive times, hiding the nodes below the given share;</li>
+ *     <li>{@code ticks [count]}: the ticks with the highest command time;</li>
+ *     <li>{@code stack <index>}: the call stack at the given record.</li>
+ * </ul>
+ * The records are memory-mapped, and the aggregations not depending on the call stack are split across the cores
+ * with fork/join, so multi-GB traces are streamed without being loaded in the heap.
+ * <p>
+ * The self time of a record is the time until the next record of the same tick. It is charged to the function
+ * of the record, except for function exits whose following time belongs to the caller or to the server.
+ *
+ * @author theogiraudet
+ */
+public final class TraceAnalyzer {
+
+    /** Records per fork/join leaf task */
+    private static final int LEAF_SIZE = 1 << 20;
+    /** Maximum size of a mapped segment, a multiple of the record size */
+    private static final long SEGMENT_SIZE = (Integer.MAX_VALUE / RECORD_SIZE) * (long) RECORD_SIZE;
+
+    private final String[] functions;
+    private final long count;
+    private final MappedByteBuffer[] segments;
+    private final long recordsPerSegment;
+
+    private TraceAnalyzer(String[] functions, long count, MappedByteBuffer[] segments) {
+        this.functions = functions;
+        this.count = count;
+        this.segments = segments;
+        this.recordsPerSegment = SEGMENT_SIZE / RECORD_SIZE;
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length == 0) {
+            System.err.println("Usage: java -cp sniffer.jar " + TraceAnalyzer.class.getName()
+                    + " <trace file> [summary | hot [count] | tree [min %] | ticks [count] | stack <index>]");
+            System.exit(1);
+        }
+        var analyzer = open(Path.of(args[0]));
+        var command = args.length > 1 ? args[1] : "summary";
+        var out = System.out;
+        switch (command) {
+            case "summary" -> analyzer.printSummary(out);
+            case "hot" -> analyzer.printHotFunctions(out, args.length > 2 ? Integer.parseInt(args[2]) : 20);
+            case "tree" -> analyzer.printCallTree(out, args.length > 2 ? Double.parseDouble(args[2]) : 1.0);
+            case "ticks" -> analyzer.printTicks(out, args.length > 2 ? Integer.parseInt(args[2]) : 20);
+            case "stack" -> {
+                if (args.length < 3) {
+                    System.err.println("Missing record index");
+                    System.exit(1);
+                }
+                analyzer.printStack(out, Long.parseLong(args[2]));
+            }
+            default -> {
+                System.err.println("Unknown command: " + command);
+                System.exit(1);
+            }
+        }
+    }
+
+    /**
+     * Opens a trace file, reading its header and function table and mapping its records.
+     *
+     * @param file The trace file
+     * @return The analyzer of the trace
+     * @throws IOException If the file cannot be read or is not a trace file
+     */
+    public static TraceAnalyzer open(Path file) throws IOException {
+        try (var channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            var header = ByteBuffer.allocate(HEADER_SIZE);
+            readFully(channel, header, 0);
+            if (header.getLong() != MAGIC) {
+                throw new IOException(file + " is not a Sniffer trace file");
+            }
+            int version = header.getInt();
+            int recordSize = header.getInt();
+            if (version != VERSION || recordSize != RECORD_SIZE) {
+                throw new IOException("Unsupported trace version " + version + " with records of " + recordSize + " bytes");
+            }
+            long count = header.getLong();
+            int functionCount = header.getInt();
+
+            // The function table is small, it is read through a mapping of its maximum size
+            long position = HEADER_SIZE;
+            var table = channel.map(FileChannel.MapMode.READ_ONLY, position, Math.min(channel.size() - position, functionCount * (2L + 0xFFFF)));
+            var functions = new String[functionCount];
+            for (int i = 0; i < functionCount; i++) {
+                var bytes = new byte[Short.toUnsignedInt(table.getShort())];
+                table.get(bytes);
+                functions[i] = new String(bytes, StandardCharsets.UTF_8);
+            }
+            position += table.position();
+
+            if (position + count * RECORD_SIZE > channel.size()) {
+                throw new IOException("Truncated trace file: " + count + " records expected");
+            }
+            var segments = new MappedByteBuffer[(int) ((count * RECORD_SIZE + SEGMENT_SIZE - 1) / SEGMENT_SIZE)];
+            for (int i = 0; i < segments.length; i++) {
+                long offset = i * SEGMENT_SIZE;
+                segments[i] = channel.map(FileChannel.MapMode.READ_ONLY, position + offset, Math.min(SEGMENT_SIZE, count * RECORD_SIZE - offset));
+            }
+            // The mappings stay valid once the channel is closed
+            return new TraceAnalyzer(functions, count, segments);
+        }
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) {
+                throw new IOException("Unexpected end of file");
+            }
+        }
+        buffer.flip();
+    }
+
+    // ===== Record access =====
+
+    private ByteBuffer segment(long index) {
+        return this.segments[(int) (index / this.recordsPerSegment)];
+    }
+
+    private int offset(long index) {
+        return (int) (index % this.recordsPerSegment) * RECORD_SIZE;
+    }
+
+    private long time(long index) {
+        return segment(index).getLong(offset(index) + OFFSET_TIME);
+    }
+
+    private int tick(long index) {
+        return segment(index).getInt(offset(index) + OFFSET_TICK);
+    }
+
+    private int function(long index) {
+        return segment(index).getInt(offset(index) + OFFSET_FUNCTION);
+    }
+
+    private int line(long index) {
+        return segment(index).getInt(offset(index) + OFFSET_LINE);
+    }
+
+    private int depth(long index) {
+        return segment(index).getInt(offset(index) + OFFSET_DEPTH);
+    }
+
+    private int entity(long index) {
+        return segment(index).getInt(offset(index) + OFFSET_ENTITY);
+    }
+
+    private byte kind(long index) {
+        return segment(index).get(offset(index) + OFFSET_KIND);
+    }
+
+    /**
+     * Gets the self time of a record, the time until the next record of the same tick.
+     *
+     * @param index The index of the record
+     * @return The self time, 0 for the last record of a tick
+     */
+    private long selfTime(long index) {
+        if (index + 1 >= this.count || tick(index + 1) != tick(index)) {
+            return 0;
+        }
+        return time(index + 1) - time(index);
+    }
+
+    private String functionName(int function) {
+        return function >= 0 && function < this.functions.length ? this.functions[function] : "<none>";
+    }
+
+    // ===== Parallel aggregation =====
+
+    /**
+     * Aggregation of a range of records, merged pairwise by the fork/join tasks.
+     */
+    private static final class Aggregate {
+        final long[] self;
+        final long[] commands;
+        final long[] calls;
+        /** Per tick: commands, self time of the commands, first time, last time */
+        final Map<Integer, long[]> ticks = new HashMap<>();
+
+        Aggregate(int functionCount) {
+            this.self = new long[functionCount];
+            this.commands = new long[functionCount];
+            this.calls = new long[functionCount];
+        }
+
+        Aggregate merge(Aggregate other) {
+            for (int i = 0; i < this.self.length; i++) {
+                this.self[i] += other.self[i];
+                this.commands[i] += other.commands[i];
+                this.calls[i] += other.calls[i];
+            }
+            other.ticks.forEach((tick, stats) -> this.ticks.merge(tick, stats, (a, b) -> {
+                a[0] += b[0];
+                a[1] += b[1];
+                a[2] = Math.min(a[2], b[2]);
+                a[3] = Math.max(a[3], b[3]);
+                return a;
+            }));
+            return this;
+        }
+    }
+
+    private final class AggregateTask extends RecursiveTask<Aggregate> {
+        private final long from;
+        private final long to;
+
+        AggregateTask(long from, long to) {
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected Aggregate compute() {
+            if (this.to - this.from > LEAF_SIZE) {
+                long middle = (this.from + this.to) >>> 1;
+                var left = new AggregateTask(this.from, middle);
+                left.fork();
+                var right = new AggregateTask(middle, this.to).compute();
+                return left.join().merge(right);
+            }
+            var aggregate = new Aggregate(functions.length);
+            int currentTick = Integer.MIN_VALUE;
+            long[] tickStats = null;
+            for (long i = this.from; i < this.to; i++) {
+                int tick = tick(i);
+                long time = time(i);
+                if (tick != currentTick || tickStats == null) {
+                    currentTick = tick;
+                    tickStats = aggregate.ticks.computeIfAbsent(tick, t -> new long[]{0, 0, Long.MAX_VALUE, Long.MIN_VALUE});
+                }
+                tickStats[2] = Math.min(tickStats[2], time);
+                tickStats[3] = Math.max(tickStats[3], time);
+
+                int function = function(i);
+                byte kind = kind(i);
+                long self = kind == KIND_EXIT ? 0 : selfTime(i);
+                if (kind == KIND_COMMAND) {
+                    tickStats[0]++;
+                    tickStats[1] += self;
+                }
+                if (function < 0 || function >= functions.length) {
+                    continue;
+                }
+                aggregate.self[function] += self;
+                if (kind == KIND_COMMAND) {
+                    aggregate.commands[function]++;
+                } else if (kind == KIND_ENTER) {
+                    aggregate.calls[function]++;
+                }
+            }
+            return aggregate;
+        }
+    }
+
+    private Aggregate aggregate() {
+        return ForkJoinPool.commonPool().invoke(new AggregateTask(0, this.count));
+    }
+
+    // ===== Reports =====
+
+    private void printSummary(PrintStream out) {
+        var aggregate = aggregate();
+        long duration = this.count > 0 ? time(this.count - 1) - time(0) : 0;
+        long commands = aggregate.ticks.values().stream().mapToLong(stats -> stats[0]).sum();
+        out.printf(Locale.ROOT, "Records:   %d%n", this.count);
+        out.printf(Locale.ROOT, "Commands:  %d%n", commands);
+        out.printf(Locale.ROOT, "Functions: %d%n", this.functions.length);
+        out.printf(Locale.ROOT, "Ticks:     %d%n", aggregate.ticks.size());
+        out.printf(Locale.ROOT, "Duration:  %.3f ms%n", duration / 1e6);
+    }
+
+    private void printHotFunctions(PrintStream out, int limit) {
+        var aggregate = aggregate();
+        long total = Arrays.stream(aggregate.self).sum();
+        var order = new ArrayList<Integer>();
+        for (int i = 0; i < this.functions.length; i++) order.add(i);
+        order.sort(Comparator.comparingLong((Integer i) -> aggregate.self[i]).reversed());
+        out.printf(Locale.ROOT, "%12s %7s %10s %10s  %s%n", "self ms", "self %", "calls", "commands", "function");
+        for (int i : order.subList(0, Math.min(limit, order.size()))) {
+            out.printf(Locale.ROOT, "%12.3f %6.2f%% %10d %10d  %s%n",
+                    aggregate.self[i] / 1e6, total == 0 ? 0.0 : 100.0 * aggregate.self[i] / total,
+                    aggregate.calls[i], aggregate.commands[i], this.functions[i]);
+        }
+    }
+
+    private void printTicks(PrintStream out, int limit) {
+        var aggregate = aggregate();
+        var ticks = new ArrayList<>(aggregate.ticks.entrySet());
+        ticks.sort(Comparator.comparingLong((Map.Entry<Integer, long[]> entry) -> entry.getValue()[1]).reversed());
+        out.printf(Locale.ROOT, "%10s %12s %12s %10s%n", "tick", "command ms", "span ms", "commands");
+        for (var entry : ticks.subList(0, Math.min(limit, ticks.size()))) {
+            var stats = entry.getValue();
+            out.printf(Locale.ROOT, "%10d %12.3f %12.3f %10d%n", entry.getKey(), stats[1] / 1e6, (stats[3] - stats[2]) / 1e6, stats[0]);
+        }
+    }
+
+    /**
+     * Prints the call tree, built by replaying the function entries and exits in order.
+     * The inclusive time of a node is the self time of its records and of its descendants.
+     */
+    private void printCallTree(PrintStream out, double minPercent) {
+        // Nodes of the tree, interned by (parent, function)
+        var nodeIds = new HashMap<Long, Integer>();
+        var parents = new IntList();
+        var nodeFunctions = new IntList();
+        var self = new LongList();
+        parents.add(-1);
+        nodeFunctions.add(-1);
+        self.add(0);
+
+        var stack = new int[64];
+        int top = 0;
+        for (long i = 0; i < this.count; i++) {
+            int depth = Math.max(0, depth(i));
+            byte kind = kind(i);
+            if (depth >= stack.length) {
+                stack = Arrays.copyOf(stack, Math.max(depth + 1, stack.length * 2));
+            }
+            if (kind == KIND_ENTER) {
+                // Frames of the skipped depths are unknown, they are attached to the nearest known one
+                for (int d = top + 1; d < depth; d++) stack[d] = stack[d - 1];
+                int parent = depth > 0 ? stack[depth - 1] : 0;
+                int function = function(i);
+                long key = ((long) parent << 32) | (function & 0xFFFFFFFFL);
+                int node = nodeIds.computeIfAbsent(key, k -> {
+                    parents.add(parent);
+                    nodeFunctions.add(function);
+                    self.add(0);
+                    return parents.size() - 1;
+                });
+                stack[depth] = node;
+                top = depth;
+                self.add(node, selfTime(i));
+            } else if (kind == KIND_EXIT) {
+                top = Math.max(0, Math.min(top, depth - 1));
+            } else {
+                top = Math.min(top, depth);
+                self.add(top > 0 ? stack[top] : 0, selfTime(i));
+            }
+        }
+
+        // Parents always have a lower index, so the inclusive times are summed in one backward pass
+        var inclusive = Arrays.copyOf(self.values, self.size);
+        var children = new HashMap<Integer, List<Integer>>();
+        for (int node = parents.size - 1; node > 0; node--) {
+            inclusive[parents.values[node]] += inclusive[node];
+            children.computeIfAbsent(parents.values[node], k -> new ArrayList<>()).add(node);
+        }
+        long total = Math.max(1, inclusive[0]);
+        out.printf(Locale.ROOT, "%12s %7s %12s  %s%n", "total ms", "total %", "self ms", "function");
+        printNode(out, 0, 0, inclusive, self.values, nodeFunctions.values, children, total, minPercent);
+    }
+
+    private void printNode(PrintStream out, int node, int indent, long[] inclusive, long[] self, int[] nodeFunctions,
+                           Map<Integer, List<Integer>> children, long total, double minPercent) {
+        if (node > 0) {
+            out.printf(Locale.ROOT, "%12.3f %6.2f%% %12.3f  %s%s%n", inclusive[node] / 1e6, 100.0 * inclusive[node] / total,
+                    self[node] / 1e6, "  ".repeat(indent), functionName(nodeFunctions[node]));
+        }
+        var nodeChildren = children.getOrDefault(node, new ArrayList<>());
+        nodeChildren.sort(Comparator.comparingLong((Integer child) -> inclusive[child]).reversed());
+        for (int child : nodeChildren) {
+            if (100.0 * inclusive[child] / total >= minPercent) {
+                printNode(out, child, node > 0 ? indent + 1 : indent, inclusive, self, nodeFunctions, children, total, minPercent);
+            }
+        }
+    }
+
+    /**
+     * Prints the call stack at a record, rebuilt by replaying the records from the start of the trace.
+     * The frames entered before the start of the trace are known from the function of their commands.
+     */
+    private void printStack(PrintStream out, long index) {
+        if (index < 0 || index >= this.count) {
+            out.println("Record index out of range [0, " + this.count + ")");
+            return;
+        }
+        var functions = new int[64];
+        var lines = new int[64];
+        int top = 0;
+        for (long i = 0; i <= index; i++) {
+            int depth = Math.max(0, depth(i));
+            if (depth >= functions.length) {
+                functions = Arrays.copyOf(functions, Math.max(depth + 1, functions.length * 2));
+                lines = Arrays.copyOf(lines, functions.length);
+            }
+            switch (kind(i)) {
+                case KIND_ENTER -> {
+                    for (int d = top + 1; d < depth; d++) functions[d] = -1;
+                    functions[depth] = function(i);
+                    lines[depth] = -1;
+                    top = depth;
+                }
+                case KIND_EXIT -> top = Math.max(0, Math.min(top, depth - 1));
+                default -> {
+                    if (depth > top) {
+                        for (int d = top + 1; d < depth; d++) functions[d] = -1;
+                    }
+                    top = depth;
+                    if (depth > 0) {
+                        if (function(i) >= 0) functions[depth] = function(i);
+                        lines[depth] = line(i);
+                    }
+                }
+            }
+        }
+        var kind = switch (kind(index)) {
+            case KIND_ENTER -> "enter";
+            case KIND_EXIT -> "exit";
+            default -> "command";
+        };
+        out.printf(Locale.ROOT, "Record %d: %s at tick %d, depth %d, entity %d%n", index, kind, tick(index), depth(index), entity(index));
+        for (int d = top; d >= 1; d--) {
+            out.printf(Locale.ROOT, "  at %s%s%n", functionName(functions[d]), lines[d] >= 0 ? ":" + (lines[d] + 1) : "");
+        }
+    }
+
+    // ===== Primitive lists, the analyzer cannot rely on the libraries of Minecraft =====
+
+    private static final class IntList {
+        int[] values = new int[64];
+        int size = 0;
+
+        void add(int value) {
+            if (this.size == this.values.length) this.values = Arrays.copyOf(this.values, this.size * 2);
+            this.values[this.size++] = value;
+        }
+
+        int size() {
+            return this.size;
+        }
+    }
+
+    private static final class LongList {
+        long[] values = new long[64];
+        int size = 0;
+
+        void add(long value) {
+            if (this.size == this.values.length) this.values = Arrays.copyOf(this.values, this.size * 2);
+            this.values[this.size++] = value;
+        }
+
+        void add(int index, long delta) {
+            this.values[index] += delta;
+        }
+    }
+}
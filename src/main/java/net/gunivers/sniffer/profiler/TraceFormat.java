@@ -0,0 +1,57 @@
+package net.gunivers.sniffer.profiler;
+
+/**
+ * Layout of the binary execution trace files written by the {@link TraceRecorder}.
+ * This class must not depend on Minecraft, it is shared with the offline analyzer.
+ * <p>
+ * All the values are big-endian. A trace file is made of:
+ * <ol>
+ *     <li>a header: the {@link #MAGIC} (8 bytes), the {@link #VERSION} (int), the {@link #RECORD_SIZE} (int),
+ *     the number of records (long) and the number of functions (int);</li>
+ *     <li>the function table: for each function ID in order, its identifier as a length-prefixed UTF-8 string
+ *     (unsigned short length, then the bytes);</li>
+ *     <li>the records, in chronological order, each {@link #RECORD_SIZE} bytes long.</li>
+ * </ol>
+ * A record is laid out as follows:
+ * <pre>
+ *  0  long   nanoTime
+ *  8  int    server tick
+ * 12  int    function ID, -1 if none
+ * 16  int    line in the function (0-indexed), -1 if none
+ * 20  int    frame depth
+ * 24  int    network ID of the executing entity, -1 if none
+ * 28  byte   kind, one of {@link #KIND_COMMAND}, {@link #KIND_ENTER}, {@link #KIND_EXIT}
+ * 29  3 bytes of padding
+ * </pre>
+ *
+ * @author theogiraudet
+ */
+public final class TraceFormat {
+
+    /** Magic number at the start of each trace file, {@code SNFTRACE} in ASCII */
+    public static final long MAGIC = 0x534E465452414345L;
+    public static final int VERSION = 1;
+    public static final int RECORD_SIZE = 32;
+    /** Size of the header, before the function table */
+    public static final int HEADER_SIZE = 8 + 4 + 4 + 8 + 4;
+
+    public static final int OFFSET_TIME = 0;
+    public static final int OFFSET_TICK = 8;
+    public static final int OFFSET_FUNCTION = 12;
+    public static final int OFFSET_LINE = 16;
+    public static final int OFFSET_DEPTH = 20;
+    public static final int OFFSET_ENTITY = 24;
+    public static final int OFFSET_KIND = 28;
+
+    /** A command about to be executed */
+    public static final byte KIND_COMMAND = 0;
+    /** A function entered, the depth being the one of its frame */
+    public static final byte KIND_ENTER = 1;
+    /** A function exited, normally or by a return command */
+    public static final byte KIND_EXIT = 2;
+
+    /** Extension of the trace files */
+    public static final String EXTENSION = ".sntrace";
+
+    private TraceFormat() {}
+}
@@ -0,0 +1,333 @@
+package net.gunivers.sniffer.profiler;
+
+import it.unimi.dsi.fastutil.objects.Object2IntOpenHashMap;
+import net.gunivers.sniffer.duck.FrameDuck;
+import net.gunivers.sniffer.duck.SourcedDuck;
+import net.gunivers.sniffer.mixin.SteppedCommandActionAccessors;
+import net.minecraft.command.CommandQueueEntry;
+import net.minecraft.command.SteppedCommandAction;
+import net.minecraft.server.command.ServerCommandSource;
+import net.minecraft.server.function.ExpandedMacro;
+import net.minecraft.util.Identifier;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+
+import static net.gunivers.sniffer.profiler.TraceFormat.*;
+
+/**
+ * Flight recorder of the command execution.
+ * While recording, one fixed-width record is appended for each executed command and each function entry and exit
+ * into a ring buffer allocated off-heap, so the last records are always available to understand what happened
+ * before a command chain overflow or a lag spike. See {@link TraceFormat} for the record layout.
+ * <p>
+ * Recording writes primitives into the direct buffer and never allocates once the functions have been interned.
+ * It is only done on the server thread. Dumping the buffer pauses the recording and hands the two segments of the ring
+ * to the exporter thread, which writes them straight from the ring and resumes the recording once done,
+ * so a dump neither copies the ring nor stalls the tick. The commands executed during a dump are not recorded.
+ *
+ * @author theogiraudet
+ */
+public class TraceRecorder {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger("sniffer");
+
+    /** Directory of the trace files, relative to the server directory */
+    public static final String DUMP_DIRECTORY = "sniffer/traces";
+
+    /** Default capacity of the ring buffer, 8 MB */
+    public static final int DEFAULT_CAPACITY = 262_144;
+
+    private static final DateTimeFormatter FILE_DATE_FORMAT = DateTimeFormatter.ofPattern("yyyy-MM-dd_HH.mm.ss");
+
+    /** Whether the recorder is recording */
+    private static volatile boolean recording = false;
+
+    private static final TraceRecorder INSTANCE = new TraceRecorder();
+
+    /**
+     * Gets the singleton instance of the TraceRecorder.
+     *
+     * @return The TraceRecorder singleton instance
+     */
+    public static TraceRecorder get() {
+        return INSTANCE;
+    }
+
+    /**
+     * Checks if the recorder is recording.
+     * This method is called before each command, it must stay as cheap as a field read.
+     *
+     * @return true if the recorder is recording, false otherwise
+     */
+    public static boolean isRecording() {
+        return recording;
+    }
+
+    /** The ring buffer, allocated when the recording starts */
+    private ByteBuffer buffer;
+    /** Number of records of the ring buffer */
+    private int capacity;
+    /** Number of records written since the recording started */
+    private long written;
+
+    /** Interned function identifiers */
+    private final Object2IntOpenHashMap<Identifier> functionIds = new Object2IntOpenHashMap<>();
+    private Identifier[] functions = new Identifier[64];
+    private int functionCount = 0;
+
+    /** Function ID at each frame depth, to not look it up again for each command */
+    private int[] stackFunction = new int[64];
+
+    /** The current server tick */
+    private int tick = 0;
+
+    /** Guards the transitions of {@link #recording} between the server thread and the exporter thread */
+    private final Object stateLock = new Object();
+    /** The ring buffer being written by the exporter thread, or null if no dump is running */
+    private volatile ByteBuffer dumping;
+    /** Whether the recording must resume once the running dump is done */
+    private boolean resumeAfterDump;
+
+    private TraceRecorder() {
+        this.functionIds.defaultReturnValue(-1);
+    }
+
+    /**
+     * Starts recording into a new ring buffer, dropping the previous records.
+     *
+     * @param capacity The number of records kept
+     */
+    public void start(int capacity) {
+        synchronized (this.stateLock) {
+            // The ring being dumped is still read by the exporter thread
+            if (this.buffer == null || this.capacity != capacity || this.buffer == this.dumping) {
+                this.buffer = ByteBuffer.allocateDirect(Math.multiplyExact(capacity, RECORD_SIZE));
+                this.capacity = capacity;
+            }
+            this.written = 0;
+            this.functionIds.clear();
+            Arrays.fill(this.functions, 0, this.functionCount, null);
+            this.functionCount = 0;
+            Arrays.fill(this.stackFunction, -1);
+            this.resumeAfterDump = false;
+            recording = true;
+        }
+        LOGGER.info("Trace recorder started with {} records ({} KB off-heap)", capacity, (long) capacity * RECORD_SIZE / 1024);
+    }
+
+    /**
+     * Stops recording. The records are kept until the next start.
+     */
+    public void stop() {
+        synchronized (this.stateLock) {
+            this.resumeAfterDump = false;
+            recording = false;
+        }
+        LOGGER.info("Trace recorder stopped after {} records", this.written);
+    }
+
+    /**
+     * Gets the number of records currently in the ring buffer.
+     *
+     * @return The number of records
+     */
+    public long size() {
+        return Math.min(this.written, this.capacity);
+    }
+
+    /**
+     * Gets the number of records written since the recording started, overwritten ones included.
+     *
+     * @return The number of records
+     */
+    public long getWritten() {
+        return this.written;
+    }
+
+    // ===== Hooks =====
+
+    /**
+     * Called at the start of each server tick.
+     *
+     * @param tick The number of the tick
+     */
+    public void setTick(int tick) {
+        this.tick = tick;
+    }
+
+    /**
+     * Called by the execution loops before each command.
+     *
+     * @param entry The command queue entry about to be executed
+     */
+    public void onCommand(CommandQueueEntry<?> entry) {
+        int depth = entry.frame().depth();
+        int function = -1;
+        int line = -1;
+        if (depth > 0 && depth < this.stackFunction.length) {
+            function = this.stackFunction[depth];
+            if (function >= 0 && entry.action() instanceof SteppedCommandAction<?, ?> steppedAction
+                    && ((FrameDuck) (Object) entry.frame()).getFunction() instanceof ExpandedMacro<?> macro) {
+                int index = ((SteppedCommandActionAccessors) steppedAction).getNextActionIndex();
+                if (index >= 0 && index < macro.entries().size() && macro.entries().get(index) instanceof SourcedDuck sourced) {
+                    line = sourced.getSourceLine();
+                }
+            }
+        }
+        var executor = ((FrameDuck) (Object) entry.frame()).getExecutor();
+        int entity = executor instanceof ServerCommandSource source && source.getEntity() != null ? source.getEntity().getId() : -1;
+        write(KIND_COMMAND, function, line, depth, entity);
+    }
+
+    /**
+     * Called when a function is entered.
+     *
+     * @param function The identifier of the function
+     * @param depth The depth of the frame of the function
+     * @param executor The source executing the function
+     */
+    public void enterFunction(Identifier function, int depth, Object executor) {
+        int id = internFunction(function);
+        if (depth >= this.stackFunction.length) {
+            int length = this.stackFunction.length;
+            this.stackFunction = Arrays.copyOf(this.stackFunction, Math.max(depth + 1, length * 2));
+            Arrays.fill(this.stackFunction, length, this.stackFunction.length, -1);
+        }
+        if (depth >= 0) {
+            this.stackFunction[depth] = id;
+        }
+        int entity = executor instanceof ServerCommandSource source && source.getEntity() != null ? source.getEntity().getId() : -1;
+        write(KIND_ENTER, id, -1, depth, entity);
+    }
+
+    /**
+     * Called when a function is exited, either normally or by a return command.
+     *
+     * @param depth The depth of the frame of the function
+     */
+    public void exitFunction(int depth) {
+        int function = depth >= 0 && depth < this.stackFunction.length ? this.stackFunction[depth] : -1;
+        write(KIND_EXIT, function, -1, depth, -1);
+    }
+
+    private void write(byte kind, int function, int line, int depth, int entity) {
+        int offset = (int) (this.written % this.capacity) * RECORD_SIZE;
+        var buffer = this.buffer;
+        buffer.putLong(offset + OFFSET_TIME, System.nanoTime());
+        buffer.putInt(offset + OFFSET_TICK, this.tick);
+        buffer.putInt(offset + OFFSET_FUNCTION, function);
+        buffer.putInt(offset + OFFSET_LINE, line);
+        buffer.putInt(offset + OFFSET_DEPTH, depth);
+        buffer.putInt(offset + OFFSET_ENTITY, entity);
+        buffer.put(offset + OFFSET_KIND, kind);
+        this.written++;
+    }
+
+    private int internFunction(Identifier function) {
+        int id = this.functionIds.getInt(function);
+        if (id >= 0) {
+            return id;
+        }
+        id = this.functionCount++;
+        if (id == this.functions.length) {
+            this.functions = Arrays.copyOf(this.functions, id * 2);
+        }
+        this.functions[id] = function;
+        this.functionIds.put(function, id);
+        return id;
+    }
+
+    // ===== Dump =====
+
+    /**
+     * Dumps the records of the ring buffer into a trace file, the oldest first.
+     * Must be called on the server thread. The recording is paused while the exporter thread writes the file
+     * straight from the ring buffer, and resumed once the file is written.
+     *
+     * @param directory The directory in which the file is written, created if needed
+     * @return A future completed with the written file once the dump is done
+     */
+    public CompletableFuture<Path> dump(Path directory) {
+        if (this.buffer == null) {
+            return CompletableFuture.failedFuture(new IllegalStateException("No trace has been recorded"));
+        }
+        if (this.dumping != null) {
+            return CompletableFuture.failedFuture(new IllegalStateException("A trace is already being dumped"));
+        }
+        // The two segments of the ring, in chronological order, are written without being copied
+        var ring = this.buffer;
+        int size = (int) size();
+        int first = (int) ((this.written - size) % this.capacity);
+        int head = Math.min(size, this.capacity - first);
+        var oldest = ring.duplicate().limit((first + head) * RECORD_SIZE).position(first * RECORD_SIZE);
+        var newest = ring.duplicate().limit((size - head) * RECORD_SIZE).position(0);
+        synchronized (this.stateLock) {
+            this.resumeAfterDump = recording;
+            recording = false;
+            this.dumping = ring;
+        }
+
+        var header = ByteBuffer.allocate(HEADER_SIZE + functionTableSize());
+        header.putLong(MAGIC).putInt(VERSION).putInt(RECORD_SIZE).putLong(size).putInt(this.functionCount);
+        for (int i = 0; i < this.functionCount; i++) {
+            var bytes = this.functions[i].toString().getBytes(StandardCharsets.UTF_8);
+            header.putShort((short) bytes.length).put(bytes);
+        }
+        header.flip();
+
+        return CompletableFuture.supplyAsync(() -> {
+            var file = directory.resolve("trace-" + LocalDateTime.now().format(FILE_DATE_FORMAT) + EXTENSION);
+            try {
+                Files.createDirectories(directory);
+                try (var channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                    while (header.hasRemaining()) channel.write(header);
+                    while (oldest.hasRemaining()) channel.write(oldest);
+                    while (newest.hasRemaining()) channel.write(newest);
+                }
+            } catch (IOException e) {
+                LOGGER.error("Failed to dump the trace", e);
+                throw new UncheckedIOException(e);
+            } finally {
+                resumeAfterDump(ring);
+            }
+            LOGGER.info("Trace of {} records dumped to {}", size, file);
+            return file;
+        }, ProfileExporter.EXECUTOR);
+    }
+
+    /**
+     * Resumes the recording paused by a dump, unless the recorder has been stopped or restarted meanwhile.
+     *
+     * @param ring The ring buffer that has been dumped
+     */
+    private void resumeAfterDump(ByteBuffer ring) {
+        synchronized (this.stateLock) {
+            this.dumping = null;
+            if (this.resumeAfterDump && this.buffer == ring) {
+                recording = true;
+            }
+            this.resumeAfterDump = false;
+        }
+    }
+
+    private int functionTableSize() {
+        int size = 0;
+        for (int i = 0; i < this.functionCount; i++) {
+            size += 2 + this.functions[i].toString().getBytes(StandardCharsets.UTF_8).length;
+        }
+        return size;
+    }
+}
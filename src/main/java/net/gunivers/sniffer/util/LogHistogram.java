@@ -0,0 +1,180 @@
+package net.gunivers.sniffer.util;
+
+import java.util.Arrays;
+
+/**
+ * Histogram of positive long values with logarithmic buckets.
+ * Each power of two is split into {@link #SUB_BUCKETS} linear sub-buckets, so a recorded value is known
+ * with a relative error below {@code 1 / SUB_BUCKETS}, whatever its magnitude.
+ * <p>
+ * The buckets cover the whole long range with a fixed array, so the memory of a histogram is bounded
+ * (under 8 KB) regardless of the number of recorded values, and recording never allocates.
+ * The class is not thread-safe.
+ *
+ * @author theogiraudet
+ */
+public class LogHistogram {
+
+    /** Number of bits of precision kept below the highest bit of a value */
+    private static final int SUB_BITS = 4;
+    /** Number of linear sub-buckets per power of two */
+    public static final int SUB_BUCKETS = 1 << SUB_BITS;
+    /** Number of buckets needed to cover all the positive longs */
+    private static final int BUCKET_COUNT = (Long.SIZE - SUB_BITS) * SUB_BUCKETS;
+
+    private final long[] counts = new long[BUCKET_COUNT];
+    private long count = 0;
+    private long total = 0;
+    private long min = Long.MAX_VALUE;
+    private long max = Long.MIN_VALUE;
+
+    /**
+     * Records a value. Negative values are recorded as 0.
+     *
+     * @param value The value to record
+     */
+    public void record(long value) {
+        if (value < 0) {
+            value = 0;
+        }
+        this.counts[indexOf(value)]++;
+        this.count++;
+        this.total += value;
+        if (value < this.min) this.min = value;
+        if (value > this.max) this.max = value;
+    }
+
+    /**
+     * Adds all the values recorded by another histogram to this one.
+     *
+     * @param other The other histogram
+     */
+    public void add(LogHistogram other) {
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            this.counts[i] += other.counts[i];
+        }
+        this.count += other.count;
+        this.total += other.total;
+        this.min = Math.min(this.min, other.min);
+        this.max = Math.max(this.max, other.max);
+    }
+
+    /**
+     * Removes all the recorded values.
+     */
+    public void reset() {
+        Arrays.fill(this.counts, 0);
+        this.count = 0;
+        this.total = 0;
+        this.min = Long.MAX_VALUE;
+        this.max = Long.MIN_VALUE;
+    }
+
+    /**
+     * Gets the value at the given percentile.
+     * The result is the middle of the bucket holding the value, clamped to the recorded min and max.
+     *
+     * @param percentile The percentile, between 0 and 100
+     * @return The value at the percentile, or 0 if no value has been recorded
+     */
+    public long percentile(double percentile) {
+        if (this.count == 0) {
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(percentile / 100.0 * this.count));
+        long seen = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            seen += this.counts[i];
+            if (seen >= rank) {
+                long value = lowerBound(i) + bucketWidth(i) / 2;
+                return Math.max(this.min, Math.min(this.max, value));
+            }
+        }
+        return this.max;
+    }
+
+    /**
+     * Gets the number of recorded values.
+     *
+     * @return The number of recorded values
+     */
+    public long getCount() {
+        return this.count;
+    }
+
+    /**
+     * Gets the sum of the recorded values.
+     *
+     * @return The sum of the recorded values
+     */
+    public long getTotal() {
+        return this.total;
+    }
+
+    /**
+     * Gets the mean of the recorded values.
+     *
+     * @return The mean, or 0 if no value has been recorded
+     */
+    public double getMean() {
+        return this.count == 0 ? 0 : (double) this.total / this.count;
+    }
+
+    /**
+     * Gets the smallest recorded value.
+     *
+     * @return The smallest value, or 0 if no value has been recorded
+     */
+    public long getMin() {
+        return this.count == 0 ? 0 : this.min;
+    }
+
+    /**
+     * Gets the largest recorded value.
+     *
+     * @return The largest value, or 0 if no value has been recorded
+     */
+    public long getMax() {
+        return this.count == 0 ? 0 : this.max;
+    }
+
+    /**
+     * Gets the bucket of a value.
+     * Values below {@link #SUB_BUCKETS} have their own bucket, the others share it with the values
+     * having the same highest bit and the same {@link #SUB_BITS} following bits.
+     *
+     * @param value The positive value
+     * @return The index of the bucket
+     */
+    static int indexOf(long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) value;
+        }
+        int shift = (Long.SIZE - 1 - Long.numberOfLeadingZeros(value)) - SUB_BITS;
+        int sub = (int) (value >>> shift) & (SUB_BUCKETS - 1);
+        return (shift + 1) * SUB_BUCKETS + sub;
+    }
+
+    /**
+     * Gets the smallest value of a bucket.
+     *
+     * @param index The index of the bucket
+     * @return The smallest value of the bucket
+     */
+    static long lowerBound(int index) {
+        int bucket = index / SUB_BUCKETS;
+        int sub = index % SUB_BUCKETS;
+        return bucket == 0 ? sub : (long) (SUB_BUCKETS + sub) << (bucket - 1);
+    }
+
+    /**
+     * Gets the number of values of a bucket.
+     *
+     * @param index The index of the bucket
+     * @return The width of the bucket
+     */
+    static long bucketWidth(int index) {
+        int bucket = index / SUB_BUCKETS;
+        return bucket == 0 ? 1 : 1L << (bucket - 1);
+    }
+}
@@ -2,6 +2,7 @@ package net.gunivers.sniffer.util;
 
 import com.google.common.base.Suppliers;
 import com.mojang.logging.LogUtils;
+import net.gunivers.sniffer.duck.ExpandedMacroDuck;
 import net.minecraft.server.function.ExpandedMacro;
 import net.minecraft.text.Text;
 import net.minecraft.util.Formatting;
@@ -21,14 +22,14 @@ public class Utils {
 
     /**
      * Retrieves the identifier from an ExpandedMacro function.
-     * This method uses EncapsulationBreaker to access the private field
-     * that contains the function's identifier.
+     * For an expanded macro, this is the identifier of the original macro.
      *
      * @param function The ExpandedMacro function to get the ID from
-     * @return The Identifier of the function, or a fallback identifier if not found
+     * @return The Identifier of the function, or its own ID if not set
      */
     public static Identifier getId(ExpandedMacro<?> function) {
-        return ReflectUtil.getT(function, "functionIdentifier", Identifier.class).onFailure(LOGGER::error).getDataOrElse(Identifier.of("foo:bar"));
+        var id = ((ExpandedMacroDuck) (Object) function).getFunctionIdentifier();
+        return id != null ? id : function.id();
     }
 
     private static final String MESSAGE_PREFIX = "[Sniffer] ";
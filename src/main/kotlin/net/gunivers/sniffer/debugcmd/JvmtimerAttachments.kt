@@ -0,0 +1,118 @@
+package net.gunivers.sniffer.debugcmd
+
+import net.gunivers.sniffer.dap.DebuggerState
+import net.minecraft.util.Identifier
+
+/**
+ * Timers attached to functions, started and ended automatically each time a matching function is called.
+ * A pattern is either a function identifier (`namespace:path`), a function tag (`#namespace:tag`)
+ * or a prefix ending with a star (`namespace:*`, `namespace:path/*`).
+ *
+ * The patterns are compiled into the set of matching function identifiers, and each function caches
+ * its timer until the patterns or the datapacks change, so calling an unmatched function costs a field read.
+ * The patterns are resolved against the current server, and compiled again each time a server starts.
+ */
+object JvmtimerAttachments {
+
+    /** Whether at least one pattern is attached, checked before anything else on each function call */
+    @Volatile
+    private var active = false
+
+    /** Incremented each time the compiled attachments are invalidated */
+    @Volatile
+    private var generation = 0
+
+    private val patterns = LinkedHashSet<String>()
+
+    /** Timers of the matching functions, or null if stale */
+    private var compiled: Map<Identifier, JvmtimerCommand.JvmTimer>? = null
+
+    /**
+     * Checks if at least one pattern is attached.
+     * This method is called on each function call, it must stay as cheap as a field read.
+     */
+    @JvmStatic
+    fun isActive(): Boolean = active
+
+    /**
+     * Gets the current generation, to be compared with the one of a cached timer.
+     */
+    @JvmStatic
+    fun getGeneration(): Int = generation
+
+    /**
+     * Gets the timer attached to a function, compiling the patterns if needed.
+     *
+     * @return The timer, or null if the function matches no pattern
+     */
+    @JvmStatic
+    fun getTimer(function: Identifier): JvmtimerCommand.JvmTimer? {
+        val timers = compiled ?: compile().also { compiled = it }
+        return timers[function]
+    }
+
+    /**
+     * Attaches a pattern.
+     *
+     * @return The number of functions currently matching the pattern
+     */
+    fun attach(pattern: String): Int {
+        patterns.add(pattern)
+        invalidate()
+        active = true
+        return matches(pattern).size
+    }
+
+    /**
+     * Detaches a pattern.
+     *
+     * @return true if the pattern was attached
+     */
+    fun detach(pattern: String): Boolean {
+        val removed = patterns.remove(pattern)
+        active = patterns.isNotEmpty()
+        invalidate()
+        return removed
+    }
+
+    fun getPatterns(): Set<String> = patterns
+
+    /**
+     * Invalidates the compiled attachments.
+     * Must be called each time the patterns or the loaded functions change.
+     */
+    @JvmStatic
+    fun invalidate() {
+        compiled = null
+        generation++
+    }
+
+    private fun compile(): Map<Identifier, JvmtimerCommand.JvmTimer> {
+        val timers = HashMap<Identifier, JvmtimerCommand.JvmTimer>()
+        patterns.forEach { pattern ->
+            matches(pattern).forEach { timers[it] = JvmtimerCommand.getTimer(it.toString()) }
+        }
+        return timers
+    }
+
+    /**
+     * Resolves a pattern against the functions loaded by the current server.
+     */
+    private fun matches(pattern: String): Collection<Identifier> {
+        val manager = DebuggerState.get().server.commandFunctionManager
+        return when {
+            pattern.startsWith("#") -> {
+                val tag = Identifier.tryParse(pattern.substring(1)) ?: return emptyList()
+                manager.getTag(tag).map { it.id() }
+            }
+            pattern.endsWith("*") -> {
+                val prefix = pattern.dropLast(1)
+                manager.allFunctions.filter { it.toString().startsWith(prefix) }
+            }
+            else -> {
+                val id = Identifier.tryParse(pattern) ?: return emptyList()
+                if(manager.getFunction(id).isPresent) listOf(id) else emptyList()
+            }
+        }
+    }
+}
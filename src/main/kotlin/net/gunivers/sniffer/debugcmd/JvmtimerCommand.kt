@@ -1,23 +1,40 @@
 package net.gunivers.sniffer.debugcmd
 
+import com.google.gson.GsonBuilder
 import com.mojang.brigadier.arguments.StringArgumentType
 import com.mojang.brigadier.builder.LiteralArgumentBuilder.literal
 import com.mojang.brigadier.context.CommandContext
 import com.mojang.logging.LogUtils
+import it.unimi.dsi.fastutil.longs.LongArrayList
 import net.fabricmc.fabric.api.command.v2.CommandRegistrationCallback
 import net.gunivers.sniffer.util.Extension.appendLine
+import net.gunivers.sniffer.util.LogHistogram
 import net.minecraft.server.command.CommandManager.argument
 import net.minecraft.server.command.ServerCommandSource
 import net.minecraft.text.MutableText
 import net.minecraft.text.Text
 import net.minecraft.util.Colors
-import kotlin.math.max
-import kotlin.math.min
+import java.io.IOException
+import java.nio.file.Files
+import java.time.LocalDateTime
+import java.time.format.DateTimeFormatter
 
 object JvmtimerCommand {
 
     private val LOGGER = LogUtils.getLogger()
 
+    private val GSON = GsonBuilder().setPrettyPrinting().create()
+
+    private val FILE_DATE_FORMAT = DateTimeFormatter.ofPattern("yyyy-MM-dd_HH.mm.ss")
+
+    private const val EXPORT_DIRECTORY = "sniffer/timers"
+
+    /** Maximum number of starts of a timer without end */
+    private const val MAX_NESTING = 256
+
+    /** Length of the rolling window of the timers */
+    private const val WINDOW_NANOS = 60_000_000_000L
+
     val timers = HashMap<String, JvmTimer>()
 
     @JvmStatic
@@ -65,6 +82,43 @@ object JvmtimerCommand {
                                 1
                             }
                         )
+                    ).then(literal<ServerCommandSource?>("attach")
+                        .then(argument("pattern", StringArgumentType.greedyString())
+                            .executes {
+                                val pattern = StringArgumentType.getString(it, "pattern")
+                                val count = JvmtimerAttachments.attach(pattern)
+                                it.source.sendFeedback({ Text.translatable("sniffer.commands.jvmtimer.attach", pattern, count) }, false)
+                                1
+                            }
+                        )
+                    ).then(literal<ServerCommandSource?>("detach")
+                        .then(argument("pattern", StringArgumentType.greedyString())
+                            .suggests { _, builder ->
+                                JvmtimerAttachments.getPatterns().forEach { builder.suggest(it) }
+                                builder.buildFuture()
+                            }
+                            .executes {
+                                val pattern = StringArgumentType.getString(it, "pattern")
+                                if(!JvmtimerAttachments.detach(pattern)){
+                                    it.source.sendError(Text.translatable("sniffer.commands.jvmtimer.detach.not_attached", pattern))
+                                    return@executes 0
+                                }
+                                it.source.sendFeedback({ Text.translatable("sniffer.commands.jvmtimer.detach", pattern) }, false)
+                                1
+                            }
+                        )
+                    ).then(literal<ServerCommandSource?>("attached")
+                        .executes {
+                            val patterns = JvmtimerAttachments.getPatterns()
+                            it.source.sendFeedback({ Text.translatable("sniffer.commands.jvmtimer.attached", patterns.size, patterns.joinToString(", ")) }, false)
+                            patterns.size
+                        }
+                    ).then(literal<ServerCommandSource?>("export")
+                        .then(literal<ServerCommandSource?>("csv")
+                            .executes { export(it, "csv") }
+                        ).then(literal<ServerCommandSource?>("json")
+                            .executes { export(it, "json") }
+                        )
                     ).then(literal<ServerCommandSource?>("disable")
                         .then(argument("id", StringArgumentType.string())
                             .suggests(JvmtimerSuggestionProvider)
@@ -84,69 +138,172 @@ object JvmtimerCommand {
         return timers[id] ?: JvmTimer(id).also { timers[id] = it }
     }
 
+    /**
+     * Writes the statistics of all the timers into a CSV or JSON file of the server directory.
+     */
+    private fun export(ctx: CommandContext<ServerCommandSource>, format: String): Int {
+        val directory = ctx.source.server.runDirectory.resolve(EXPORT_DIRECTORY)
+        val file = directory.resolve("timers-" + LocalDateTime.now().format(FILE_DATE_FORMAT) + "." + format)
+        val stats = timers.values.map { it.stats() }
+        try {
+            Files.createDirectories(directory)
+            Files.writeString(file, if(format == "csv") toCsv(stats) else GSON.toJson(stats))
+        } catch (e: IOException) {
+            LOGGER.error("Failed to export the timers", e)
+            ctx.source.sendError(Text.translatable("sniffer.commands.jvmtimer.export.failed", e.message))
+            return 0
+        }
+        ctx.source.sendFeedback({ Text.translatable("sniffer.commands.jvmtimer.export.done", stats.size, file.toString()) }, false)
+        return stats.size
+    }
+
+    private fun toCsv(stats: List<TimerStats>): String {
+        val builder = StringBuilder("id,count,total_ns,mean_ns,min_ns,max_ns,p50_ns,p90_ns,p99_ns,p999_ns,window_count,window_p50_ns,window_p99_ns\n")
+        stats.forEach {
+            builder.append('"').append(it.id.replace("\"", "\"\"")).append('"')
+                .append(',').append(it.count).append(',').append(it.total).append(',').append(it.mean)
+                .append(',').append(it.min).append(',').append(it.max)
+                .append(',').append(it.p50).append(',').append(it.p90).append(',').append(it.p99).append(',').append(it.p999)
+                .append(',').append(it.windowCount).append(',').append(it.windowP50).append(',').append(it.windowP99)
+                .append('\n')
+        }
+        return builder.toString()
+    }
+
+    /**
+     * Statistics of a timer, in nanoseconds, as exported.
+     */
+    data class TimerStats(
+        val id: String,
+        val count: Long,
+        val total: Long,
+        val mean: Long,
+        val min: Long,
+        val max: Long,
+        val p50: Long,
+        val p90: Long,
+        val p99: Long,
+        val p999: Long,
+        val windowCount: Long,
+        val windowP50: Long,
+        val windowP99: Long
+    )
+
+    /**
+     * A named timer measuring the durations between its starts and its ends.
+     * Starts are stacked, so the timer can be nested and re-entered: each end closes the last start.
+     * The durations are recorded in log-bucketed histograms, one for the whole life of the timer
+     * and two for the rolling window, so the memory of a timer is bounded whatever the number of measures.
+     */
     class JvmTimer(val id: String) {
 
-        private var startTime = -1L
+        /** Start times of the measures in progress, the last one being the innermost */
+        private val starts = LongArrayList()
 
-        private var totalTime = 0L
+        private val histogram = LogHistogram()
 
-        private var count = 0
+        /** Durations of the current window */
+        private var window = LogHistogram()
 
-        private var enabled = true
+        /** Durations of the previous window */
+        private var previousWindow = LogHistogram()
 
-        private var minTime = Long.MAX_VALUE
+        private var windowStart = System.nanoTime()
 
-        private var maxTime = Long.MIN_VALUE
+        private var enabled = true
 
         fun start(){
             if(!enabled) return
-            if((startTime != -1L)){
-                LOGGER.warn("Timer $id is already started! Possible end missing? Timer $id has been disable!")
-                enabled = false
-                startTime = -1L
+            if(starts.size >= MAX_NESTING){
+                LOGGER.warn("Timer $id has been started $MAX_NESTING times without end! Possible end missing? Start ignored")
+                return
             }
-            startTime = System.nanoTime()
+            starts.add(System.nanoTime())
         }
 
         fun end(){
             if(!enabled) return
-            if((startTime == -1L)){
+            if(starts.isEmpty()){
                 LOGGER.warn("Timer $id is not started")
-                enabled = false
                 return
             }
-            val delta = System.nanoTime() - startTime
-            totalTime += delta
-            minTime = min(minTime, delta)
-            maxTime = max(maxTime, delta)
-            count++
-            startTime = -1L
+            record(System.nanoTime() - starts.popLong())
         }
 
-        fun get(ctx: CommandContext<ServerCommandSource>){
-            if(count == 0){
-                ctx.source.sendFeedback({ Text.translatable("sniffer.commands.jvmtimer.not_started", id) }, false)
-                return
+        /**
+         * Records a measured duration.
+         */
+        fun record(delta: Long){
+            if(!enabled) return
+            rotateWindow(System.nanoTime())
+            histogram.record(delta)
+            window.record(delta)
+        }
+
+        /**
+         * Starts a new window when the current one is over.
+         * The previous window is dropped too if nothing has been recorded during a whole window.
+         */
+        private fun rotateWindow(now: Long){
+            val elapsed = now - windowStart
+            if(elapsed < WINDOW_NANOS) return
+            val previous = previousWindow
+            previousWindow = window
+            window = previous
+            window.reset()
+            if(elapsed >= 2 * WINDOW_NANOS) previousWindow.reset()
+            windowStart = now
+        }
+
+        /**
+         * Gets the durations of the rolling window, between one and two windows long.
+         */
+        private fun windowed(): LogHistogram {
+            rotateWindow(System.nanoTime())
+            return LogHistogram().also {
+                it.add(previousWindow)
+                it.add(window)
             }
+        }
+
+        fun stats(): TimerStats {
+            val windowed = windowed()
+            return TimerStats(
+                id, histogram.count, histogram.total, histogram.mean.toLong(), histogram.min, histogram.max,
+                histogram.percentile(50.0), histogram.percentile(90.0), histogram.percentile(99.0), histogram.percentile(99.9),
+                windowed.count, windowed.percentile(50.0), windowed.percentile(99.0)
+            )
+        }
+
+        fun get(ctx: CommandContext<ServerCommandSource>){
             if(!enabled){
                 ctx.source.sendFeedback({ Text.translatable("sniffer.commands.jvmtimer.disable", id) }, false)
                 return
             }
+            if(histogram.count == 0L){
+                ctx.source.sendFeedback({ Text.translatable("sniffer.commands.jvmtimer.not_started", id) }, false)
+                return
+            }
+            val windowed = windowed()
             val text = Text.empty()
             text.title("sniffer.commands.jvmtimer.info.id").value(id)
-                .desc("sniffer.commands.jvmtimer.info.total").value("${totalTime / 1_000_000.0}ms")
-                .desc("sniffer.commands.jvmtimer.info.count").value(count.toString())
-                .desc("sniffer.commands.jvmtimer.info.average").value("${totalTime / count / 1_000_000.0}ms")
-                .desc("sniffer.commands.jvmtimer.info.max_min").value("${maxTime / 1_000.0}μs/${minTime / 1_000.0}μs")
+                .desc("sniffer.commands.jvmtimer.info.total").value("${histogram.total / 1_000_000.0}ms")
+                .desc("sniffer.commands.jvmtimer.info.count").value(histogram.count.toString())
+                .desc("sniffer.commands.jvmtimer.info.average").value("${histogram.mean / 1_000_000.0}ms")
+                .desc("sniffer.commands.jvmtimer.info.max_min").value("${histogram.max / 1_000.0}μs/${histogram.min / 1_000.0}μs")
+                .desc("sniffer.commands.jvmtimer.info.percentiles").value(percentiles(histogram))
+                .desc(Text.translatable("sniffer.commands.jvmtimer.info.window", WINDOW_NANOS / 1_000_000_000, windowed.count))
+                .value(percentiles(windowed))
             ctx.source.sendFeedback({ text }, false)
         }
+
         fun reset(){
-            startTime = -1L
-            totalTime = 0L
-            count = 0
+            starts.clear()
+            histogram.reset()
+            window.reset()
+            previousWindow.reset()
+            windowStart = System.nanoTime()
             enabled = true
-            maxTime = Long.MIN_VALUE
-            minTime = Long.MAX_VALUE
         }
 
         fun disable(){
@@ -154,13 +311,20 @@ object JvmtimerCommand {
             enabled = false
         }
 
+        private fun percentiles(histogram: LogHistogram): String =
+            "${histogram.percentile(50.0) / 1_000.0}μs/${histogram.percentile(90.0) / 1_000.0}μs/" +
+                    "${histogram.percentile(99.0) / 1_000.0}μs/${histogram.percentile(99.9) / 1_000.0}μs"
+
         private fun MutableText.title(str: String): MutableText =
             this.appendLine(Text.translatable(str).styled { it.withColor(Colors.CYAN).withBold(true) })
 
         private fun MutableText.desc(str: String): MutableText =
-            this.appendLine(Text.translatable(str).styled { it.withColor(Colors.WHITE).withBold(false) })
+            this.desc(Text.translatable(str))
+
+        private fun MutableText.desc(text: Text): MutableText =
+            this.appendLine(text.copy().styled { it.withColor(Colors.WHITE).withBold(false) })
 
         private fun MutableText.value(str: String): MutableText =
             this.appendLine(Text.literal(str).styled { it.withColor(Colors.CYAN).withBold(false) })
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,387 @@
+package net.gunivers.sniffer.debugcmd
+
+import com.mojang.brigadier.arguments.DoubleArgumentType
+import com.mojang.brigadier.arguments.IntegerArgumentType
+import com.mojang.brigadier.arguments.StringArgumentType
+import com.mojang.brigadier.builder.ArgumentBuilder
+import com.mojang.brigadier.builder.LiteralArgumentBuilder.literal
+import com.mojang.brigadier.builder.RequiredArgumentBuilder
+import com.mojang.brigadier.context.CommandContext
+import net.fabricmc.fabric.api.command.v2.CommandRegistrationCallback
+import net.gunivers.sniffer.bench.DatapackGenerator
+import net.gunivers.sniffer.config.DebuggerConfig
+import net.gunivers.sniffer.dap.ServerMailbox
+import net.gunivers.sniffer.profiler.FunctionProfiler
+import net.gunivers.sniffer.profiler.ProfileExporter
+import net.gunivers.sniffer.profiler.TickTimeline
+import net.gunivers.sniffer.profiler.TraceRecorder
+import net.gunivers.sniffer.util.Extension.appendLine
+import net.minecraft.server.command.CommandManager.argument
+import net.minecraft.server.command.ServerCommandSource
+import net.minecraft.text.MutableText
+import net.minecraft.text.Text
+import net.minecraft.util.Colors
+import net.minecraft.util.Util
+import net.minecraft.util.WorldSavePath
+import java.util.concurrent.CompletableFuture
+
+object SnifferCommand {
+
+    private const val DEFAULT_DUMP_COUNT = 10
+
+    private const val EXPORT_DIRECTORY = "sniffer/profiles"
+
+    private const val DEFAULT_TIMELINE_COUNT = 5
+
+    /** Maximum number of records of the trace ring buffer, 1 GB */
+    private const val MAX_TRACE_CAPACITY = 1 shl 25
+
+    @JvmStatic
+    fun onInitialize() {
+        CommandRegistrationCallback.EVENT.register { dispatcher, _, _ ->
+            dispatcher.register(
+                literal<ServerCommandSource?>("sniffer")
+                    .requires { it.hasPermissionLevel(2) }
+                    .then(literal<ServerCommandSource?>("profile")
+                        .then(literal<ServerCommandSource?>("start")
+                            .executes {
+                                FunctionProfiler.get().start(false)
+                                it.source.sendFeedback({ Text.translatable("sniffer.commands.profile.started") }, false)
+                                1
+                            }
+                            // The time of each line is read before each command, too costly to be the default on a live server
+                            .then(literal<ServerCommandSource?>("lines")
+                                .executes {
+                                    FunctionProfiler.get().start(true)
+                                    it.source.sendFeedback({ Text.translatable("sniffer.commands.profile.started.lines") }, false)
+                                    1
+                                }
+                            )
+                        ).then(literal<ServerCommandSource?>("stop")
+                            .executes {
+                                if(!FunctionProfiler.isRunning()){
+                                    it.source.sendError(Text.translatable("sniffer.commands.profile.not_running"))
+                                    return@executes 0
+                                }
+                                FunctionProfiler.get().stop()
+                                it.source.sendFeedback({ Text.translatable("sniffer.commands.profile.stopped") }, false)
+                                1
+                            }
+                        ).then(literal<ServerCommandSource?>("dump")
+                            .executes {
+                                dump(it, DEFAULT_DUMP_COUNT)
+                            }
+                            .then(argument("count", IntegerArgumentType.integer(1))
+                                .executes {
+                                    dump(it, IntegerArgumentType.getInteger(it, "count"))
+                                }
+                            )
+                        ).then(literal<ServerCommandSource?>("export")
+                            .executes {
+                                export(it)
+                            }
+                        )
+                    ).then(literal<ServerCommandSource?>("trace")
+                        .then(literal<ServerCommandSource?>("start")
+                            .executes {
+                                startTrace(it, TraceRecorder.DEFAULT_CAPACITY)
+                            }
+                            .then(argument("records", IntegerArgumentType.integer(1024, MAX_TRACE_CAPACITY))
+                                .executes {
+                                    startTrace(it, IntegerArgumentType.getInteger(it, "records"))
+                                }
+                            )
+                        ).then(literal<ServerCommandSource?>("stop")
+                            .executes {
+                                if(!TraceRecorder.isRecording()){
+                                    it.source.sendError(Text.translatable("sniffer.commands.trace.not_recording"))
+                                    return@executes 0
+                                }
+                                TraceRecorder.get().stop()
+                                it.source.sendFeedback({ Text.translatable("sniffer.commands.trace.stopped", TraceRecorder.get().written) }, false)
+                                1
+                            }
+                        ).then(literal<ServerCommandSource?>("dump")
+                            .executes {
+                                dumpTrace(it)
+                            }
+                        )
+                    ).then(literal<ServerCommandSource?>("timeline")
+                        .then(literal<ServerCommandSource?>("enable")
+                            .executes {
+                                setTimelineEnabled(it, true)
+                            }
+                        ).then(literal<ServerCommandSource?>("disable")
+                            .executes {
+                                setTimelineEnabled(it, false)
+                            }
+                        ).then(literal<ServerCommandSource?>("recent")
+                            .executes {
+                                timeline(it, TickTimeline.get().samples(DEFAULT_TIMELINE_COUNT))
+                            }
+                            .then(argument("count", IntegerArgumentType.integer(1, TickTimeline.CAPACITY))
+                                .executes {
+                                    timeline(it, TickTimeline.get().samples(IntegerArgumentType.getInteger(it, "count")))
+                                }
+                            )
+                        ).then(literal<ServerCommandSource?>("worst")
+                            .executes {
+                                timeline(it, TickTimeline.get().worstSamples(DEFAULT_TIMELINE_COUNT))
+                            }
+                            .then(argument("count", IntegerArgumentType.integer(1, TickTimeline.CAPACITY))
+                                .executes {
+                                    timeline(it, TickTimeline.get().worstSamples(IntegerArgumentType.getInteger(it, "count")))
+                                }
+                            )
+                        ).then(literal<ServerCommandSource?>("threshold")
+                            .executes {
+                                val threshold = ms(TickTimeline.get().spikeThreshold)
+                                it.source.sendFeedback({ Text.translatable("sniffer.commands.timeline.threshold", threshold) }, false)
+                                1
+                            }
+                            .then(argument("milliseconds", DoubleArgumentType.doubleArg(0.0))
+                                .executes {
+                                    val threshold = DoubleArgumentType.getDouble(it, "milliseconds")
+                                    TickTimeline.get().spikeThreshold = (threshold * 1_000_000).toLong()
+                                    it.source.sendFeedback({ Text.translatable("sniffer.commands.timeline.threshold.set", threshold.toString()) }, false)
+                                    1
+                                }
+                            )
+                        )
+                    ).then(literal<ServerCommandSource?>("dap")
+                        .then(literal<ServerCommandSource?>("latency")
+                            .executes {
+                                latency(it)
+                            }
+                            .then(literal<ServerCommandSource?>("reset")
+                                .executes {
+                                    ServerMailbox.get().resetLatencies()
+                                    it.source.sendFeedback({ Text.translatable("sniffer.commands.dap.latency.reset") }, false)
+                                    1
+                                }
+                            )
+                        )
+                    ).then(literal<ServerCommandSource?>("bench")
+                        .then(literal<ServerCommandSource?>("generate")
+                            .then(generateArguments())
+                        )
+                    )
+            )
+        }
+    }
+
+    /**
+     * Builds the arguments of `/sniffer bench generate`, each one being optional once the name is given:
+     * `<name> [functions] [depth] [lines] [macroRatio] [breakpointDensity] [tagFanOut]`.
+     */
+    private fun generateArguments(): ArgumentBuilder<ServerCommandSource, *> {
+        val arguments = listOf<RequiredArgumentBuilder<ServerCommandSource, *>>(
+            argument("name", StringArgumentType.word()),
+            argument("functions", IntegerArgumentType.integer(1)),
+            argument("depth", IntegerArgumentType.integer(1)),
+            argument("lines", IntegerArgumentType.integer(1)),
+            argument("macroRatio", DoubleArgumentType.doubleArg(0.0, 1.0)),
+            argument("breakpointDensity", DoubleArgumentType.doubleArg(0.0, 1.0)),
+            argument("tagFanOut", IntegerArgumentType.integer(0))
+        )
+        arguments.forEach { it.executes(::generate) }
+        return arguments.reduceRight<ArgumentBuilder<ServerCommandSource, *>, RequiredArgumentBuilder<ServerCommandSource, *>> { argument, next ->
+            argument.then(next)
+        }
+    }
+
+    /**
+     * Sends the most expensive functions and lines of the current or last recording, sorted by exclusive time.
+     */
+    private fun dump(ctx: CommandContext<ServerCommandSource>, count: Int): Int {
+        val report = FunctionProfiler.get().report()
+        if(report.functions.isEmpty()){
+            ctx.source.sendFeedback({ Text.translatable("sniffer.commands.profile.empty") }, false)
+            return 0
+        }
+        val text = Text.empty()
+        text.title("sniffer.commands.profile.dump.duration").value("${report.duration / 1_000_000.0}ms")
+        text.title("sniffer.commands.profile.dump.functions")
+        report.functions.sortedByDescending { it.exclusive }.take(count).forEach {
+            text.value(Text.translatable("sniffer.commands.profile.dump.function",
+                it.function.toString(), ms(it.exclusive), ms(it.inclusive), it.calls, it.commands))
+        }
+        // The lines are only recorded by `profile start lines`
+        if(report.lines.isNotEmpty()){
+            text.title("sniffer.commands.profile.dump.lines")
+            report.lines.sortedByDescending { it.exclusive }.take(count).forEach {
+                text.value(Text.translatable("sniffer.commands.profile.dump.line",
+                    it.function.toString(), it.line + 1, ms(it.exclusive), ms(it.inclusive), it.commands))
+            }
+        }
+        ctx.source.sendFeedback({ text }, false)
+        return 1
+    }
+
+    /**
+     * Exports the call tree of the current or last recording as flame graph files.
+     * The tree is copied on the server thread, the files are written by the exporter thread.
+     */
+    private fun export(ctx: CommandContext<ServerCommandSource>): Int {
+        val source = ctx.source
+        val tree = FunctionProfiler.get().callTree()
+        if(tree.size() <= 1){
+            source.sendFeedback({ Text.translatable("sniffer.commands.profile.empty") }, false)
+            return 0
+        }
+        val directory = source.server.runDirectory.resolve(EXPORT_DIRECTORY)
+        ProfileExporter.export(tree, directory).whenComplete { files, error ->
+            source.server.execute {
+                if(error != null){
+                    source.sendError(Text.translatable("sniffer.commands.profile.export.failed", error.cause?.message ?: error.message))
+                }else{
+                    source.sendFeedback({ Text.translatable("sniffer.commands.profile.export.done", files.joinToString(", ")) }, false)
+                }
+            }
+        }
+        source.sendFeedback({ Text.translatable("sniffer.commands.profile.export.started") }, false)
+        return 1
+    }
+
+    private fun startTrace(ctx: CommandContext<ServerCommandSource>, records: Int): Int {
+        TraceRecorder.get().start(records)
+        ctx.source.sendFeedback({ Text.translatable("sniffer.commands.trace.started", records) }, false)
+        return 1
+    }
+
+    /**
+     * Dumps the records of the trace ring buffer into a file, written by the exporter thread.
+     */
+    private fun dumpTrace(ctx: CommandContext<ServerCommandSource>): Int {
+        val source = ctx.source
+        if(TraceRecorder.get().size() == 0L){
+            source.sendFeedback({ Text.translatable("sniffer.commands.trace.empty") }, false)
+            return 0
+        }
+        TraceRecorder.get().dump(source.server.runDirectory.resolve(TraceRecorder.DUMP_DIRECTORY)).whenComplete { file, error ->
+            source.server.execute {
+                if(error != null){
+                    source.sendError(Text.translatable("sniffer.commands.trace.dump.failed", error.cause?.message ?: error.message))
+                }else{
+                    source.sendFeedback({ Text.translatable("sniffer.commands.trace.dump.done", file.toString()) }, false)
+                }
+            }
+        }
+        source.sendFeedback({ Text.translatable("sniffer.commands.trace.dump.started", TraceRecorder.get().size()) }, false)
+        return 1
+    }
+
+    /**
+     * Sends the latency of the execution control requests of the debugger, by request type.
+     */
+    private fun latency(ctx: CommandContext<ServerCommandSource>): Int {
+        val latencies = ServerMailbox.get().latencies
+        if(latencies.isEmpty()){
+            ctx.source.sendFeedback({ Text.translatable("sniffer.commands.dap.latency.empty") }, false)
+            return 0
+        }
+        val text = Text.empty()
+        text.title("sniffer.commands.dap.latency")
+        latencies.forEach { (type, histogram) ->
+            text.value(Text.translatable("sniffer.commands.dap.latency.request", type, histogram.count,
+                ms(histogram.mean.toLong()), ms(histogram.percentile(50.0)), ms(histogram.percentile(99.0)), ms(histogram.max)))
+        }
+        ctx.source.sendFeedback({ text }, false)
+        return latencies.size
+    }
+
+    /**
+     * Generates a synthetic datapack in the datapacks directory of the world, written by an IO worker.
+     * The missing arguments take the default values of [DatapackGenerator.Parameters.DEFAULT].
+     */
+    private fun generate(ctx: CommandContext<ServerCommandSource>): Int {
+        val source = ctx.source
+        val name = StringArgumentType.getString(ctx, "name")
+        val defaults = DatapackGenerator.Parameters.DEFAULT
+        val parameters = try {
+            DatapackGenerator.Parameters(
+                defaults.namespace,
+                ctx.optional("functions", defaults.functions, IntegerArgumentType::getInteger),
+                ctx.optional("depth", defaults.depth, IntegerArgumentType::getInteger),
+                ctx.optional("lines", defaults.linesPerFunction, IntegerArgumentType::getInteger),
+                ctx.optional("macroRatio", defaults.macroRatio, DoubleArgumentType::getDouble),
+                ctx.optional("breakpointDensity", defaults.breakpointDensity, DoubleArgumentType::getDouble),
+                ctx.optional("tagFanOut", defaults.tagFanOut, IntegerArgumentType::getInteger),
+                defaults.seed
+            )
+        } catch (e: IllegalArgumentException) {
+            source.sendError(Text.translatable("sniffer.commands.bench.generate.failed", e.message))
+            return 0
+        }
+        val directory = source.server.getSavePath(WorldSavePath.DATAPACKS).resolve(name)
+        if(directory.toFile().exists()){
+            source.sendError(Text.translatable("sniffer.commands.bench.generate.exists", name))
+            return 0
+        }
+        CompletableFuture.supplyAsync({ DatapackGenerator.generate(directory, parameters) }, Util.getIoWorkerExecutor())
+            .whenComplete { result, error ->
+                source.server.execute {
+                    if(error != null){
+                        source.sendError(Text.translatable("sniffer.commands.bench.generate.failed", error.cause?.message ?: error.message))
+                    }else{
+                        source.sendFeedback({ Text.translatable("sniffer.commands.bench.generate.done",
+                            result.functions, result.lines, result.breakpoints, name) }, false)
+                    }
+                }
+            }
+        source.sendFeedback({ Text.translatable("sniffer.commands.bench.generate.started", name) }, false)
+        return 1
+    }
+
+    /**
+     * Gets an argument of the command, or the default value if it was not given.
+     */
+    private fun <T> CommandContext<ServerCommandSource>.optional(name: String, default: T, getter: (CommandContext<ServerCommandSource>, String) -> T): T =
+        if(this.nodes.any { it.node.name == name }) getter(this, name) else default
+
+    /**
+     * Enables or disables the tick timeline, the setting being saved in the configuration.
+     */
+    private fun setTimelineEnabled(ctx: CommandContext<ServerCommandSource>, enabled: Boolean): Int {
+        TickTimeline.setEnabled(enabled)
+        DebuggerConfig.getInstance().isTickTimeline = enabled
+        val key = if(enabled) "sniffer.commands.timeline.enabled" else "sniffer.commands.timeline.disabled"
+        ctx.source.sendFeedback({ Text.translatable(key) }, false)
+        return 1
+    }
+
+    /**
+     * Sends the totals of the given ticks with their most expensive functions.
+     */
+    private fun timeline(ctx: CommandContext<ServerCommandSource>, samples: List<TickTimeline.TickSample>): Int {
+        if(samples.isEmpty()){
+            val key = if(TickTimeline.isEnabled()) "sniffer.commands.timeline.empty" else "sniffer.commands.timeline.not_enabled"
+            ctx.source.sendFeedback({ Text.translatable(key) }, false)
+            return 0
+        }
+        val text = Text.empty()
+        samples.forEach { sample ->
+            text.title(Text.translatable("sniffer.commands.timeline.tick",
+                sample.tick, ms(sample.nanos), sample.commands, sample.functions, sample.maxDepth))
+            sample.topFunctions.forEach {
+                text.value(Text.translatable("sniffer.commands.timeline.function", it.function.toString(), ms(it.nanos)))
+            }
+        }
+        ctx.source.sendFeedback({ text }, false)
+        return samples.size
+    }
+
+    private fun ms(nanos: Long): String = "%.3f".format(nanos / 1_000_000.0)
+
+    private fun MutableText.title(str: String): MutableText =
+        this.title(Text.translatable(str))
+
+    private fun MutableText.title(text: Text): MutableText =
+        this.appendLine(text.copy().styled { it.withColor(Colors.CYAN).withBold(true) })
+
+    private fun MutableText.value(str: String): MutableText =
+        this.appendLine(Text.literal(str).styled { it.withColor(Colors.CYAN).withBold(false) })
+
+    private fun MutableText.value(text: Text): MutableText =
+        this.appendLine(text.copy().styled { it.withColor(Colors.WHITE).withBold(false) })
+}
@@ -29,6 +29,17 @@ export class SocketDescriptorFactory implements vscode.DebugAdapterDescriptorFac
         }
         
         console.log('Connecting to server at:', serverAddress);
+
+        // Raw sockets speak the Debug Adapter Protocol natively, VS Code connects to them without the websocket shim
+        const pathMapping = session.configuration.pathMapping;
+        const hasPathMapping = pathMapping && Object.keys(pathMapping).length > 0;
+        const tcp = /^tcp:\/\/([^:/]+):(\d+)\/?$/.exec(serverAddress);
+        if (tcp && !hasPathMapping) {
+            return new vscode.DebugAdapterServer(Number(tcp[2]), tcp[1]);
+        }
+        if (serverAddress.startsWith('unix://') && !hasPathMapping) {
+            return new vscode.DebugAdapterNamedPipeServer(serverAddress.substring('unix://'.length));
+        }
         
         // Create inline adapter
         const socketSession = new SocketDebugSession(serverAddress, session.configuration.pathMapping);